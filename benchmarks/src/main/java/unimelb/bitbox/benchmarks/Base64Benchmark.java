@@ -0,0 +1,53 @@
+package unimelb.bitbox.benchmarks;
+
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Encodes and decodes a block of file bytes, as done for each FILE_BYTES_RESPONSE
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Base64Benchmark {
+
+    // the UDP block size and the default one
+    @Param({"8192", "1048576"})
+    public int blockSize;
+
+    private byte[] block;
+    private String encoded;
+
+
+    @Setup
+    public void setup() {
+        block = new byte[blockSize];
+        new Random(42).nextBytes(block);
+        encoded = Base64.getEncoder().encodeToString(block);
+    }
+
+
+    @Benchmark
+    public String encode() {
+        return Base64.getEncoder().encodeToString(block);
+    }
+
+
+    @Benchmark
+    public byte[] decode() {
+        return Base64.getDecoder().decode(encoded);
+    }
+}
@@ -0,0 +1,50 @@
+package unimelb.bitbox.benchmarks;
+
+
+import org.openjdk.jmh.annotations.*;
+import unimelb.bitbox.util.Document;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Parses and serializes the JSON of each kind of message with {@link Document}, without the protocol classes
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DocumentBenchmark {
+
+    @Param({"DIRECTORY_CREATE_REQUEST", "FILE_CREATE_REQUEST", "FILE_BYTES_REQUEST", "FILE_BYTES_RESPONSE"})
+    public String command;
+
+    private String json;
+    private Document doc;
+
+
+    @Setup
+    public void setup() {
+        json = Messages.sample(command);
+        doc = Document.parse(json);
+    }
+
+
+    @Benchmark
+    public Document parse() {
+        return Document.parse(json);
+    }
+
+
+    @Benchmark
+    public String serialize() {
+        return doc.toJson();
+    }
+}
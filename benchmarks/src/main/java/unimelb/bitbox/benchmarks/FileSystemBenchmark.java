@@ -0,0 +1,133 @@
+package unimelb.bitbox.benchmarks;
+
+
+import org.openjdk.jmh.annotations.*;
+import unimelb.bitbox.util.FileSystem.FileSystemManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+
+/**
+ * Hashes a whole file, and reads and writes blocks through the {@link FileSystemManager} of a temporary share
+ * directory, as done when serving and receiving FILE_BYTES requests.
+ * The throughput in bytes is the score times the file or block size.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSystemBenchmark {
+
+    private static final String SOURCE = "source.bin";
+    private static final String TARGET = "target.bin";
+
+
+    @State(Scope.Benchmark)
+    public static class Share {
+        @Param({"16777216"})
+        public int fileSize;
+
+        Path root;
+        FileSystemManager fileSystemManager;
+        File source;
+        String md5;
+
+        // FileSystemManager.getFileChecksum(MessageDigest, File) is private
+        MethodHandle checksum;
+
+        @Setup
+        public void setup() throws Exception {
+            root = Files.createTempDirectory("bitbox-benchmark");
+            byte[] content = new byte[fileSize];
+            new Random(42).nextBytes(content);
+            source = root.resolve(SOURCE).toFile();
+            Files.write(source.toPath(), content);
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+                sb.append(String.format("%02x", b));
+            }
+            md5 = sb.toString();
+
+            fileSystemManager = new FileSystemManager(root.toString(), event -> {
+            });
+            // the target is never complete, its content does not match
+            fileSystemManager.createFileLoader(TARGET, md5, fileSize, System.currentTimeMillis());
+
+            Method method = FileSystemManager.class.getDeclaredMethod("getFileChecksum",
+                    MessageDigest.class, File.class);
+            method.setAccessible(true);
+            checksum = MethodHandles.lookup().unreflect(method);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            fileSystemManager.cancelFileLoader(TARGET);
+            fileSystemManager.interrupt();
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+
+    @State(Scope.Benchmark)
+    public static class Blocks {
+        // the UDP block size and the default one
+        @Param({"8192", "1048576"})
+        public int blockSize;
+
+        ByteBuffer block;
+        private long position = 0;
+
+        @Setup
+        public void setup() {
+            byte[] content = new byte[blockSize];
+            new Random(42).nextBytes(content);
+            block = ByteBuffer.wrap(content);
+        }
+
+        // the next block of the file, wrapping around
+        long nextPosition(Share share) {
+            long pos = position;
+            position = (pos + 2L * blockSize > share.fileSize) ? 0 : pos + blockSize;
+            return pos;
+        }
+    }
+
+
+    @Benchmark
+    public String getFileChecksum(Share share) throws Throwable {
+        return (String) share.checksum.invokeExact(MessageDigest.getInstance("MD5"), share.source);
+    }
+
+
+    @Benchmark
+    public ByteBuffer readFile(Share share, Blocks blocks) throws Exception {
+        return share.fileSystemManager.readFile(share.md5, blocks.nextPosition(share), blocks.blockSize);
+    }
+
+
+    @Benchmark
+    public boolean writeFile(Share share, Blocks blocks) throws IOException {
+        return share.fileSystemManager.writeFile(TARGET, blocks.block.duplicate(), blocks.nextPosition(share));
+    }
+}
@@ -0,0 +1,74 @@
+package unimelb.bitbox.benchmarks;
+
+
+import unimelb.bitbox.protocol.Protocol;
+import unimelb.bitbox.protocol.ProtocolFactory;
+
+import java.util.Base64;
+import java.util.Random;
+
+
+/**
+ * Sample messages as sent by the peers, by command
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+final class Messages {
+
+    // the block size used over UDP, see BlockCompressor for the larger ones
+    static final int BLOCK_SIZE = 8192;
+
+    private static final String FILE_DESCRIPTOR = "\"pathName\":\"d1\\/d2\\/big.bin\"," +
+            "\"fileDescriptor\":{\"fileSize\":3500000,\"lastModified\":1557394218000," +
+            "\"md5\":\"ba34d8b4a7a2dc6f235f0e12ad439fb5\"}";
+
+
+    /**
+     * @param command the command of the message
+     * @return a JSON message of the command
+     */
+    static String sample(String command) {
+        switch (command) {
+            case "DIRECTORY_CREATE_REQUEST":
+                return "{\"pathName\":\"d1\\/d2\",\"command\":\"DIRECTORY_CREATE_REQUEST\"}";
+            case "FILE_CREATE_REQUEST":
+                return "{" + FILE_DESCRIPTOR + ",\"command\":\"FILE_CREATE_REQUEST\"}";
+            case "FILE_CREATE_RESPONSE":
+                return "{" + FILE_DESCRIPTOR + ",\"message\":\"file create loader opened\"," +
+                        "\"command\":\"FILE_CREATE_RESPONSE\",\"status\":true}";
+            case "FILE_BYTES_REQUEST":
+                return "{" + FILE_DESCRIPTOR + ",\"requestId\":5,\"length\":" + BLOCK_SIZE + ",\"position\":0," +
+                        "\"command\":\"FILE_BYTES_REQUEST\"}";
+            case "FILE_BYTES_RESPONSE":
+                byte[] block = new byte[BLOCK_SIZE];
+                new Random(42).nextBytes(block);
+                return "{" + FILE_DESCRIPTOR + ",\"requestId\":5,\"length\":" + BLOCK_SIZE + ",\"position\":0," +
+                        "\"content\":\"" + Base64.getEncoder().encodeToString(block) + "\"," +
+                        "\"message\":\"file read successfully\",\"command\":\"FILE_BYTES_RESPONSE\",\"status\":true}";
+            case "HEARTBEAT_REQUEST":
+                return "{\"timestamp\":1557394218000,\"command\":\"HEARTBEAT_REQUEST\"}";
+            default:
+                throw new IllegalArgumentException("no sample of " + command);
+        }
+    }
+
+
+    /**
+     * @param command the command of the message
+     * @return a protocol of the command
+     */
+    static Protocol sampleProtocol(String command) {
+        try {
+            return ProtocolFactory.parseProtocol(sample(command));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    private Messages() {
+    }
+}
@@ -0,0 +1,187 @@
+package unimelb.bitbox.benchmarks;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A peer started with the Peer main class in its own process and directory, with a generated
+ * configuration.properties and an empty share directory. The metrics of the peer are scraped from its
+ * metrics port.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+class PeerProcess {
+
+    // ports of a peer from its base port
+    private static final int TCP = 0;
+    private static final int UDP = 1;
+    private static final int CLIENT = 2;
+    private static final int METRICS = 3;
+    private static final int LINK = 4;
+
+    final int index;
+    final Path dir;
+    final Path share;
+    private final int basePort;
+    private Process process = null;
+
+
+    /**
+     * @param root     the directory of all the peers
+     * @param index    index of the peer
+     * @param basePort first of the 5 ports used by the peer
+     * @throws IOException if the directories can not be created
+     */
+    PeerProcess(Path root, int index, int basePort) throws IOException {
+        this.index = index;
+        this.basePort = basePort;
+        this.dir = Files.createDirectories(root.resolve("peer" + index));
+        this.share = Files.createDirectories(dir.resolve("share"));
+    }
+
+
+    /**
+     * @param mode tcp, udp or hybrid
+     * @return the port other peers connect to in the mode
+     */
+    int port(String mode) {
+        return basePort + (mode.equals("tcp") ? TCP : UDP);
+    }
+
+
+    /**
+     * @return a free port of the peer, for a simulated link in front of it
+     */
+    int linkPort() {
+        return basePort + LINK;
+    }
+
+
+    /**
+     * Write the configuration of the peer
+     *
+     * @param mode  tcp, udp or hybrid
+     * @param peers the peers to connect to
+     * @param extra additional configuration lines, overriding the generated ones
+     * @throws IOException if the file can not be written
+     */
+    void configure(String mode, List<String> peers, Map<String, String> extra) throws IOException {
+        Map<String, String> config = new HashMap<>();
+        config.put("path", "share");
+        config.put("port", String.valueOf(basePort + TCP));
+        config.put("udpPort", String.valueOf(basePort + UDP));
+        config.put("clientPort", String.valueOf(basePort + CLIENT));
+        config.put("metricsPort", String.valueOf(basePort + METRICS));
+        config.put("advertisedName", "localhost");
+        config.put("peers", String.join(",", peers));
+        config.put("maximumIncommingConnections", "16");
+        config.put("blockSize", "1048576");
+        config.put("syncInterval", "60");
+        config.put("mode", mode);
+        config.put("udpTimeout", "2000");
+        config.put("udpRetries", "3");
+        config.put("authorized_keys", "");
+        config.putAll(extra);
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : config.entrySet()) {
+            sb.append(entry.getKey()).append(" = ").append(entry.getValue()).append('\n');
+        }
+        Files.write(dir.resolve("configuration.properties"), sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Start the peer, its output goes to log.txt in its directory
+     *
+     * @param classPath class path of the peer
+     * @throws IOException if the process can not be started
+     */
+    void start(String classPath) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        process = new ProcessBuilder(java, "-cp", classPath, "unimelb.bitbox.Peer")
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("log.txt").toFile())
+                .start();
+    }
+
+
+    /**
+     * Wait until the peer answers on its metrics port, which it opens before listening to the other peers
+     *
+     * @param timeout milliseconds to wait
+     * @return false if the peer did not answer in time
+     */
+    boolean awaitStarted(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (isAlive() && System.currentTimeMillis() < deadline) {
+            if (!scrape().isEmpty()) return true;
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        return false;
+    }
+
+
+    /**
+     * Stop the peer and wait for it
+     */
+    void stop() throws InterruptedException {
+        if (process != null) {
+            process.destroy();
+            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+            process = null;
+        }
+    }
+
+
+    boolean isAlive() {
+        return process != null && process.isAlive();
+    }
+
+
+    /**
+     * @return the metrics of the peer summed over their labels, empty if the peer does not answer
+     */
+    Map<String, Double> scrape() {
+        HashMap<String, Double> metrics = new HashMap<>();
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(
+                    "http://127.0.0.1:" + (basePort + METRICS) + "/metrics").openConnection();
+            conn.setConnectTimeout(1000);
+            conn.setReadTimeout(5000);
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty() || line.startsWith("#")) continue;
+                    int space = line.lastIndexOf(' ');
+                    int brace = line.indexOf('{');
+                    String name = line.substring(0, (brace >= 0 && brace < space) ? brace : space);
+                    metrics.merge(name, Double.parseDouble(line.substring(space + 1)), Double::sum);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not started yet or gone
+        }
+        return metrics;
+    }
+}
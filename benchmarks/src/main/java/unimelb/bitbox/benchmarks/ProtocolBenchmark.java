@@ -0,0 +1,53 @@
+package unimelb.bitbox.benchmarks;
+
+
+import org.openjdk.jmh.annotations.*;
+import unimelb.bitbox.protocol.InvalidProtocolException;
+import unimelb.bitbox.protocol.Protocol;
+import unimelb.bitbox.protocol.ProtocolFactory;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Parses and marshals each kind of message with the {@link ProtocolFactory}
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProtocolBenchmark {
+
+    @Param({"DIRECTORY_CREATE_REQUEST", "FILE_CREATE_REQUEST", "FILE_CREATE_RESPONSE",
+            "FILE_BYTES_REQUEST", "FILE_BYTES_RESPONSE", "HEARTBEAT_REQUEST"})
+    public String command;
+
+    private String json;
+    private Protocol protocol;
+
+
+    @Setup
+    public void setup() {
+        json = Messages.sample(command);
+        protocol = Messages.sampleProtocol(command);
+    }
+
+
+    @Benchmark
+    public Protocol parse() throws InvalidProtocolException {
+        return ProtocolFactory.parseProtocol(json);
+    }
+
+
+    @Benchmark
+    public String marshal() {
+        return ProtocolFactory.marshalProtocol(protocol);
+    }
+}
@@ -0,0 +1,204 @@
+package unimelb.bitbox.benchmarks.Simulator;
+
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+
+/**
+ * One direction of a simulated link, it delivers the data to its sink after the faults of its {@link LinkProfile}.
+ * <p>
+ * The bandwidth is a queue in front of the link: data waits for the data before it to be sent, and over
+ * the queue limit datagrams are dropped while a stream is held up, which slows down its sender.
+ * <p>
+ * A datagram link loses, duplicates and reorders datagrams. A stream link keeps the order and never loses data,
+ * like TCP: a lost segment costs a retransmission timeout instead.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+class Link {
+    private static Logger log = Logger.getLogger(Link.class.getName());
+
+    // segment size and minimum retransmission timeout of TCP
+    private static final int SEGMENT_SIZE = 1460;
+    private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(200);
+    // the end of a stream in the pending queue
+    private static final byte[] END = new byte[0];
+
+    /**
+     * Where a link delivers, null is the end of a stream
+     */
+    interface Sink {
+        void accept(byte[] data) throws IOException;
+    }
+
+
+    private final String name;
+    private final LinkProfile profile;
+    private final boolean stream;
+    private final Sink sink;
+    private final Random random;
+    private final ScheduledExecutorService delivery;
+
+    // the link is busy sending until then
+    private long busyUntil = 0;
+    // see isOrdered
+    private long lastDelivery = 0;
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+
+    final AtomicLong delivered = new AtomicLong(0);
+    final AtomicLong dropped = new AtomicLong(0);
+    final AtomicLong lost = new AtomicLong(0);
+    final AtomicLong duplicated = new AtomicLong(0);
+    final AtomicLong reordered = new AtomicLong(0);
+
+
+    /**
+     * @param name    name of the link, for the log and the delivery thread
+     * @param profile the faults
+     * @param stream  true for TCP, false for datagrams
+     * @param sink    where the data goes
+     */
+    Link(String name, LinkProfile profile, boolean stream, Sink sink) {
+        this.name = name;
+        this.profile = profile;
+        this.stream = stream;
+        this.sink = sink;
+        this.random = profile.newRandom();
+        this.delivery = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "link " + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    /**
+     * Send data over the link, a stream may wait here for room in the queue
+     *
+     * @param data the datagram or the bytes of the stream, null for the end of a stream
+     * @throws InterruptedException if interrupted while held up
+     */
+    void send(byte[] data) throws InterruptedException {
+        long now = System.nanoTime();
+        int size = data == null ? 0 : data.length;
+
+        long sent;
+        synchronized (this) {
+            long start = Math.max(now, busyUntil);
+            if (!stream && start - now > profile.queue) {
+                dropped.incrementAndGet();
+                return;
+            }
+            busyUntil = start + (profile.bandwidth > 0 ? TimeUnit.SECONDS.toNanos(size) / profile.bandwidth : 0);
+            sent = busyUntil;
+        }
+
+        if (stream) {
+            long wait = sent - now - profile.queue;
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            long at = sent + delay();
+            if (size > 0 && random.nextDouble() < lossOf(size)) {
+                lost.incrementAndGet();
+                at += Math.max(MIN_RTO, 2 * (profile.latency + profile.jitter));
+            }
+            deliver(data, at);
+            return;
+        }
+
+        if (random.nextDouble() < profile.loss) {
+            lost.incrementAndGet();
+            return;
+        }
+        long at = sent + delay();
+        if (random.nextDouble() < profile.reorder) {
+            reordered.incrementAndGet();
+            at += profile.reorderDelay;
+        }
+        deliver(data, at);
+        if (random.nextDouble() < profile.duplicate) {
+            duplicated.incrementAndGet();
+            deliver(data, sent + delay());
+        }
+    }
+
+
+    // a stream, or datagrams which are never reordered, must come out in order
+    private boolean isOrdered() {
+        return stream || (profile.jitter == 0 && profile.reorder == 0);
+    }
+
+
+    /**
+     * Stop delivering, the data not delivered yet is gone
+     */
+    void close() {
+        delivery.shutdownNow();
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format("Link %s (%s) delivered: %d, lost: %d, dropped: %d, duplicated: %d, reordered: %d",
+                name, profile, delivered.get(), lost.get(), dropped.get(), duplicated.get(), reordered.get());
+    }
+
+
+    private void deliver(byte[] datagram, long at) {
+        boolean ordered = isOrdered();
+        if (ordered) {
+            synchronized (this) {
+                at = Math.max(at, lastDelivery);
+                lastDelivery = at;
+                // the scheduler may swap tasks due at about the same time, each one delivers the oldest data
+                pending.addLast(datagram == null ? END : datagram);
+            }
+        }
+        try {
+            delivery.schedule(() -> {
+                try {
+                    byte[] data = datagram;
+                    if (ordered) {
+                        synchronized (this) {
+                            data = pending.pollFirst();
+                        }
+                        if (data == END) data = null;
+                    }
+                    sink.accept(data);
+                    delivered.incrementAndGet();
+                } catch (IOException e) {
+                    log.fine(name + " " + e.toString());
+                }
+            }, at - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+
+    // latency with jitter either way
+    private long delay() {
+        long jitter = profile.jitter > 0 ? (long) ((2 * random.nextDouble() - 1) * profile.jitter) : 0;
+        return Math.max(0, profile.latency + jitter);
+    }
+
+
+    // probability that any segment of the data is lost
+    private double lossOf(int size) {
+        if (profile.loss == 0) return 0;
+        int segments = (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+        return 1 - Math.pow(1 - profile.loss, segments);
+    }
+}
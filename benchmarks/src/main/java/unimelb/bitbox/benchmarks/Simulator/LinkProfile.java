@@ -0,0 +1,134 @@
+package unimelb.bitbox.benchmarks.Simulator;
+
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The faults of one direction of a simulated link, parsed from a comma separated list such as
+ * {@code latency=50,jitter=10,loss=0.02,reorder=0.01,duplicate=0.001,bandwidth=1024}.
+ * <ul>
+ * <li>latency: one way delay in milliseconds, a round trip time of 100 ms is a latency of 50</li>
+ * <li>jitter: the delay moves by up to this many milliseconds either way</li>
+ * <li>loss, reorder, duplicate: probability of each datagram, or of each TCP segment for loss</li>
+ * <li>reorderDelay: milliseconds a reordered datagram is held back, 10 by default</li>
+ * <li>bandwidth: kilobytes per second, 0 means no limit</li>
+ * <li>queue: milliseconds of data the link holds before dropping datagrams or holding up TCP, 1000 by default</li>
+ * <li>seed: seed of the random faults, for repeatable runs</li>
+ * </ul>
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class LinkProfile {
+
+    public static final LinkProfile PERFECT = new LinkProfile("");
+
+    final long latency;
+    final long jitter;
+    final double loss;
+    final double reorder;
+    final long reorderDelay;
+    final double duplicate;
+    // bytes per second
+    final long bandwidth;
+    final long queue;
+    private final Long seed;
+    private final String text;
+
+
+    /**
+     * @param text the faults, see {@link LinkProfile}, empty for a perfect link
+     * @throws IllegalArgumentException if a fault is unknown or out of range
+     */
+    public LinkProfile(String text) {
+        long latency = 0, jitter = 0, reorderDelay = 10, bandwidth = 0, queue = 1000;
+        double loss = 0, reorder = 0, duplicate = 0;
+        Long seed = null;
+
+        for (String item : text.split(",")) {
+            if (item.trim().isEmpty()) continue;
+            String[] kv = item.split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Expected key=value: " + item);
+            }
+            String key = kv[0].trim();
+            String value = kv[1].trim();
+            try {
+                switch (key) {
+                    case "latency":
+                        latency = Long.parseLong(value);
+                        break;
+                    case "jitter":
+                        jitter = Long.parseLong(value);
+                        break;
+                    case "loss":
+                        loss = probability(value);
+                        break;
+                    case "reorder":
+                        reorder = probability(value);
+                        break;
+                    case "reorderDelay":
+                        reorderDelay = Long.parseLong(value);
+                        break;
+                    case "duplicate":
+                        duplicate = probability(value);
+                        break;
+                    case "bandwidth":
+                        bandwidth = Long.parseLong(value) * 1024;
+                        break;
+                    case "queue":
+                        queue = Long.parseLong(value);
+                        break;
+                    case "seed":
+                        seed = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown link fault: " + key);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value of " + key + ": " + value);
+            }
+        }
+        if (latency < 0 || jitter < 0 || reorderDelay < 0 || bandwidth < 0 || queue < 0) {
+            throw new IllegalArgumentException("Negative link fault: " + text);
+        }
+
+        this.latency = TimeUnit.MILLISECONDS.toNanos(latency);
+        this.jitter = TimeUnit.MILLISECONDS.toNanos(jitter);
+        this.reorderDelay = TimeUnit.MILLISECONDS.toNanos(reorderDelay);
+        this.queue = TimeUnit.MILLISECONDS.toNanos(queue);
+        this.loss = loss;
+        this.reorder = reorder;
+        this.duplicate = duplicate;
+        this.bandwidth = bandwidth;
+        this.seed = seed;
+        this.text = text.trim();
+    }
+
+
+    /**
+     * @return the random source of a link, seeded if the profile has a seed
+     */
+    Random newRandom() {
+        return seed == null ? new Random() : new Random(seed);
+    }
+
+
+    @Override
+    public String toString() {
+        return text.isEmpty() ? "perfect" : text;
+    }
+
+
+    private static double probability(String value) {
+        double p = Double.parseDouble(value);
+        if (p < 0 || p > 1) {
+            throw new NumberFormatException();
+        }
+        return p;
+    }
+}
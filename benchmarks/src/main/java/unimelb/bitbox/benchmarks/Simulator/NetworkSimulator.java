@@ -0,0 +1,137 @@
+package unimelb.bitbox.benchmarks.Simulator;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+
+/**
+ * NetworkSimulator puts simulated links between peers on loopback, for tests and benchmarks.
+ * <p>
+ * Each proxy listens on a loopback port and forwards to a peer, a peer connecting to the proxy instead of
+ * the other peer goes through the faults of a {@link LinkProfile}, in both directions. UDP datagrams may be
+ * lost, duplicated and reordered, TCP keeps its order and pays for a loss with a retransmission delay.
+ * Both share the latency, the jitter and the bandwidth limit. For a peer on UDP behind a proxy, see {@link UDPProxy}.
+ * <p>
+ * Also runs on its own, e.g. a 100 ms round trip with 2% loss in front of a peer on UDP port 8113:
+ * {@code java -cp benchmarks.jar unimelb.bitbox.benchmarks.Simulator.NetworkSimulator udp 9113 localhost:8113 latency=50,loss=0.02}
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class NetworkSimulator implements Closeable {
+    private static Logger log = Logger.getLogger(NetworkSimulator.class.getName());
+
+    private final List<UDPProxy> udpProxies = new ArrayList<>();
+    private final List<TCPProxy> tcpProxies = new ArrayList<>();
+
+
+    /**
+     * Forward the UDP datagrams sent to a loopback port
+     *
+     * @param port    the loopback port, 0 for any free one
+     * @param target  the peer
+     * @param profile faults of both directions
+     * @return the port bound
+     * @throws IOException if the port can not be bound
+     */
+    public synchronized int udp(int port, InetSocketAddress target, LinkProfile profile) throws IOException {
+        UDPProxy proxy = new UDPProxy(port, target, profile, profile);
+        udpProxies.add(proxy);
+        log.info("UDP " + proxy.getPort() + " -> " + target + ": " + profile);
+        return proxy.getPort();
+    }
+
+
+    /**
+     * Forward the TCP connections to a loopback port
+     *
+     * @param port    the loopback port, 0 for any free one
+     * @param target  the peer
+     * @param profile faults of both directions
+     * @return the port bound
+     * @throws IOException if the port can not be bound
+     */
+    public synchronized int tcp(int port, InetSocketAddress target, LinkProfile profile) throws IOException {
+        TCPProxy proxy = new TCPProxy(port, target, profile, profile);
+        tcpProxies.add(proxy);
+        log.info("TCP " + proxy.getPort() + " -> " + target + ": " + profile);
+        return proxy.getPort();
+    }
+
+
+    /**
+     * @return the totals of all the links: delivered, lost, dropped, duplicated and reordered
+     */
+    public synchronized long[] getCounts() {
+        long[] counts = new long[5];
+        for (Link link : links()) {
+            counts[0] += link.delivered.get();
+            counts[1] += link.lost.get();
+            counts[2] += link.dropped.get();
+            counts[3] += link.duplicated.get();
+            counts[4] += link.reordered.get();
+        }
+        return counts;
+    }
+
+
+    /**
+     * Stop all the proxies, the connections through them are closed
+     */
+    @Override
+    public synchronized void close() {
+        for (Link link : links()) {
+            log.fine(link.toString());
+        }
+        long[] counts = getCounts();
+        log.info(String.format("Network simulator closed, delivered: %d, lost: %d, dropped: %d, duplicated: %d, " +
+                "reordered: %d", counts[0], counts[1], counts[2], counts[3], counts[4]));
+        udpProxies.forEach(UDPProxy::close);
+        tcpProxies.forEach(TCPProxy::close);
+        udpProxies.clear();
+        tcpProxies.clear();
+    }
+
+
+    private List<Link> links() {
+        ArrayList<Link> links = new ArrayList<>();
+        udpProxies.forEach(proxy -> links.addAll(proxy.getLinks()));
+        tcpProxies.forEach(proxy -> links.addAll(proxy.getLinks()));
+        return links;
+    }
+
+
+    /**
+     * Run proxies until stopped
+     *
+     * @param args groups of 4: udp|tcp, the loopback port, host:port of the peer, the faults
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0 || args.length % 4 != 0) {
+            System.err.println("Usage: NetworkSimulator (udp|tcp port host:port faults)...");
+            System.exit(1);
+        }
+
+        NetworkSimulator simulator = new NetworkSimulator();
+        Runtime.getRuntime().addShutdownHook(new Thread(simulator::close));
+        for (int i = 0; i < args.length; i += 4) {
+            int port = Integer.parseInt(args[i + 1]);
+            String[] hostPort = args[i + 2].split(":");
+            InetSocketAddress target = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+            LinkProfile profile = new LinkProfile(args[i + 3]);
+            if (args[i].equals("udp")) {
+                simulator.udp(port, target, profile);
+            } else {
+                simulator.tcp(port, target, profile);
+            }
+        }
+        Thread.currentThread().join();
+    }
+}
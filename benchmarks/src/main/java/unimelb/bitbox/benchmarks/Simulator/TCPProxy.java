@@ -0,0 +1,201 @@
+package unimelb.bitbox.benchmarks.Simulator;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+
+/**
+ * Forwards the connections to a loopback port to the target, both directions of each go over simulated links.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+class TCPProxy implements Closeable {
+    private static Logger log = Logger.getLogger(TCPProxy.class.getName());
+
+    private static final int BUFFER_SIZE = 16384;
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int CONNECT_RETRY_INTERVAL = 100;
+
+    private final ServerSocket serverSocket;
+    private final InetSocketAddress target;
+    private final LinkProfile up;
+    private final LinkProfile down;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+
+
+    /**
+     * @param port   the loopback port, 0 for any free one
+     * @param target where the connections go
+     * @param up     faults towards the target
+     * @param down   faults towards the one connecting
+     * @throws IOException if the port can not be bound
+     */
+    TCPProxy(int port, InetSocketAddress target, LinkProfile up, LinkProfile down) throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        this.target = target;
+        this.up = up;
+        this.down = down;
+        start("tcp proxy " + getPort(), this::accept);
+    }
+
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+
+    List<Link> getLinks() {
+        return links;
+    }
+
+
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+        for (Link link : links) {
+            link.close();
+        }
+    }
+
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                // closed
+                return;
+            }
+
+            Socket server = connect();
+            if (server == null) {
+                closeQuietly(client);
+                continue;
+            }
+            sockets.add(client);
+            sockets.add(server);
+
+            // closed once both directions have ended, the links are kept for their counts
+            AtomicInteger open = new AtomicInteger(2);
+            List<Link> pair = new ArrayList<>(2);
+            Link.Sink end = data -> {
+                if (open.decrementAndGet() == 0) {
+                    closeQuietly(client);
+                    closeQuietly(server);
+                    sockets.remove(client);
+                    sockets.remove(server);
+                    pair.forEach(Link::close);
+                }
+            };
+            String name = client.getPort() + "->" + target.getPort();
+            Link upLink = new Link("tcp " + name, up, true, data -> write(server, data, end));
+            Link downLink = new Link("tcp " + client.getPort() + "<-" + target.getPort(), down, true,
+                    data -> write(client, data, end));
+            pair.add(upLink);
+            pair.add(downLink);
+            links.addAll(pair);
+            start("tcp proxy " + name, () -> pump(client, server, upLink));
+            start("tcp proxy " + client.getPort() + "<-" + target.getPort(), () -> pump(server, client, downLink));
+        }
+    }
+
+
+    // the target may still be starting, like a slow connect it is given a few seconds
+    private Socket connect() {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (true) {
+            Socket server = new Socket();
+            try {
+                server.connect(target, CONNECT_TIMEOUT);
+                return server;
+            } catch (IOException e) {
+                closeQuietly(server);
+                if (System.currentTimeMillis() >= deadline) {
+                    log.fine("Unable to connect " + target + ": " + e.toString());
+                    return null;
+                }
+            }
+            try {
+                Thread.sleep(CONNECT_RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+
+    // read from one socket into the link to the other one
+    private void pump(Socket from, Socket to, Link link) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            InputStream is = from.getInputStream();
+            int n;
+            while ((n = is.read(buffer)) >= 0) {
+                link.send(Arrays.copyOf(buffer, n));
+            }
+            link.send(null);
+        } catch (IOException e) {
+            // a reset goes through at once
+            closeQuietly(from);
+            closeQuietly(to);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private static void write(Socket socket, byte[] data, Link.Sink end) throws IOException {
+        if (data == null) {
+            socket.shutdownOutput();
+            end.accept(null);
+            return;
+        }
+        OutputStream os = socket.getOutputStream();
+        os.write(data);
+        os.flush();
+    }
+
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+
+    private static void start(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,166 @@
+package unimelb.bitbox.benchmarks.Simulator;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+
+/**
+ * Forwards the datagrams sent to a loopback port to the target over simulated links, and the replies back.
+ * <p>
+ * Each sender gets its own socket towards the target, so the target sees one address per sender and replies
+ * to it like to a real peer. A peer checks that the port of a handshake is the one it came from, so on loopback
+ * the socket takes the port of the sender on {@value #SOURCE_ADDRESS}. The port is only free there if the sender
+ * is bound to one address, see udpBindAddress, and the system has that address, e.g. Linux.
+ * Otherwise the socket gets any free port.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+class UDPProxy implements Closeable {
+    private static Logger log = Logger.getLogger(UDPProxy.class.getName());
+
+    private static final int BUFFER_SIZE = 65536;
+    // the kernel should not drop more than the simulated link
+    private static final int SOCKET_BUFFER_SIZE = 1 << 20;
+    private static final String SOURCE_ADDRESS = "127.0.0.2";
+
+    private final DatagramSocket socket;
+    private final InetSocketAddress target;
+    private final LinkProfile up;
+    private final LinkProfile down;
+    private final ConcurrentHashMap<InetSocketAddress, Sender> senders = new ConcurrentHashMap<>();
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+
+
+    /**
+     * @param port   the loopback port, 0 for any free one
+     * @param target where the datagrams go
+     * @param up     faults towards the target
+     * @param down   faults of the replies
+     * @throws IOException if the port can not be bound
+     */
+    UDPProxy(int port, InetSocketAddress target, LinkProfile up, LinkProfile down) throws IOException {
+        this.socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        this.socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        this.target = target;
+        this.up = up;
+        this.down = down;
+        start("udp proxy " + getPort(), this::receive);
+    }
+
+
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+
+    List<Link> getLinks() {
+        return links;
+    }
+
+
+    @Override
+    public void close() {
+        socket.close();
+        for (Sender sender : senders.values()) {
+            sender.socket.close();
+        }
+        for (Link link : links) {
+            link.close();
+        }
+    }
+
+
+    private void receive() {
+        DatagramPacket packet = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE);
+        try {
+            while (true) {
+                socket.receive(packet);
+                InetSocketAddress from = (InetSocketAddress) packet.getSocketAddress();
+                byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(),
+                        packet.getOffset() + packet.getLength());
+                Sender sender = senders.get(from);
+                if (sender == null) {
+                    sender = new Sender(from);
+                    senders.put(from, sender);
+                }
+                sender.up.send(data);
+            }
+        } catch (IOException e) {
+            // closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    // a socket with the port of the sender if possible
+    private DatagramSocket open(int port) throws SocketException {
+        if (target.getAddress().isLoopbackAddress()) {
+            try {
+                return new DatagramSocket(new InetSocketAddress(SOURCE_ADDRESS, port));
+            } catch (SocketException e) {
+                log.fine("Unable to keep port " + port + ": " + e.toString());
+            }
+        }
+        return new DatagramSocket(new InetSocketAddress(0));
+    }
+
+
+    private static void start(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    // one sender to the proxy, with its socket towards the target
+    private class Sender {
+        final DatagramSocket socket;
+        final Link up;
+        final Link down;
+
+        Sender(InetSocketAddress from) throws SocketException {
+            socket = open(from.getPort());
+            socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+            String name = from.getPort() + "->" + target.getPort();
+            up = new Link("udp " + name, UDPProxy.this.up, false,
+                    data -> socket.send(new DatagramPacket(data, data.length, target)));
+            down = new Link("udp " + from.getPort() + "<-" + target.getPort(), UDPProxy.this.down, false,
+                    data -> UDPProxy.this.socket.send(new DatagramPacket(data, data.length, from)));
+            links.add(up);
+            links.add(down);
+            log.fine("New sender " + from + " through port " + socket.getLocalPort());
+            start("udp proxy " + name, this::receive);
+        }
+
+        // the replies of the target
+        private void receive() {
+            DatagramPacket packet = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE);
+            try {
+                while (true) {
+                    socket.receive(packet);
+                    down.send(Arrays.copyOfRange(packet.getData(), packet.getOffset(),
+                            packet.getOffset() + packet.getLength()));
+                }
+            } catch (IOException e) {
+                // closed
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package unimelb.bitbox.benchmarks;
+
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import unimelb.bitbox.Constants;
+import unimelb.bitbox.util.Document;
+import unimelb.bitbox.benchmarks.Simulator.LinkProfile;
+import unimelb.bitbox.benchmarks.Simulator.NetworkSimulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+
+/**
+ * End to end sync benchmark: starts a few peers on loopback, makes changes in the share directory of the first
+ * one and measures how long it takes until every peer has the same files.
+ * <p>
+ * For each workload: time to convergence, bytes sent by all the peers and CPU time of each peer, the last two
+ * from the metrics endpoint of the peers. Each mode starts with fresh peers and empty share directories.
+ * With -link, the peers connect to each other through a {@link NetworkSimulator} with those faults.
+ * <p>
+ * The peers are separate processes, since each reads configuration.properties from its working directory.
+ * Run it with the bitbox classes on the class path, e.g.
+ * {@code java -cp target/benchmarks.jar unimelb.bitbox.benchmarks.SyncBenchmark -peers 3 -mode both -json sync.json}
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class SyncBenchmark {
+
+    private static final String BYTES_SENT = "bitbox_peer_sent_bytes_total";
+    private static final String CPU_SECONDS = "process_cpu_seconds_total";
+    private static final long POLL_INTERVAL_IN_MILLIS = 100;
+
+    @Option(name = "-peers", usage = "Number of peers, at least 2")
+    int peers = 3;
+
+    @Option(name = "-mode", usage = "Set the mode [tcp, udp, both]")
+    String mode = "both";
+
+    @Option(name = "-topology", usage = "Set the topology [chain, star], star connects every peer to the first one")
+    String topology = "chain";
+
+    @Option(name = "-workloads", usage = "Comma separated workloads [small, huge, deep, modify, delete]")
+    String workloads = "small,huge,deep,modify,delete";
+
+    @Option(name = "-small-files", usage = "Number of files of the small workload")
+    int smallFiles = 500;
+
+    @Option(name = "-huge-files", usage = "Number of files of the huge workload")
+    int hugeFiles = 2;
+
+    @Option(name = "-huge-mb", usage = "Size of each file of the huge workload in MB")
+    int hugeFileMegabytes = 64;
+
+    @Option(name = "-depth", usage = "Depth of the deep workload")
+    int depth = 16;
+
+    @Option(name = "-link", usage = "Faults of the links between the peers, e.g. latency=50,loss=0.02")
+    String link = null;
+
+    @Option(name = "-base-port", usage = "First port, each peer takes 5 ports from there, 10 apart")
+    int basePort = 20000;
+
+    @Option(name = "-settle", usage = "Seconds to wait for the peers to connect")
+    int settleSeconds = 5;
+
+    @Option(name = "-timeout", usage = "Seconds to wait for each workload to converge")
+    int timeoutSeconds = 300;
+
+    @Option(name = "-config", usage = "Extra configuration key=value of every peer, may be repeated")
+    List<String> config = new ArrayList<>();
+
+    @Option(name = "-dir", usage = "Directory of the peers, a temporary one by default")
+    File dir = null;
+
+    @Option(name = "-json", usage = "Write the results to this file as JSON")
+    File json = null;
+
+    @Option(name = "-seed", usage = "Seed of the generated content")
+    long seed = 42;
+
+
+    public static void main(String[] args) throws Exception {
+        SyncBenchmark benchmark = new SyncBenchmark();
+        CmdLineParser parser = new CmdLineParser(benchmark);
+        try {
+            parser.parseArgument(args);
+            if (benchmark.peers < 2) {
+                throw new CmdLineException(parser, "At least 2 peers needed", null);
+            }
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            parser.printUsage(System.err);
+            System.exit(1);
+        }
+        System.exit(benchmark.run() ? 0 : 2);
+    }
+
+
+    /**
+     * Run every workload in every mode
+     *
+     * @return false if a workload did not converge
+     */
+    boolean run() throws IOException, InterruptedException {
+        Map<String, String> extra = new HashMap<>();
+        for (String line : config) {
+            String[] kv = line.split("=", 2);
+            extra.put(kv[0].trim(), kv.length > 1 ? kv[1].trim() : "");
+        }
+        List<Workload> selected = new ArrayList<>();
+        for (String name : workloads.split(",")) {
+            selected.add(Workload.valueOf(name.trim().toUpperCase()));
+        }
+        String[] modes = mode.equals("both") ? new String[]{"tcp", "udp"} : new String[]{mode};
+
+        Path root = dir != null ? Files.createDirectories(dir.toPath()) : Files.createTempDirectory("bitbox-sync");
+        ArrayList<Document> results = new ArrayList<>();
+        boolean ok = true;
+        for (String m : modes) {
+            ok &= runMode(root.resolve(m), m, extra, selected, results);
+        }
+
+        if (json != null) {
+            Document doc = new Document();
+            doc.append("peers", peers);
+            doc.append("topology", topology);
+            doc.append("link", link == null ? "" : link);
+            doc.append("config", new ArrayList<>(config));
+            doc.append("results", results);
+            Files.write(json.toPath(), doc.toJson().getBytes(StandardCharsets.UTF_8));
+        }
+        if (dir == null) {
+            delete(root);
+        }
+        return ok;
+    }
+
+
+    private boolean runMode(Path root, String m, Map<String, String> extra, List<Workload> selected,
+                            List<Document> results) throws IOException, InterruptedException {
+        ArrayList<PeerProcess> processes = new ArrayList<>();
+        for (int i = 0; i < peers; i++) {
+            processes.add(new PeerProcess(root, i, basePort + 10 * i));
+        }
+        // a peer connects to the other one through a simulated link in front of it
+        NetworkSimulator simulator = new NetworkSimulator();
+        LinkProfile profile = link == null ? null : new LinkProfile(link);
+        Map<String, String> peerConfig = new HashMap<>();
+        if (profile != null && !m.equals("tcp")) {
+            // so the links can send from the ports of the peers, see NetworkSimulator
+            peerConfig.put(Constants.CONFIG_FIELD_UDP_BIND_ADDRESS, "127.0.0.1");
+        }
+        peerConfig.putAll(extra);
+        String classPath = System.getProperty("java.class.path");
+        boolean ok = true;
+        try {
+            for (PeerProcess p : processes) {
+                ArrayList<String> targets = new ArrayList<>();
+                if (p.index > 0) {
+                    PeerProcess target = processes.get(topology.equals("star") ? 0 : p.index - 1);
+                    if (profile == null) {
+                        targets.add("localhost:" + target.port(m));
+                    } else {
+                        InetSocketAddress address = new InetSocketAddress("127.0.0.1", target.port(m));
+                        int port = m.equals("tcp") ?
+                                simulator.tcp(p.linkPort(), address, profile) :
+                                simulator.udp(p.linkPort(), address, profile);
+                        targets.add("127.0.0.1:" + port);
+                    }
+                }
+                p.configure(m, targets, peerConfig);
+            }
+
+            // one after the other, each one connects to a peer already started
+            for (PeerProcess p : processes) {
+                p.start(classPath);
+                if (!p.awaitStarted(TimeUnit.SECONDS.toMillis(settleSeconds))) {
+                    System.out.println("peer" + p.index + " has not started, see " + p.dir.resolve("log.txt"));
+                }
+            }
+            TimeUnit.SECONDS.sleep(settleSeconds);
+
+            Random random = new Random(seed);
+            for (Workload workload : selected) {
+                Document result = runWorkload(processes, simulator, m, workload, random);
+                results.add(result);
+                ok &= result.getBoolean("converged");
+            }
+        } finally {
+            for (PeerProcess p : processes) {
+                p.stop();
+            }
+            simulator.close();
+        }
+        return ok;
+    }
+
+
+    private Document runWorkload(List<PeerProcess> processes, NetworkSimulator simulator, String m,
+                                 Workload workload, Random random) throws IOException, InterruptedException {
+        List<Map<String, Double>> before = scrape(processes);
+        long lostBefore = simulator.getCounts()[1];
+        long start = System.nanoTime();
+        workload.apply(processes.get(0).share, this, random);
+
+        long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        boolean converged = false;
+        while (System.nanoTime() < deadline && !converged) {
+            TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_IN_MILLIS);
+            converged = isConverged(processes, false) && isConverged(processes, true);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        List<Map<String, Double>> after = scrape(processes);
+
+        long bytes = 0;
+        ArrayList<Long> cpuMillis = new ArrayList<>();
+        for (int i = 0; i < processes.size(); i++) {
+            bytes += (long) delta(before.get(i), after.get(i), BYTES_SENT);
+            cpuMillis.add((long) (delta(before.get(i), after.get(i), CPU_SECONDS) * 1000));
+        }
+
+        long lost = simulator.getCounts()[1] - lostBefore;
+        long throughput = bytes * 1000 / Math.max(1, millis) / 1024;
+
+        System.out.println(String.format("%s %-6s %-8s %8d ms, sent %,d bytes (%,d KB/s), lost %d, cpu (ms) %s",
+                m, workload, converged ? "ok" : "TIMEOUT", millis, bytes, throughput, lost, cpuMillis));
+        for (PeerProcess p : processes) {
+            if (!p.isAlive()) {
+                System.out.println("peer" + p.index + " has exited, see " + p.dir.resolve("log.txt"));
+            }
+        }
+
+        Document result = new Document();
+        result.append("mode", m);
+        result.append("workload", workload.name().toLowerCase());
+        result.append("converged", converged);
+        result.append("millis", millis);
+        result.append("bytesSent", bytes);
+        result.append("throughputKBps", throughput);
+        result.append("lost", lost);
+        result.append("cpuMillis", cpuMillis);
+        return result;
+    }
+
+
+    private static List<Map<String, Double>> scrape(List<PeerProcess> processes) {
+        ArrayList<Map<String, Double>> metrics = new ArrayList<>();
+        for (PeerProcess p : processes) {
+            metrics.add(p.scrape());
+        }
+        return metrics;
+    }
+
+
+    private static double delta(Map<String, Double> before, Map<String, Double> after, String name) {
+        return after.getOrDefault(name, 0.0) - before.getOrDefault(name, 0.0);
+    }
+
+
+    /**
+     * @param processes the peers
+     * @param content   compare the MD5 of the files as well, not only the sizes
+     * @return true if every peer has the files of the first peer
+     */
+    private static boolean isConverged(List<PeerProcess> processes, boolean content) throws IOException {
+        Map<String, String> expected = snapshot(processes.get(0).share, content);
+        if (expected == null) return false;
+        for (int i = 1; i < processes.size(); i++) {
+            if (!expected.equals(snapshot(processes.get(i).share, content))) return false;
+        }
+        return true;
+    }
+
+
+    // relative path to size or MD5, null while a file is being loaded
+    private static Map<String, String> snapshot(Path share, boolean content) throws IOException {
+        TreeMap<String, String> snapshot = new TreeMap<>();
+        try (Stream<Path> paths = Files.walk(share)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (path.equals(share)) continue;
+                String name = share.relativize(path).toString().replace(File.separatorChar, '/');
+                if (name.endsWith("(bitbox)")) return null;
+                if (Files.isDirectory(path)) {
+                    snapshot.put(name, "dir");
+                } else {
+                    snapshot.put(name, content ? md5(path) : String.valueOf(Files.size(path)));
+                }
+            }
+        } catch (UncheckedIOException | NoSuchFileException e) {
+            // a file was removed while walking
+            return null;
+        }
+        return snapshot;
+    }
+
+
+    private static String md5(Path path) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream is = Files.newInputStream(path)) {
+                int n;
+                while ((n = is.read(buffer)) > 0) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
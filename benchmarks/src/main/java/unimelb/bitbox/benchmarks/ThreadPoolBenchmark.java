@@ -0,0 +1,92 @@
+package unimelb.bitbox.benchmarks;
+
+
+import org.openjdk.jmh.annotations.*;
+import unimelb.bitbox.util.ThreadPool.LaneExecutor;
+import unimelb.bitbox.util.ThreadPool.Priority;
+import unimelb.bitbox.util.ThreadPool.PriorityTask;
+import unimelb.bitbox.util.ThreadPool.PriorityThreadPool;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Submits a batch of small tasks from several threads at once and waits for all of them,
+ * with the {@link PriorityThreadPool} and with one {@link LaneExecutor} lane per connection.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ThreadPoolBenchmark {
+
+    static final int BATCH = 1000;
+
+
+    @State(Scope.Benchmark)
+    public static class Executors {
+        @Param({"8"})
+        public int workers;
+
+        // LOW is left out, the tasks over its queue limit are shed
+        @Param({"HIGH", "NORMAL"})
+        public Priority priority;
+
+        LaneExecutor laneExecutor;
+
+        @Setup
+        public void setup() {
+            laneExecutor = new LaneExecutor("benchmark worker", workers);
+            PriorityThreadPool.getInstance();
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+            laneExecutor.shutdown();
+            laneExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+
+    // one submitting thread is one connection
+    @State(Scope.Thread)
+    public static class Connection {
+        LaneExecutor.Lane lane;
+
+        @Setup
+        public void setup(Executors executors) {
+            lane = executors.laneExecutor.newLane("benchmark", executors.priority);
+        }
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void priorityThreadPool(Executors executors) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(BATCH);
+        PriorityThreadPool pool = PriorityThreadPool.getInstance();
+        for (int i = 0; i < BATCH; i++) {
+            pool.submitTask(new PriorityTask("benchmark", executors.priority, latch::countDown));
+        }
+        latch.await();
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void laneExecutor(Connection connection) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            connection.lane.submit(latch::countDown);
+        }
+        latch.await();
+    }
+}
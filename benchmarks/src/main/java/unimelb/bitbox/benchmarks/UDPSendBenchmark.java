@@ -0,0 +1,142 @@
+package unimelb.bitbox.benchmarks;
+
+
+import org.openjdk.jmh.annotations.*;
+import unimelb.bitbox.util.ConnectionUtils.Peer.UDPSender;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Sends a flush worth of messages over loopback as the {@link UDPSender} thread does,
+ * one datagram per message or packed into batch datagrams, and batches and splits them without the socket.
+ * The score is messages per second, the datagrams received are counted to show the loss on loopback.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UDPSendBenchmark {
+
+    // datagrams taken from a connection in one flush
+    static final int FLUSH = 64;
+
+    @Param({"HEARTBEAT_REQUEST", "FILE_CREATE_RESPONSE", "FILE_BYTES_REQUEST"})
+    public String command;
+
+    private byte[] message;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+    private final ArrayList<byte[]> datagrams = new ArrayList<>(FLUSH);
+
+
+    @Setup
+    public void setup() {
+        message = Messages.sample(command).getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    // a sender and a receiver drained by its own thread, on loopback
+    @State(Scope.Benchmark)
+    public static class Socket {
+        @Param({"true", "false"})
+        public boolean batching;
+
+        DatagramChannel sender;
+        DatagramChannel receiver;
+        InetSocketAddress address;
+        Thread drain;
+        final AtomicLong received = new AtomicLong(0);
+        long sent = 0;
+
+        @Setup
+        public void setup() throws IOException {
+            receiver = DatagramChannel.open();
+            receiver.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+            receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            address = (InetSocketAddress) receiver.getLocalAddress();
+            sender = DatagramChannel.open();
+
+            drain = new Thread(() -> {
+                ByteBuffer in = ByteBuffer.allocateDirect(65536);
+                try {
+                    while (true) {
+                        in.clear();
+                        receiver.receive(in);
+                        received.incrementAndGet();
+                    }
+                } catch (IOException ignored) {
+                    // closed
+                }
+            }, "benchmark receiver");
+            drain.setDaemon(true);
+            drain.start();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException, InterruptedException {
+            sender.close();
+            receiver.close();
+            drain.join(1000);
+            System.out.println("\ndatagrams sent: " + sent + ", received: " + received.get());
+        }
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(FLUSH)
+    public void send(Socket socket) throws IOException {
+        fill();
+        while (!datagrams.isEmpty()) {
+            ByteBuffer out = buffer;
+            if (!socket.batching || UDPSender.batch(datagrams, buffer) == 0) {
+                out = UDPSender.single(datagrams.remove(0), buffer);
+            }
+            socket.sender.send(out, socket.address);
+            socket.sent++;
+        }
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(FLUSH)
+    public int batchAndSplit() {
+        fill();
+        int count = 0;
+        while (!datagrams.isEmpty()) {
+            if (UDPSender.batch(datagrams, buffer) == 0) {
+                datagrams.remove(0);
+                count++;
+                continue;
+            }
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            int[] split = {0};
+            UDPSender.unbatch(data, datagram -> split[0]++);
+            count += split[0];
+        }
+        return count;
+    }
+
+
+    private void fill() {
+        for (int i = 0; i < FLUSH; i++) {
+            datagrams.add(message);
+        }
+    }
+}
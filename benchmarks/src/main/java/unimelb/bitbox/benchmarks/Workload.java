@@ -0,0 +1,126 @@
+package unimelb.bitbox.benchmarks;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/**
+ * Changes made to the share directory of the first peer, the others have to catch up
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+enum Workload {
+
+    SMALL("many small files") {
+        @Override
+        void apply(Path share, SyncBenchmark options, Random random) throws IOException {
+            for (int i = 0; i < options.smallFiles; i++) {
+                Path dir = Files.createDirectories(share.resolve("small").resolve("d" + (i % 20)));
+                write(dir.resolve("f" + i + ".bin"), 256 + random.nextInt(4096), random);
+            }
+        }
+    },
+
+    HUGE("a few huge files") {
+        @Override
+        void apply(Path share, SyncBenchmark options, Random random) throws IOException {
+            Path dir = Files.createDirectories(share.resolve("huge"));
+            for (int i = 0; i < options.hugeFiles; i++) {
+                write(dir.resolve("h" + i + ".bin"), options.hugeFileMegabytes * 1024L * 1024L, random);
+            }
+        }
+    },
+
+    DEEP("a deep directory tree") {
+        @Override
+        void apply(Path share, SyncBenchmark options, Random random) throws IOException {
+            Path dir = share.resolve("deep");
+            for (int depth = 0; depth < options.depth; depth++) {
+                dir = Files.createDirectories(dir.resolve("level" + depth));
+                write(dir.resolve("a.bin"), 1024, random);
+                write(dir.resolve("b.bin"), 1024, random);
+            }
+        }
+    },
+
+    MODIFY("modify one file in ten") {
+        @Override
+        void apply(Path share, SyncBenchmark options, Random random) throws IOException {
+            List<Path> files = files(share);
+            for (int i = 0; i < files.size(); i += 10) {
+                long size = Files.size(files.get(i));
+                write(files.get(i), Math.max(1, size + random.nextInt(1024) - 512), random);
+            }
+        }
+    },
+
+    DELETE("delete the deep tree and every other small file") {
+        @Override
+        void apply(Path share, SyncBenchmark options, Random random) throws IOException {
+            Path deep = share.resolve("deep");
+            if (Files.exists(deep)) {
+                try (Stream<Path> paths = Files.walk(deep)) {
+                    paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+            }
+            Path small = share.resolve("small");
+            if (Files.exists(small)) {
+                List<Path> files = files(small);
+                for (int i = 0; i < files.size(); i += 2) {
+                    Files.delete(files.get(i));
+                }
+            }
+        }
+    };
+
+
+    final String description;
+
+
+    Workload(String description) {
+        this.description = description;
+    }
+
+
+    /**
+     * Make the changes
+     *
+     * @param share  the share directory of the first peer
+     * @param options sizes of the workloads
+     * @param random the source of the content
+     * @throws IOException if the share directory can not be changed
+     */
+    abstract void apply(Path share, SyncBenchmark options, Random random) throws IOException;
+
+
+    private static void write(Path file, long size, Random random) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (OutputStream os = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                os.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        }
+    }
+
+
+    // regular files in a stable order
+    private static List<Path> files(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths.filter(Files::isRegularFile).sorted().collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+}
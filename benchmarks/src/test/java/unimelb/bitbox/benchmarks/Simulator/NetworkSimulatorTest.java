@@ -0,0 +1,137 @@
+package unimelb.bitbox.benchmarks.Simulator;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class NetworkSimulatorTest {
+
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidProfile() {
+        new LinkProfile("latency=50,loss=2");
+    }
+
+
+    @Test
+    public void testUDPLatencyAndReply() throws Exception {
+        try (NetworkSimulator simulator = new NetworkSimulator();
+             DatagramSocket peer = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+             DatagramSocket sender = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0))) {
+            int port = simulator.udp(0, new InetSocketAddress(LOOPBACK, peer.getLocalPort()),
+                    new LinkProfile("latency=50"));
+            peer.setSoTimeout(2000);
+            sender.setSoTimeout(2000);
+
+            long start = System.nanoTime();
+            sender.send(new DatagramPacket(new byte[]{1}, 1, LOOPBACK, port));
+            DatagramPacket packet = new DatagramPacket(new byte[16], 16);
+            peer.receive(packet);
+            // the peer replies to the proxy, which sends it back
+            peer.send(new DatagramPacket(new byte[]{2}, 1, packet.getSocketAddress()));
+            sender.receive(packet);
+            long rtt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertEquals(2, packet.getData()[0]);
+            assertEquals(port, packet.getPort());
+            assertTrue("round trip " + rtt, rtt >= 100);
+        }
+    }
+
+
+    @Test
+    public void testUDPLossAndDuplicate() throws Exception {
+        int count = 2000;
+        assertEquals(count, received("", count));
+        int lossy = received("loss=0.1,seed=1", count);
+        assertTrue("received " + lossy, lossy > count * 0.85 && lossy < count * 0.95);
+        int duplicated = received("duplicate=0.1,seed=1", count);
+        assertTrue("received " + duplicated, duplicated > count * 1.05 && duplicated < count * 1.15);
+    }
+
+
+    @Test
+    public void testTCPOrderAndBandwidth() throws Exception {
+        byte[] data = new byte[64 * 1024];
+        new Random(1).nextBytes(data);
+
+        try (NetworkSimulator simulator = new NetworkSimulator();
+             ServerSocket serverSocket = new ServerSocket(0, 1, LOOPBACK)) {
+            int port = simulator.tcp(0, new InetSocketAddress(LOOPBACK, serverSocket.getLocalPort()),
+                    new LinkProfile("latency=5,jitter=5,loss=0.05,bandwidth=256,seed=1"));
+
+            long start = System.nanoTime();
+            try (Socket client = new Socket(LOOPBACK, port)) {
+                OutputStream os = client.getOutputStream();
+                for (int i = 0; i < data.length; i += 1000) {
+                    os.write(data, i, Math.min(1000, data.length - i));
+                }
+                client.shutdownOutput();
+
+                try (Socket server = serverSocket.accept()) {
+                    InputStream is = server.getInputStream();
+                    ByteArrayOutputStream received = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[4096];
+                    int n;
+                    while ((n = is.read(buffer)) >= 0) {
+                        received.write(buffer, 0, n);
+                    }
+                    assertArrayEquals(data, received.toByteArray());
+                }
+            }
+            // 64 KB at 256 KB/s
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("took " + millis, millis >= 240);
+            assertTrue(simulator.getCounts()[1] > 0);
+        }
+    }
+
+
+    // datagrams received of the ones sent through a link
+    private static int received(String profile, int count) throws Exception {
+        try (NetworkSimulator simulator = new NetworkSimulator();
+             DatagramSocket peer = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+             DatagramSocket sender = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0))) {
+            int port = simulator.udp(0, new InetSocketAddress(LOOPBACK, peer.getLocalPort()), new LinkProfile(profile));
+            peer.setReceiveBufferSize(1 << 20);
+            peer.setSoTimeout(500);
+            for (int i = 0; i < count; i++) {
+                sender.send(new DatagramPacket(new byte[]{(byte) i}, 1, LOOPBACK, port));
+                if (i % 50 == 0) {
+                    // the receive buffer is not endless
+                    TimeUnit.MILLISECONDS.sleep(5);
+                }
+            }
+
+            int n = 0;
+            DatagramPacket packet = new DatagramPacket(new byte[16], 16);
+            try {
+                while (true) {
+                    peer.receive(packet);
+                    n++;
+                }
+            } catch (SocketTimeoutException e) {
+                return n;
+            }
+        }
+    }
+}
@@ -13,20 +13,56 @@ public class Constants {
 
     // Thread pool
     public static final int THREAD_POOL_CORE_POOL_SIZE = 200;
-    public static final int THREAD_POOL_MAX_POOL_SZIE = 5000;
-    public static final int THREAD_POOL_QUEUE_SIZE = 5000;
     public static final long THREAD_POOL_KEEP_ALIVE_TIME = 2000L;
 
     // Configurations
     public static final String CONFIG_HOSTNAME_PORT_SEPARATOR = ":";
     public static final String CONFIG_PEERS_SEPARATOR = ",";
+    public static final String CONFIG_MODE_TCP = "tcp";
+    public static final String CONFIG_MODE_HYBRID = "hybrid";
     public static final String CONFIG_FIELD_PEERS = "peers";
     public static final String CONFIG_FIELD_PORT = "port";
+    public static final String CONFIG_FIELD_MODE = "mode";
+    public static final String CONFIG_FIELD_UDP_PORT = "udpPort";
     public static final String CONFIG_FIELD_AD_NAME = "advertisedName";
     public static final String CONFIG_FIELD_BLOCKSIZE = "blockSize";
     public static final String CONFIG_FIELD_PATH = "path";
     public static final String CONFIG_FIELD_AUTHORIZED_KEYS = "authorized_keys";
     public static final String CONFIG_FIELD_CLIENT_PORT = "clientPort";
+    public static final String CONFIG_FIELD_MAX_CONCURRENT_TRANSFERS = "maxConcurrentTransfers";
+    public static final String CONFIG_FIELD_MAX_OUTSTANDING_BYTES = "maxOutstandingTransferBytes";
+    public static final String CONFIG_FIELD_BANDWIDTH_LIMIT = "bandwidthLimit";
+    public static final String CONFIG_FIELD_PEER_BANDWIDTH_LIMIT = "peerBandwidthLimit";
+    public static final String CONFIG_FIELD_INLINE_CONTENT_THRESHOLD = "inlineContentThreshold";
+    public static final String CONFIG_FIELD_COMPRESSION = "compression";
+    public static final String CONFIG_FIELD_SHORTCUT_STRATEGY = "shortcutStrategy";
+    public static final String CONFIG_FIELD_UDP_RELIABLE = "udpReliable";
+    public static final String CONFIG_FIELD_UDP_TARGET_DELAY = "udpTargetDelay";
+    public static final String CONFIG_FIELD_UDP_MAX_DATAGRAM_SIZE = "udpMaxDatagramSize";
+    public static final String CONFIG_FIELD_UDP_REASSEMBLY_LIMIT = "udpReassemblyLimit";
+    public static final String CONFIG_FIELD_UDP_RECEIVE_THREADS = "udpReceiveThreads";
+    public static final String CONFIG_FIELD_UDP_BIND_ADDRESS = "udpBindAddress";
+    public static final String CONFIG_FIELD_UDP_BATCH = "udpBatch";
+    public static final String CONFIG_FIELD_REQUEST_ID = "requestId";
+    public static final String CONFIG_FIELD_HEARTBEAT_INTERVAL = "heartbeatInterval";
+    public static final String CONFIG_FIELD_HEARTBEAT_TIMEOUT = "heartbeatTimeout";
+    public static final String CONFIG_FIELD_TCP_KEEP_ALIVE = "tcpKeepAlive";
+    public static final String CONFIG_FIELD_TCP_STREAMS = "tcpStreams";
+    public static final String CONFIG_FIELD_LANE_WORKERS = "laneWorkers";
+    public static final String CONFIG_FIELD_LANE_CAPACITY = "laneCapacity";
+    public static final String CONFIG_FIELD_THREAD_POOL_SIZE = "threadPoolSize";
+    public static final String CONFIG_FIELD_QUEUE_LIMIT_HIGH = "queueLimitHigh";
+    public static final String CONFIG_FIELD_QUEUE_LIMIT_NORMAL = "queueLimitNormal";
+    public static final String CONFIG_FIELD_QUEUE_LIMIT_LOW = "queueLimitLow";
+    public static final String CONFIG_FIELD_PRIORITY_WEIGHTS = "priorityWeights";
+    public static final String CONFIG_FIELD_SCHEDULER_JITTER = "schedulerJitter";
+    public static final String CONFIG_FIELD_TASK_METRICS = "taskMetrics";
+    public static final String CONFIG_FIELD_TASK_METRICS_LOG_INTERVAL = "taskMetricsLogInterval";
+    public static final String CONFIG_FIELD_METRICS_PORT = "metricsPort";
+    public static final String CONFIG_FIELD_ASYNC_LOGGING = "asyncLogging";
+    public static final String CONFIG_FIELD_LOG_BUFFER_SIZE = "logBufferSize";
+    public static final String CONFIG_FIELD_LOG_SAMPLING = "logSampling";
+    public static final String CONFIG_FIELD_LOG_RATE_LIMIT = "logRateLimit";
 
     // Security
     public static final String SECURITY_PRIVATE_KEY_FILENAME = "bitboxclient_rsa";
@@ -55,6 +91,29 @@ public class Constants {
     public static final String PROTOCOL_FIELD_IDENTITY = "identity";
     public static final String PROTOCOL_FIELD_KEY = "AES128";
     public static final String PROTOCOL_FIELD_PAYLOAD = "payload";
+    public static final String PROTOCOL_FIELD_FEATURES = "features";
+    public static final String PROTOCOL_FIELD_FILES = "files";
+    public static final String PROTOCOL_FIELD_COMPRESSION = "compression";
+    public static final String PROTOCOL_FIELD_REQUEST_ID = "requestId";
+    public static final String PROTOCOL_FIELD_TIMESTAMP = "timestamp";
+    public static final String PROTOCOL_FIELD_TCP_PORT = "tcpPort";
+    public static final String PROTOCOL_FIELD_STREAM = "stream";
+    public static final String PROTOCOL_FIELD_UDP_SESSION = "udpSession";
+
+    // Protocol features
+    public static final String PROTOCOL_FEATURE_FILE_BUNDLE = "fileBundle";
+    public static final String PROTOCOL_FEATURE_INLINE_CONTENT = "inlineContent";
+    public static final String PROTOCOL_FEATURE_DEFLATE = "deflate";
+    public static final String PROTOCOL_FEATURE_RELIABLE_UDP = "reliableUdp";
+    public static final String PROTOCOL_FEATURE_UDP_FRAGMENTATION = "udpFragmentation";
+    public static final String PROTOCOL_FEATURE_UDP_BATCH = "udpBatch";
+    public static final String PROTOCOL_FEATURE_REQUEST_ID = "requestId";
+    public static final String PROTOCOL_FEATURE_HEARTBEAT = "heartbeat";
+    public static final String PROTOCOL_FEATURE_HYBRID_TRANSPORT = "hybridTransport";
+    public static final String PROTOCOL_FEATURE_STRIPED_STREAMS = "stripedStreams";
+
+    // Compression algorithms
+    public static final String PROTOCOL_COMPRESSION_DEFLATE = "deflate";
 
 
     // Protocol types
@@ -74,6 +133,10 @@ public class Constants {
     public static final String PROTOCOL_TYPE_DIRECTORY_CREATE_RESPONSE = "DIRECTORY_CREATE_RESPONSE";
     public static final String PROTOCOL_TYPE_DIRECTORY_DELETE_REQUEST = "DIRECTORY_DELETE_REQUEST";
     public static final String PROTOCOL_TYPE_DIRECTORY_DELETE_RESPONSE = "DIRECTORY_DELETE_RESPONSE";
+    public static final String PROTOCOL_TYPE_FILE_BUNDLE_REQUEST = "FILE_BUNDLE_REQUEST";
+    public static final String PROTOCOL_TYPE_FILE_BUNDLE_RESPONSE = "FILE_BUNDLE_RESPONSE";
+    public static final String PROTOCOL_TYPE_HEARTBEAT_REQUEST = "HEARTBEAT_REQUEST";
+    public static final String PROTOCOL_TYPE_HEARTBEAT_RESPONSE = "HEARTBEAT_RESPONSE";
     public static final String PROTOCOL_TYPE_AUTH_REQUEST = "AUTH_REQUEST";
     public static final String PROTOCOL_TYPE_AUTH_RESPONSE = "AUTH_RESPONSE";
     public static final String PROTOCOL_TYPE_LIST_PEERS_REQUEST = "LIST_PEERS_REQUEST";
@@ -95,6 +158,10 @@ public class Constants {
     public static final String PROTOCOL_RESPONSE_MESSAGE_FILE_ANOTHER_IS_TRANSMITTING = "file with the same path and name is transmitting";
     public static final String PROTOCOL_RESPONSE_MESSAGE_FILE_READ_SUCCESS = "file read successfully";
     public static final String PROTOCOL_RESPONSE_MESSAGE_FILE_READ_FAIL = "file read failed";
+    public static final String PROTOCOL_RESPONSE_MESSAGE_FILE_BLOCK_TOO_LARGE = "block larger than the connection serves";
+    public static final String PROTOCOL_RESPONSE_MESSAGE_FILE_CREATE_INLINE = "file created successfully using inline content";
+    public static final String PROTOCOL_RESPONSE_MESSAGE_FILE_MODIFY_INLINE = "file modified successfully using inline content";
+    public static final String PROTOCOL_RESPONSE_MESSAGE_FILE_INLINE_FAIL = "inline content rejected";
     public static final String PROTOCOL_RESPONSE_MESSAGE_FILE_CREATE_FAIL_PREFIX = "failed to create file: ";
     public static final String PROTOCOL_RESPONSE_MESSAGE_FILE_DELETE_FAIL_PREFIX = "failed to delete file: ";
     public static final String PROTOCOL_RESPONSE_MESSAGE_FILE_CREATE_LOADER_COLLABORATING = "file create loader opened: collaborating.";
@@ -1,13 +1,17 @@
 package unimelb.bitbox;
 
 
+import unimelb.bitbox.util.AsyncLogHandler;
 import unimelb.bitbox.util.Configuration;
 import unimelb.bitbox.util.ConnectionUtils.ClientServer.ServerConnectionHelper;
 import unimelb.bitbox.util.ConnectionUtils.Peer.*;
 import unimelb.bitbox.util.FileSystem.FileSystemManager;
 import unimelb.bitbox.util.MessageHandler;
+import unimelb.bitbox.util.Metrics.MetricsServer;
 import unimelb.bitbox.util.SecManager;
 import unimelb.bitbox.util.SyncManager;
+import unimelb.bitbox.util.ThreadPool.PriorityThreadPool;
+import unimelb.bitbox.util.ThreadPool.TaskMetrics;
 
 import java.util.logging.Logger;
 
@@ -25,6 +29,7 @@ public class Peer {
     private static IncomingConnectionHelper incomingConnectionManager;
     private static OutgoingConnectionHelper outgoingConnectionHelper;
     private static ServerConnectionHelper serverConnectionHelper;
+    private static TCPIncomingConnectionHelper bulkConnectionHelper = null;
 
     /**
      * Entry point
@@ -36,20 +41,29 @@ public class Peer {
 
         System.setProperty("java.util.logging.SimpleFormatter.format",
                 "[%1$tc] %2$s %4$s: %5$s%n");
+        AsyncLogHandler.install();
         log.info("BitBox Peer starting...");
 
         FileSystemManager fileSystemManager =
                 new FileSystemManager(Configuration.getConfigurationValue(Constants.CONFIG_FIELD_PATH),
                         (SyncManager.getInstance()::sendEventToAllAsync));
+        fileSystemManager.setShortcutStrategy(FileSystemManager.ShortcutStrategy.valueOf(
+                Configuration.getConfigurationValue(Constants.CONFIG_FIELD_SHORTCUT_STRATEGY, "copy")
+                        .trim().toUpperCase()));
 
         SyncManager.getInstance().init(fileSystemManager);
 
         MessageHandler.init(fileSystemManager);
+        LivenessMonitor.getInstance().init();
+        PriorityThreadPool.getInstance().init();
+        TaskMetrics.getInstance().init();
+        MetricsServer.getInstance().init();
         SecManager.getInstance().init(SecManager.Mode.ServerMode);
 
         String advertisedName = Configuration.getConfigurationValue(Constants.CONFIG_FIELD_AD_NAME);
 
-        if (Configuration.getConfigurationValue("mode").toLowerCase().equals("tcp")) {
+        String mode = Configuration.getConfigurationValue(Constants.CONFIG_FIELD_MODE).trim().toLowerCase();
+        if (mode.equals(Constants.CONFIG_MODE_TCP)) {
             log.info("Using TCP mode.");
 
             int port = Integer.parseInt(Configuration.getConfigurationValue(Constants.CONFIG_FIELD_PORT));
@@ -57,17 +71,26 @@ public class Peer {
             outgoingConnectionHelper = new TCPOutgoingConnectionHelper(advertisedName, port);
 
         } else {
-            log.info("Using UDP mode.");
+            log.info(mode.equals(Constants.CONFIG_MODE_HYBRID) ?
+                    "Using hybrid mode, UDP for messages and TCP for file bytes." : "Using UDP mode.");
 
-            int port = Integer.parseInt(Configuration.getConfigurationValue("udpPort"));
+            int port = Integer.parseInt(Configuration.getConfigurationValue(Constants.CONFIG_FIELD_UDP_PORT));
             incomingConnectionManager = new UDPIncomingConnectionHelper(advertisedName, port);
             outgoingConnectionHelper = new UDPOutgoingConnectionHelper(advertisedName, port,
-                    ((UDPIncomingConnectionHelper) incomingConnectionManager).getServerSocket());
+                    ((UDPIncomingConnectionHelper) incomingConnectionManager).getServerChannel());
 
+            if (Connection.HYBRID) {
+                // only accepts the TCP connections joining a UDP one, and peers in TCP mode
+                bulkConnectionHelper = new TCPIncomingConnectionHelper(advertisedName,
+                        Integer.parseInt(Configuration.getConfigurationValue(Constants.CONFIG_FIELD_PORT)));
+            }
         }
         serverConnectionHelper = new ServerConnectionHelper(outgoingConnectionHelper);
         serverConnectionHelper.start();
         incomingConnectionManager.start();
+        if (bulkConnectionHelper != null) {
+            bulkConnectionHelper.start();
+        }
         outgoingConnectionHelper.execute();
 
     }
@@ -24,6 +24,9 @@ import static unimelb.bitbox.Constants.*;
  */
 public abstract class Protocol implements IProtocol {
 
+    // id of a request echoed by its response, optional and 0 when not used
+    public long requestId = 0;
+
 
     @Override
     public void unmarshalFromJson(Document doc) {
@@ -92,6 +95,10 @@ public abstract class Protocol implements IProtocol {
 
     public static class HandshakeRequest extends Protocol {
         public HostPort peer = new HostPort();
+        public ProtocolField.Features features = new ProtocolField.Features();
+        public long tcpPort = 0; // port for file bytes in hybrid mode, optional
+        public long stream = 0; // index of a data stream joining an existing connection, optional
+        public long udpSession = 0; // session id of the reliable UDP frames sent to this peer, optional
 
 
         @Override
@@ -99,6 +106,15 @@ public abstract class Protocol implements IProtocol {
             super.unmarshalFromJson(doc);
 
             this.peer = new HostPort((Document) doc.get(PROTOCOL_FIELD_HOST_PORT));
+            if (doc.containsKey(PROTOCOL_FIELD_TCP_PORT)) {
+                this.tcpPort = doc.getLong(PROTOCOL_FIELD_TCP_PORT);
+            }
+            if (doc.containsKey(PROTOCOL_FIELD_STREAM)) {
+                this.stream = doc.getLong(PROTOCOL_FIELD_STREAM);
+            }
+            if (doc.containsKey(PROTOCOL_FIELD_UDP_SESSION)) {
+                this.udpSession = doc.getLong(PROTOCOL_FIELD_UDP_SESSION);
+            }
         }
 
 
@@ -106,6 +122,15 @@ public abstract class Protocol implements IProtocol {
         public void marshalToJson(Document doc) {
             super.marshalToJson(doc);
             doc.append(PROTOCOL_FIELD_HOST_PORT, this.peer.toDoc());
+            if (tcpPort > 0) {
+                doc.append(PROTOCOL_FIELD_TCP_PORT, tcpPort);
+            }
+            if (stream > 0) {
+                doc.append(PROTOCOL_FIELD_STREAM, stream);
+            }
+            if (udpSession > 0) {
+                doc.append(PROTOCOL_FIELD_UDP_SESSION, udpSession);
+            }
         }
     }
 
@@ -116,6 +141,7 @@ public abstract class Protocol implements IProtocol {
 
     public static class FileCreateRequest extends Protocol implements IRequest {
         public ProtocolField.FileDes fileDes = new ProtocolField.FileDes();
+        public ProtocolField.InlineContent inline = new ProtocolField.InlineContent(); // create and modify only
 
         @Override
         public boolean equals(Object o) {
@@ -260,6 +286,106 @@ public abstract class Protocol implements IProtocol {
     public static class DirectoryDeleteResponse extends DirectoryCreateResponse {
     }
 
+
+    public static class FileBundleRequest extends Protocol implements IRequest {
+        public ArrayList<ProtocolField.BundleFile> files = new ArrayList<>();
+
+
+        @Override
+        public void unmarshalFromJson(Document doc) {
+            super.unmarshalFromJson(doc);
+            unmarshalFiles(doc, files);
+        }
+
+
+        @Override
+        public void marshalToJson(Document doc) {
+            super.marshalToJson(doc);
+            marshalFiles(doc, files);
+        }
+
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof FileBundleRequest)) {
+                return false;
+            }
+            FileBundleRequest p = (FileBundleRequest) o;
+            return p.files.equals(files);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(files);
+        }
+    }
+
+
+    public static class FileBundleResponse extends Protocol implements IResponse {
+        public ArrayList<ProtocolField.BundleFile> files = new ArrayList<>();
+
+
+        @Override
+        public void unmarshalFromJson(Document doc) {
+            super.unmarshalFromJson(doc);
+            unmarshalFiles(doc, files);
+        }
+
+
+        @Override
+        public void marshalToJson(Document doc) {
+            super.marshalToJson(doc);
+            marshalFiles(doc, files);
+        }
+    }
+
+
+    // the files of a bundle request or response
+    private static void unmarshalFiles(Document doc, ArrayList<ProtocolField.BundleFile> files) {
+        for (Document subdoc : (ArrayList<Document>) doc.get(PROTOCOL_FIELD_FILES)) {
+            ProtocolField.BundleFile file = new ProtocolField.BundleFile();
+            file.unmarshalFromJson(subdoc);
+            files.add(file);
+        }
+    }
+
+
+    private static void marshalFiles(Document doc, ArrayList<ProtocolField.BundleFile> files) {
+        ArrayList<Document> fileDocs = new ArrayList<>();
+        for (ProtocolField.BundleFile file : files) {
+            Document subdoc = new Document();
+            file.marshalToJson(subdoc);
+            fileDocs.add(subdoc);
+        }
+        doc.append(PROTOCOL_FIELD_FILES, fileDocs);
+    }
+
+
+    public static class HeartbeatRequest extends Protocol {
+        public long timestamp; // clock of the sender, echoed by the response to measure the round trip time
+
+
+        @Override
+        public void unmarshalFromJson(Document doc) {
+            super.unmarshalFromJson(doc);
+            this.timestamp = doc.getLong(PROTOCOL_FIELD_TIMESTAMP);
+        }
+
+
+        @Override
+        public void marshalToJson(Document doc) {
+            super.marshalToJson(doc);
+            doc.append(PROTOCOL_FIELD_TIMESTAMP, timestamp);
+        }
+    }
+
+
+    public static class HeartbeatResponse extends HeartbeatRequest {
+    }
+
     // get all public ProtocolField properties of current instance
     private ArrayList<ProtocolField> getAllProtocolFields() {
         ArrayList<ProtocolField> protocolFields = new ArrayList<>();
@@ -31,6 +31,9 @@ public class ProtocolFactory {
             Protocol protocol = (Protocol) protocolType.getValue().newInstance();
 
             protocol.unmarshalFromJson(doc);
+            if (doc.containsKey(Constants.PROTOCOL_FIELD_REQUEST_ID)) {
+                protocol.requestId = doc.getLong(Constants.PROTOCOL_FIELD_REQUEST_ID);
+            }
 
             return protocol;
         } catch (Exception e) {
@@ -48,12 +51,34 @@ public class ProtocolFactory {
      * @return
      */
     public static String marshalProtocol(Protocol protocol) {
+        return marshalProtocol(protocol, protocol.requestId);
+    }
+
+
+    /**
+     * marshal protocol class to JSON string with the given request id,
+     * the protocol itself is not changed so it can be shared by several connections
+     *
+     * @param protocol  the protocol
+     * @param requestId the request id, omitted when it is 0
+     * @return JSON string
+     */
+    public static String marshalProtocol(Protocol protocol, long requestId) {
         Document doc = new Document();
         doc.append(Constants.PROTOCOL_FIELD_CMD, ProtocolType.typeOfProtocol(protocol).getKey());
         protocol.marshalToJson(doc);
+        if (requestId != 0) {
+            doc.append(Constants.PROTOCOL_FIELD_REQUEST_ID, requestId);
+        }
         return doc.toJson();
     }
 
+    /**
+     * Rebuild the request answered by a response, used to match responses of peers without request ids
+     *
+     * @param protocol the response
+     * @return a request equal to the one answered
+     */
     public static IRequest identifyRes(IResponse protocol) {
         switch (ProtocolType.typeOfProtocol((Protocol) protocol)) {
             case FILE_CREATE_RESPONSE:
@@ -90,6 +115,11 @@ public class ProtocolFactory {
                 Protocol.DirectoryDeleteRequest directoryDeleteRequest = new Protocol.DirectoryDeleteRequest();
                 directoryDeleteRequest.dirPath = directoryDeleteResponse.dirPath;
                 return directoryDeleteRequest;
+            case FILE_BUNDLE_RESPONSE:
+                Protocol.FileBundleResponse fileBundleResponse = (Protocol.FileBundleResponse) protocol;
+                Protocol.FileBundleRequest fileBundleRequest = new Protocol.FileBundleRequest();
+                fileBundleRequest.files = fileBundleResponse.files;
+                return fileBundleRequest;
         }
         return null;
     }
@@ -0,0 +1,75 @@
+package unimelb.bitbox.protocol;
+
+
+import unimelb.bitbox.Constants;
+import unimelb.bitbox.util.ConnectionUtils.Peer.Connection;
+import unimelb.bitbox.util.ConnectionUtils.Peer.LivenessMonitor;
+import unimelb.bitbox.util.ConnectionUtils.Peer.UDPReliableSession;
+import unimelb.bitbox.util.ConnectionUtils.Peer.UDPSender;
+import unimelb.bitbox.util.FileSystem.BlockCompressor;
+import unimelb.bitbox.util.SyncManager;
+
+import java.util.ArrayList;
+import java.util.function.BooleanSupplier;
+
+
+/**
+ * Optional protocol extensions, advertised in the handshake.
+ * An extension is only used on a connection when both peers advertise it,
+ * peers that do not know the features field simply ignore it.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public enum ProtocolFeature {
+    FILE_BUNDLE(Constants.PROTOCOL_FEATURE_FILE_BUNDLE, () -> SyncManager.INLINE_CONTENT_THRESHOLD > 0),
+    INLINE_CONTENT(Constants.PROTOCOL_FEATURE_INLINE_CONTENT, () -> SyncManager.INLINE_CONTENT_THRESHOLD > 0),
+    DEFLATE(Constants.PROTOCOL_FEATURE_DEFLATE, () -> BlockCompressor.COMPRESSION != null),
+    RELIABLE_UDP(Constants.PROTOCOL_FEATURE_RELIABLE_UDP, () -> UDPReliableSession.ENABLED),
+    UDP_FRAGMENTATION(Constants.PROTOCOL_FEATURE_UDP_FRAGMENTATION,
+            () -> UDPReliableSession.ENABLED && UDPReliableSession.MAX_DATAGRAM_SIZE > 0),
+    UDP_BATCH(Constants.PROTOCOL_FEATURE_UDP_BATCH, () -> UDPSender.BATCH_ENABLED),
+    REQUEST_ID(Constants.PROTOCOL_FEATURE_REQUEST_ID, () -> Connection.REQUEST_ID_ENABLED),
+    HEARTBEAT(Constants.PROTOCOL_FEATURE_HEARTBEAT, () -> LivenessMonitor.HEARTBEAT_INTERVAL_IN_SEC > 0),
+    HYBRID_TRANSPORT(Constants.PROTOCOL_FEATURE_HYBRID_TRANSPORT, () -> Connection.HYBRID),
+    STRIPED_STREAMS(Constants.PROTOCOL_FEATURE_STRIPED_STREAMS, () -> Connection.DATA_STREAMS > 0);
+
+
+    private final String key;
+    private final BooleanSupplier enabled;
+
+
+    ProtocolFeature(String key, BooleanSupplier enabled) {
+        this.key = key;
+        this.enabled = enabled;
+    }
+
+
+    public String getKey() {
+        return key;
+    }
+
+
+    /**
+     * @return true if this peer is configured to use the feature
+     */
+    public boolean isEnabled() {
+        return enabled.getAsBoolean();
+    }
+
+
+    /**
+     * @return keys of all the features enabled on this peer
+     */
+    public static ArrayList<String> localFeatures() {
+        ArrayList<String> features = new ArrayList<>();
+        for (ProtocolFeature e : values()) {
+            if (e.isEnabled()) {
+                features.add(e.key);
+            }
+        }
+        return features;
+    }
+}
@@ -173,12 +173,14 @@ public abstract class ProtocolField implements IProtocol {
 
     public static class FileContent extends FilePosition {
         public String content;      // content
+        public String compression;  // compression of the content, optional
 
 
         @Override
         public void unmarshalFromJson(Document doc) {
             super.unmarshalFromJson(doc);
             this.content = doc.getString(PROTOCOL_FIELD_CONTENT);
+            this.compression = doc.getString(PROTOCOL_FIELD_COMPRESSION);
         }
 
 
@@ -186,6 +188,78 @@ public abstract class ProtocolField implements IProtocol {
         public void marshalToJson(Document doc) {
             super.marshalToJson(doc);
             doc.append(PROTOCOL_FIELD_CONTENT, this.content);
+            if (compression != null) {
+                doc.append(PROTOCOL_FIELD_COMPRESSION, this.compression);
+            }
+        }
+    }
+
+    public static class BundleFile extends FileDes {
+        public String content;      // content, only in requests
+        public Response response;   // only in responses
+
+
+        @Override
+        public void unmarshalFromJson(Document doc) {
+            super.unmarshalFromJson(doc);
+            this.content = doc.getString(PROTOCOL_FIELD_CONTENT);
+            if (doc.containsKey(PROTOCOL_FIELD_STATUS)) {
+                this.response = new Response();
+                this.response.unmarshalFromJson(doc);
+            }
+        }
+
+
+        @Override
+        public void marshalToJson(Document doc) {
+            super.marshalToJson(doc);
+            if (content != null) {
+                doc.append(PROTOCOL_FIELD_CONTENT, this.content);
+            }
+            if (response != null) {
+                response.marshalToJson(doc);
+            }
+        }
+    }
+
+    public static class InlineContent extends ProtocolField {
+        public String content;      // whole content of a small file, optional
+
+
+        @Override
+        public void unmarshalFromJson(Document doc) {
+            this.content = doc.getString(PROTOCOL_FIELD_CONTENT);
+        }
+
+
+        @Override
+        public void marshalToJson(Document doc) {
+            if (content != null) {
+                doc.append(PROTOCOL_FIELD_CONTENT, this.content);
+            }
+        }
+    }
+
+    public static class Features extends ProtocolField {
+        public ArrayList<String> features = new ArrayList<>();
+
+
+        @Override
+        public void unmarshalFromJson(Document doc) {
+            // optional, peers which do not support any feature will not send it
+            if (doc.containsKey(PROTOCOL_FIELD_FEATURES)) {
+                for (Object feature : (ArrayList<Object>) doc.get(PROTOCOL_FIELD_FEATURES)) {
+                    features.add((String) feature);
+                }
+            }
+        }
+
+
+        @Override
+        public void marshalToJson(Document doc) {
+            if (!features.isEmpty()) {
+                doc.append(PROTOCOL_FIELD_FEATURES, features);
+            }
         }
     }
 
@@ -28,7 +28,11 @@ public enum ProtocolType {
     DIRECTORY_CREATE_REQUEST(Constants.PROTOCOL_TYPE_DIRECTORY_CREATE_REQUEST, Protocol.DirectoryCreateRequest.class),
     DIRECTORY_CREATE_RESPONSE(Constants.PROTOCOL_TYPE_DIRECTORY_CREATE_RESPONSE, Protocol.DirectoryCreateResponse.class),
     DIRECTORY_DELETE_REQUEST(Constants.PROTOCOL_TYPE_DIRECTORY_DELETE_REQUEST, Protocol.DirectoryDeleteRequest.class),
-    DIRECTORY_DELETE_RESPONSE(Constants.PROTOCOL_TYPE_DIRECTORY_DELETE_RESPONSE, Protocol.DirectoryDeleteResponse.class);
+    DIRECTORY_DELETE_RESPONSE(Constants.PROTOCOL_TYPE_DIRECTORY_DELETE_RESPONSE, Protocol.DirectoryDeleteResponse.class),
+    FILE_BUNDLE_REQUEST(Constants.PROTOCOL_TYPE_FILE_BUNDLE_REQUEST, Protocol.FileBundleRequest.class),
+    FILE_BUNDLE_RESPONSE(Constants.PROTOCOL_TYPE_FILE_BUNDLE_RESPONSE, Protocol.FileBundleResponse.class),
+    HEARTBEAT_REQUEST(Constants.PROTOCOL_TYPE_HEARTBEAT_REQUEST, Protocol.HeartbeatRequest.class),
+    HEARTBEAT_RESPONSE(Constants.PROTOCOL_TYPE_HEARTBEAT_RESPONSE, Protocol.HeartbeatResponse.class);
 
 
     private final String key;
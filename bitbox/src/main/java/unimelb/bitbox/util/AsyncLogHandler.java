@@ -0,0 +1,244 @@
+package unimelb.bitbox.util;
+
+
+import unimelb.bitbox.Constants;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.StreamHandler;
+
+
+/**
+ * AsyncLogHandler takes the log records off the logging threads, they are formatted and written
+ * by a background thread.
+ * <p>
+ * The records go through a fixed size ring buffer. When it is full the records are dropped and counted,
+ * the logging threads never wait for the output. The output is flushed when the buffer runs empty,
+ * not after every record. The source of a record is the name of its logger,
+ * finding the calling method would walk the stack of the logging thread.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class AsyncLogHandler extends Handler {
+
+    private static final boolean ENABLED = Boolean.parseBoolean(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_ASYNC_LOGGING, "true"));
+    private static final int BUFFER_SIZE = Integer.parseInt(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_LOG_BUFFER_SIZE, "8192"));
+
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int FLUSH_EVERY = 256;
+
+
+    /**
+     * Move the handlers of the root logger behind an AsyncLogHandler, the console one writes to stderr
+     * without flushing each record. Not thread-safe, should be called during the initialization stage
+     */
+    public static void install() {
+        if (!ENABLED) return;
+        Logger root = Logger.getLogger("");
+        ArrayList<Handler> targets = new ArrayList<>();
+        for (Handler handler : root.getHandlers()) {
+            root.removeHandler(handler);
+            if (handler instanceof ConsoleHandler) {
+                StreamHandler console = new StreamHandler(System.err, handler.getFormatter()) {
+                    @Override
+                    public synchronized void close() {
+                        // stderr stays open
+                        flush();
+                    }
+                };
+                console.setLevel(handler.getLevel());
+                targets.add(console);
+            } else {
+                targets.add(handler);
+            }
+        }
+        root.addHandler(new AsyncLogHandler(BUFFER_SIZE, targets.toArray(new Handler[0])));
+    }
+
+
+    private final Handler[] targets;
+    private final AtomicReferenceArray<LogRecord> slots;
+    private final int mask;
+    // next slot to take, only moved by the writer thread
+    private volatile long head = 0;
+    // next slot to claim
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    private final Thread writer;
+    private volatile boolean sleeping = false;
+    private volatile boolean closed = false;
+
+
+    /**
+     * Constructor
+     *
+     * @param capacity records the buffer holds, rounded up to a power of two
+     * @param targets  the handlers writing the records
+     */
+    public AsyncLogHandler(int capacity, Handler... targets) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.targets = targets;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+
+        writer = new Thread(this::write, "log writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        // the writer thread would find itself as the caller
+        record.setSourceClassName(record.getLoggerName());
+        record.setSourceMethodName(null);
+
+        long t;
+        do {
+            t = tail.get();
+            if (t - head >= slots.length()) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        slots.set((int) (t & mask), record);
+
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+
+    /**
+     * Wait until the records published so far are written, for at most a second
+     */
+    @Override
+    public void flush() {
+        long published = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (head < published && writer.isAlive() && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        flushTargets();
+    }
+
+
+    /**
+     * Write what is left and close the handlers behind
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Handler target : targets) {
+            target.close();
+        }
+    }
+
+
+    /**
+     * @return number of records dropped and not reported yet, because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+
+    // the writer thread
+    private void write() {
+        int unflushed = 0;
+        while (true) {
+            LogRecord record = poll();
+            if (record == null) {
+                long n = dropped.getAndSet(0);
+                if (n > 0) {
+                    LogRecord warning = new LogRecord(Level.WARNING, n + " log records dropped, the buffer is full");
+                    warning.setLoggerName(AsyncLogHandler.class.getName());
+                    warning.setSourceClassName(AsyncLogHandler.class.getName());
+                    publishToTargets(warning);
+                    unflushed++;
+                }
+                if (unflushed > 0) {
+                    flushTargets();
+                    unflushed = 0;
+                }
+                if (closed) {
+                    return;
+                }
+                sleeping = true;
+                if (isEmpty() && !closed) {
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                }
+                sleeping = false;
+                continue;
+            }
+
+            publishToTargets(record);
+            if (++unflushed >= FLUSH_EVERY) {
+                flushTargets();
+                unflushed = 0;
+            }
+        }
+    }
+
+
+    // a claimed slot may not be filled yet, it is taken next time
+    private LogRecord poll() {
+        long h = head;
+        int i = (int) (h & mask);
+        LogRecord record = slots.get(i);
+        if (record == null) {
+            return null;
+        }
+        slots.lazySet(i, null);
+        head = h + 1;
+        return record;
+    }
+
+
+    private boolean isEmpty() {
+        return slots.get((int) (head & mask)) == null;
+    }
+
+
+    private void publishToTargets(LogRecord record) {
+        for (Handler target : targets) {
+            try {
+                target.publish(record);
+            } catch (RuntimeException e) {
+                reportError(null, e, ErrorManager.WRITE_FAILURE);
+            }
+        }
+    }
+
+
+    private void flushTargets() {
+        for (Handler target : targets) {
+            target.flush();
+        }
+    }
+}
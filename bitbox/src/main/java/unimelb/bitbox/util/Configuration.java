@@ -54,6 +54,12 @@ public class Configuration {
     }
 
 
+    // for optional fields, fall back to the given default when the key is missing
+    public static String getConfigurationValue(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
+
     // private constructor to prevent initialization
     private Configuration() {
     }
@@ -4,6 +4,8 @@ package unimelb.bitbox.util;
 import javafx.util.Pair;
 import unimelb.bitbox.protocol.Protocol;
 import unimelb.bitbox.util.ConnectionUtils.Peer.Connection;
+import unimelb.bitbox.util.FileSystem.BlockCompressor;
+import unimelb.bitbox.util.FileSystem.TransferScheduler;
 
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
@@ -94,6 +96,11 @@ public class ConnectionManager {
     public boolean removeConnection(Connection conn) {
         HostPort hostPort = conn.getHostPort();
         boolean res = connectionMap.remove(hostPort, conn);
+        if (res) {
+            TransferScheduler.getInstance().removePeer(hostPort);
+            BlockCompressor.getInstance().removePeer(hostPort);
+            MessageHandler.removeConnection(conn);
+        }
         if (res && conn.type == Connection.ConnectionType.INCOMING) {
             synchronized (this) {
                 incomingConnCounter -= 1;
@@ -112,6 +119,14 @@ public class ConnectionManager {
         return new Pair<>(true, "Disconnected");
     }
 
+    /**
+     * @param hostPort host&port of a peer
+     * @return the connection with the peer, null if not connected
+     */
+    public Connection getConnection(HostPort hostPort) {
+        return connectionMap.get(hostPort);
+    }
+
     /**
      * @param hostPort
      * @return true if if we already connected with the given host&port
@@ -132,4 +147,12 @@ public class ConnectionManager {
         return hostPorts;
     }
 
+    /**
+     * @return a list of all the active connections
+     */
+    public ArrayList<Connection> getConnections() {
+        // no need to lock
+        return new ArrayList<>(connectionMap.values());
+    }
+
 }
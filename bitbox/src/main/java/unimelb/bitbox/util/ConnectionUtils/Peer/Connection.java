@@ -1,8 +1,23 @@
 package unimelb.bitbox.util.ConnectionUtils.Peer;
 
+import unimelb.bitbox.Constants;
 import unimelb.bitbox.protocol.IResponse;
 import unimelb.bitbox.protocol.Protocol;
+import unimelb.bitbox.protocol.ProtocolFeature;
+import unimelb.bitbox.protocol.ProtocolType;
+import unimelb.bitbox.util.Configuration;
 import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.LogSampler;
+import unimelb.bitbox.util.Metrics.Counter;
+import unimelb.bitbox.util.Metrics.MetricsRegistry;
+import unimelb.bitbox.util.ThreadPool.LaneExecutor;
+import unimelb.bitbox.util.ThreadPool.Priority;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Connection is an abstract class for TCP and UDP
@@ -14,8 +29,44 @@ import unimelb.bitbox.util.HostPort;
  */
 public abstract class Connection {
 
+    /**
+     * True if this peer offers request ids, they are used when both peers offer them
+     */
+    public static final boolean REQUEST_ID_ENABLED = Boolean.parseBoolean(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_REQUEST_ID, "true"));
+
+    /**
+     * True in hybrid mode, messages go over UDP except the file bytes which go over a TCP connection to the same peer
+     */
+    public static final boolean HYBRID = Configuration.getConfigurationValue(Constants.CONFIG_FIELD_MODE, "tcp")
+            .trim().equalsIgnoreCase(Constants.CONFIG_MODE_HYBRID);
+    static final int HYBRID_TCP_PORT = HYBRID ?
+            Integer.parseInt(Configuration.getConfigurationValue(Constants.CONFIG_FIELD_PORT)) : 0;
+
+    /**
+     * Extra TCP connections per peer carrying the file bytes in TCP mode, 0 to send everything over one connection
+     */
+    public static final int DATA_STREAMS = Configuration.getConfigurationValue(Constants.CONFIG_FIELD_MODE, "tcp")
+            .trim().equalsIgnoreCase(Constants.CONFIG_MODE_TCP) ? Math.max(0, Integer.parseInt(
+            Configuration.getConfigurationValue(Constants.CONFIG_FIELD_TCP_STREAMS, "0"))) : 0;
+
+    // messages received and not handled yet before the reader waits or drops
+    private static final int LANE_CAPACITY = Integer.parseInt(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_LANE_CAPACITY, "1000"));
+
+    // messages sent by type, the ones received are counted by the MessageHandler
+    private static final Counter[] MESSAGES_SENT = new Counter[ProtocolType.values().length];
+
+    static {
+        for (ProtocolType protocolType : ProtocolType.values()) {
+            MESSAGES_SENT[protocolType.ordinal()] = MetricsRegistry.getInstance().counter(
+                    "bitbox_messages_sent_total", "Messages sent to the peers", "type", protocolType.getKey());
+        }
+    }
+
     protected Connection(ConnectionType type) {
         this.type = type;
+        this.lane = LaneExecutor.getInstance().newLane(type + " connection", Priority.NORMAL, LANE_CAPACITY);
     }
 
     /**
@@ -28,8 +79,25 @@ public abstract class Connection {
 
     protected HostPort hostPort;
     protected static final int MAX_LOG_LEN = 250;
+    // a line per message sent and received
+    protected static final LogSampler MESSAGE_LOG = LogSampler.get("message");
+
+    // features advertised by the other peer during the handshake
+    private volatile Set<String> peerFeatures = Collections.emptySet();
+    private final AtomicLong lastRequestId = new AtomicLong(0);
+
+    // liveness, in System.nanoTime()
+    private volatile long lastReceived = System.nanoTime();
+    volatile long lastHeartbeat = lastReceived; // only used by the LivenessMonitor
+    // smoothed round trip time of the heartbeats in millis, -1 until the first sample
+    private volatile long srtt = -1;
+    // bytes on the wire once the peer is known, shared by the connections of the same peer
+    private volatile Counter bytesReceived = null;
+    private volatile Counter bytesSent = null;
 
     public final ConnectionType type;
+    // the messages received are handled one by one in this lane, in the order they arrive
+    protected final LaneExecutor.Lane lane;
 
 
     public abstract void sendAsync(Protocol protocol);
@@ -48,13 +116,124 @@ public abstract class Connection {
         return (hostPort == null) ? "[Unknown]" : "[" + hostPort.toString() + "]";
     }
 
+    /**
+     * Run a task in the lane of this connection, after the messages received before it
+     *
+     * @param task the task
+     */
+    public void submitToLane(Runnable task) {
+        lane.submit(task);
+    }
+
     public HostPort getHostPort() {
         return hostPort;
     }
 
+    public void setPeerFeatures(Collection<String> features) {
+        peerFeatures = Collections.unmodifiableSet(new HashSet<>(features));
+    }
+
+    /**
+     * @param feature a protocol feature
+     * @return true if both peers of this connection enabled the given feature
+     */
+    public boolean supportsFeature(ProtocolFeature feature) {
+        return feature.isEnabled() && peerFeatures.contains(feature.getKey());
+    }
+
+    /**
+     * @return a new request id unique on this connection, 0 if the peer does not echo request ids
+     */
+    public long nextRequestId() {
+        return supportsFeature(ProtocolFeature.REQUEST_ID) ? lastRequestId.incrementAndGet() : 0;
+    }
+
+    /**
+     * Record that a message is received, the peer is alive
+     */
+    public void markReceived() {
+        lastReceived = System.nanoTime();
+    }
+
+    /**
+     * @return System.nanoTime() when the last message was received
+     */
+    public long getLastReceived() {
+        return lastReceived;
+    }
+
+    /**
+     * Add a round trip time sample, only called for heartbeat responses
+     *
+     * @param sample round trip time in millis
+     */
+    public void updateRtt(long sample) {
+        long rtt = srtt;
+        srtt = (rtt < 0) ? sample : (7 * rtt + sample) / 8;
+    }
+
+    /**
+     * @return smoothed round trip time in millis, -1 if not measured yet
+     */
+    public long getRtt() {
+        return srtt;
+    }
+
+    /**
+     * @return number of connections the file bytes of this peer are spread over
+     */
+    public int getStreamCount() {
+        return 1;
+    }
+
+    /**
+     * Count the bytes received from the peer, nothing is counted before the peer is known
+     *
+     * @param bytes bytes on the wire
+     */
+    protected void countReceived(long bytes) {
+        Counter counter = bytesReceived;
+        if (counter == null) {
+            if (hostPort == null) return;
+            counter = bytesReceived = MetricsRegistry.getInstance().counter("bitbox_peer_received_bytes_total",
+                    "Bytes received from the peer", "peer", hostPort.toString());
+        }
+        counter.add(bytes);
+    }
+
+    /**
+     * Count the bytes sent to the peer, nothing is counted before the peer is known
+     *
+     * @param bytes bytes on the wire
+     */
+    protected void countSent(long bytes) {
+        Counter counter = bytesSent;
+        if (counter == null) {
+            if (hostPort == null) return;
+            counter = bytesSent = MetricsRegistry.getInstance().counter("bitbox_peer_sent_bytes_total",
+                    "Bytes sent to the peer", "peer", hostPort.toString());
+        }
+        counter.add(bytes);
+    }
+
+    // counted once when marshalled, not again when sent over another connection or retransmitted
+    protected static void countMessage(Protocol protocol) {
+        MESSAGES_SENT[ProtocolType.typeOfProtocol(protocol).ordinal()].inc();
+    }
+
+    // file bytes may go over a connection other than the one of the peer, the other messages never do
+    protected static boolean isFileBytes(Protocol protocol) {
+        ProtocolType type = ProtocolType.typeOfProtocol(protocol);
+        return type == ProtocolType.FILE_BYTES_REQUEST || type == ProtocolType.FILE_BYTES_RESPONSE;
+    }
+
     public abstract void markRequestAsDone(IResponse response);
 
     public abstract boolean allowInvalidMessage();
 
+    // size of a block of file bytes
     public abstract long getBlockSize();
+
+    // largest other message, like a bundle or inline file content, that the connection carries
+    public abstract long getMessageSize();
 }
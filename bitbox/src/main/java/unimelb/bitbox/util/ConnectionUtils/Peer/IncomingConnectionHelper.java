@@ -2,6 +2,7 @@ package unimelb.bitbox.util.ConnectionUtils.Peer;
 
 import unimelb.bitbox.protocol.Protocol;
 import unimelb.bitbox.protocol.ProtocolFactory;
+import unimelb.bitbox.protocol.ProtocolFeature;
 import unimelb.bitbox.util.ConnectionManager;
 import unimelb.bitbox.util.HostPort;
 
@@ -29,11 +30,25 @@ public abstract class IncomingConnectionHelper {
 
     protected String handshakeResponseJsonCache;
 
+    private final String advertisedName;
+    private final int port;
+
     protected IncomingConnectionHelper(String advertisedName, int port) {
+        this.advertisedName = advertisedName;
+        this.port = port;
+        handshakeResponseJsonCache = ProtocolFactory.marshalProtocol(newHandshakeResponse());
+    }
+
+    /**
+     * @return the handshake response of this peer, for the fields that differ by connection
+     */
+    protected Protocol.HandshakeResponse newHandshakeResponse() {
         Protocol.HandshakeResponse handshakeResponse = new Protocol.HandshakeResponse();
         handshakeResponse.peer.host = advertisedName;
         handshakeResponse.peer.port = port;
-        handshakeResponseJsonCache = ProtocolFactory.marshalProtocol(handshakeResponse);
+        handshakeResponse.features.features = ProtocolFeature.localFeatures();
+        handshakeResponse.tcpPort = Connection.HYBRID ? Connection.HYBRID_TCP_PORT : 0;
+        return handshakeResponse;
     }
 
     /**
@@ -0,0 +1,118 @@
+package unimelb.bitbox.util.ConnectionUtils.Peer;
+
+
+import unimelb.bitbox.Constants;
+import unimelb.bitbox.protocol.Protocol;
+import unimelb.bitbox.protocol.ProtocolFeature;
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.ConnectionManager;
+import unimelb.bitbox.util.Scheduler;
+import unimelb.bitbox.util.ThreadPool.Priority;
+import unimelb.bitbox.util.ThreadPool.PriorityTask;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * LivenessMonitor is a singleton class which finds the dead peers of both TCP and UDP connections.
+ * <p>
+ * Any message received shows the peer is alive, so a heartbeat is only sent on a connection
+ * which has been idle for the heartbeat interval. The response echoes the timestamp of the request,
+ * giving a round trip time sample for free.
+ * A connection with nothing received for the heartbeat timeout is closed, outgoing ones reconnect later.
+ * Only used when both peers advertise heartbeats, older peers would take them as invalid messages.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class LivenessMonitor {
+    private static Logger log = Logger.getLogger(LivenessMonitor.class.getName());
+
+    /**
+     * Idle time before a heartbeat is sent, 0 disables heartbeats
+     */
+    public static final int HEARTBEAT_INTERVAL_IN_SEC = Integer.parseInt(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_HEARTBEAT_INTERVAL, "15"));
+    private static final int HEARTBEAT_TIMEOUT_IN_SEC = Integer.parseInt(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_HEARTBEAT_TIMEOUT, "45"));
+
+    private static LivenessMonitor instance = new LivenessMonitor();
+
+
+    public static LivenessMonitor getInstance() {
+        return instance;
+    }
+
+
+    private LivenessMonitor() {
+    }
+
+
+    /**
+     * Register the periodic check, not thread-safe, should be called during the initialization stage
+     */
+    public void init() {
+        if (HEARTBEAT_INTERVAL_IN_SEC <= 0) return;
+
+        // a few checks per interval, so a dead peer is found soon after the timeout
+        Scheduler.getInstance().addTask(Math.max(1, HEARTBEAT_INTERVAL_IN_SEC / 3), TimeUnit.SECONDS,
+                new PriorityTask(
+                        "check connection liveness",
+                        Priority.HIGH,
+                        this::check
+                ));
+    }
+
+
+    /**
+     * Answer a heartbeat
+     *
+     * @param request the heartbeat received
+     * @param conn    the connection it is received from
+     */
+    public void handleHeartbeat(Protocol.HeartbeatRequest request, Connection conn) {
+        Protocol.HeartbeatResponse response = new Protocol.HeartbeatResponse();
+        response.timestamp = request.timestamp;
+        conn.sendAsync(response);
+    }
+
+
+    /**
+     * Take the round trip time sample of a heartbeat response
+     *
+     * @param response the response received
+     * @param conn     the connection it is received from
+     */
+    public void handleHeartbeatResponse(Protocol.HeartbeatResponse response, Connection conn) {
+        long rtt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - response.timestamp);
+        if (rtt < 0) return;
+        conn.updateRtt(rtt);
+        log.fine(conn.currentHostPort() + " rtt: " + rtt + "ms, smoothed: " + conn.getRtt() + "ms");
+    }
+
+
+    private void check() {
+        long now = System.nanoTime();
+        long interval = TimeUnit.SECONDS.toNanos(HEARTBEAT_INTERVAL_IN_SEC);
+        long timeout = TimeUnit.SECONDS.toNanos(HEARTBEAT_TIMEOUT_IN_SEC);
+
+        for (Connection conn : ConnectionManager.getInstance().getConnections()) {
+            if (!conn.supportsFeature(ProtocolFeature.HEARTBEAT)) continue;
+
+            long idle = now - conn.getLastReceived();
+            if (idle > timeout) {
+                log.warning(conn.currentHostPort() + " Nothing received for " +
+                        TimeUnit.NANOSECONDS.toSeconds(idle) + "s, closing the connection");
+                conn.close();
+            } else if (idle >= interval && now - conn.lastHeartbeat >= interval) {
+                conn.lastHeartbeat = now;
+                Protocol.HeartbeatRequest heartbeat = new Protocol.HeartbeatRequest();
+                heartbeat.timestamp = now;
+                conn.sendAsync(heartbeat);
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package unimelb.bitbox.util.ConnectionUtils.Peer;
 import javafx.util.Pair;
 import unimelb.bitbox.Constants;
 import unimelb.bitbox.protocol.Protocol;
+import unimelb.bitbox.protocol.ProtocolFeature;
 import unimelb.bitbox.util.Configuration;
 import unimelb.bitbox.util.ConnectionManager;
 import unimelb.bitbox.util.HostPort;
@@ -37,6 +38,8 @@ public abstract class OutgoingConnectionHelper {
         handshakeRequest = new Protocol.HandshakeRequest();
         handshakeRequest.peer.host = advertisedName;
         handshakeRequest.peer.port = port;
+        handshakeRequest.features.features = ProtocolFeature.localFeatures();
+        handshakeRequest.tcpPort = Connection.HYBRID ? Connection.HYBRID_TCP_PORT : 0;
 
         queue = new PriorityQueue<>(Comparator.comparingLong(ConnectionTask::getExecutionTime));
 
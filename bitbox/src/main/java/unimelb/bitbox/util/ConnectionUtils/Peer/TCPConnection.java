@@ -11,10 +11,14 @@ import unimelb.bitbox.util.ThreadPool.PriorityTask;
 import unimelb.bitbox.util.ThreadPool.PriorityThreadPool;
 
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -33,6 +37,9 @@ class TCPConnection extends Connection {
 
     private static final long BLOCK_SIZE =
             Long.parseLong(Configuration.getConfigurationValue(Constants.CONFIG_FIELD_BLOCKSIZE));
+    // lets the OS find half-open connections of peers without heartbeats
+    private static final boolean KEEP_ALIVE = Boolean.parseBoolean(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_TCP_KEEP_ALIVE, "true"));
 
     private final Socket socket;
     private final BufferedReader bufferedReader;
@@ -44,11 +51,17 @@ class TCPConnection extends Connection {
     private boolean active;
     private boolean isClosed = false;
     private TCPOutgoingConnectionHelper outgoingConnectionHelper = null;
+    // for a data stream or in hybrid mode, the connection this one carries the file bytes for
+    private Connection primary = null;
+    // the data streams of this peer, the file bytes are spread over them
+    private final CopyOnWriteArrayList<TCPConnection> streams = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextStream = new AtomicInteger(0);
 
     // main constructor
     private TCPConnection(ConnectionType type, Socket socket) throws IOException {
         super(type);
         this.socket = socket;
+        socket.setKeepAlive(KEEP_ALIVE);
         bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
         bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
         active = false;
@@ -112,9 +125,13 @@ class TCPConnection extends Connection {
         try {
             this.socket.setSoTimeout(timeout);
             msg = bufferedReader.readLine();
-            if (msg != null)
-                log.info(currentHostPort() + " Message Received: "
-                        + msg.substring(0, Math.min(MAX_LOG_LEN, msg.length())));
+            if (msg != null) {
+                countReceived(msg.length() + 1);
+                if (MESSAGE_LOG.isLoggable(log, Level.INFO)) {
+                    MESSAGE_LOG.log(log, Level.INFO, "{0} Message Received: {1}", currentHostPort(),
+                            msg.substring(0, Math.min(MAX_LOG_LEN, msg.length())));
+                }
+            }
         } catch (IOException e) {
             if (e instanceof SocketTimeoutException) {
                 throw (SocketTimeoutException) e;
@@ -130,8 +147,11 @@ class TCPConnection extends Connection {
             try {
                 bufferedWriter.write(msg + '\n');
                 bufferedWriter.flush();
-                log.info(currentHostPort() + " Message Sent: "
-                        + msg.substring(0, Math.min(MAX_LOG_LEN, msg.length())));
+                countSent(msg.length() + 1);
+                if (MESSAGE_LOG.isLoggable(log, Level.INFO)) {
+                    MESSAGE_LOG.log(log, Level.INFO, "{0} Message Sent: {1}", currentHostPort(),
+                            msg.substring(0, Math.min(MAX_LOG_LEN, msg.length())));
+                }
             } catch (IOException e) {
                 // log
                 close();
@@ -142,7 +162,19 @@ class TCPConnection extends Connection {
 
     @Override
     public void sendAsync(Protocol protocol) {
+        if (!streams.isEmpty() && isFileBytes(protocol)) {
+            // round robin, the list only changes when the peer connects or disconnects
+            int i = Math.floorMod(nextStream.getAndIncrement(), streams.size());
+            try {
+                streams.get(i).sendAsync(protocol);
+                return;
+            } catch (IndexOutOfBoundsException e) {
+                // closed meanwhile, fall back to this connection
+            }
+        }
+
         String msg = ProtocolFactory.marshalProtocol(protocol);
+        countMessage(protocol);
         boolean isEmpty;
         synchronized (sendingQueue) {
             isEmpty = sendingQueue.isEmpty();
@@ -168,6 +200,7 @@ class TCPConnection extends Connection {
     public void abortWithInvalidProtocol(String additionalMsg) {
         Protocol.InvalidProtocol invalidProtocol = new Protocol.InvalidProtocol();
         invalidProtocol.msg = additionalMsg;
+        countMessage(invalidProtocol);
         send(ProtocolFactory.marshalProtocol(invalidProtocol));
         close();
     }
@@ -187,6 +220,16 @@ class TCPConnection extends Connection {
         return BLOCK_SIZE;
     }
 
+    @Override
+    public long getMessageSize() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    public int getStreamCount() {
+        return Math.max(1, streams.size());
+    }
+
 
     /**
      * close this connection
@@ -214,7 +257,18 @@ class TCPConnection extends Connection {
             sendingQueue.clear();
         }
 
-        if (active) {
+        // the data streams go with the peer
+        for (TCPConnection stream : streams) {
+            stream.close(false);
+        }
+        streams.clear();
+
+        if (active && primary != null) {
+            active = false;
+            thread.interrupt();
+            // the peer is one logical connection, it reconnects as a whole
+            primary.close(allowReconnect);
+        } else if (active) {
             active = false;
             thread.interrupt();
             // unregister from ConnectionManager
@@ -243,6 +297,53 @@ class TCPConnection extends Connection {
         }
     }
 
+    /**
+     * Start carrying the file bytes of another connection, as a data stream or in hybrid mode,
+     * it is not registered in the {@link ConnectionManager} and the messages received are handled as the primary's
+     *
+     * @param primary the connection of the peer
+     */
+    void activeAsBulk(Connection primary) {
+        if (!active) {
+            active = true;
+            this.primary = primary;
+            this.hostPort = primary.getHostPort();
+            thread = new Thread(this::work);
+            thread.start();
+        }
+    }
+
+    /**
+     * Spread the file bytes of this peer over another TCP connection
+     *
+     * @param stream the data stream, activated by the caller
+     * @return false if this connection is closed or already has all the streams
+     */
+    boolean attachStream(TCPConnection stream) {
+        synchronized (socket) {
+            if (!acceptsStream()) {
+                return false;
+            }
+            streams.add(stream);
+        }
+        log.info(currentHostPort() + " Data stream " + streams.size() + " attached");
+        return true;
+    }
+
+    /**
+     * @return true if another data stream can be attached
+     */
+    boolean acceptsStream() {
+        return !isClosed && streams.size() < DATA_STREAMS;
+    }
+
+    /**
+     * @return the address of the peer
+     */
+    InetAddress getRemoteAddress() {
+        return socket.getInetAddress();
+    }
+
     /**
      * @return true if the connection is active (passed handshake)
      */
@@ -273,8 +374,11 @@ class TCPConnection extends Connection {
     private void work() {
         try {
 
-            // first sync
-            SyncManager.getInstance().syncWithOneAsync(this);
+            // first sync, done by the primary for a data stream
+            Connection handler = (primary != null) ? primary : this;
+            if (primary == null) {
+                SyncManager.getInstance().syncWithOneAsync(this);
+            }
 
             while (!thread.isInterrupted()) {
                 try {
@@ -282,11 +386,8 @@ class TCPConnection extends Connection {
                     String msg = this.waitForOneMessage();
                     if (msg == null) break;
 
-                    PriorityThreadPool.getInstance().submitTask(new PriorityTask(
-                            "Connection: MessageHandler",
-                            Priority.NORMAL,
-                            () -> MessageHandler.handleMessage(msg, this)
-                    ));
+                    // stop reading while the messages are not handled, TCP slows down the peer
+                    lane.put(() -> MessageHandler.handleMessage(msg, handler));
 
                 } catch (Exception e) {
                     log.warning(currentHostPort() + ", Exception: " + e.toString() + "");
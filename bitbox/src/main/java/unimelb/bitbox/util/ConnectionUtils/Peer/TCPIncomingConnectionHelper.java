@@ -5,6 +5,7 @@ import unimelb.bitbox.Constants;
 import unimelb.bitbox.protocol.InvalidProtocolException;
 import unimelb.bitbox.protocol.Protocol;
 import unimelb.bitbox.protocol.ProtocolFactory;
+import unimelb.bitbox.protocol.ProtocolFeature;
 import unimelb.bitbox.protocol.ProtocolType;
 import unimelb.bitbox.util.ConnectionManager;
 import unimelb.bitbox.util.HostPort;
@@ -94,9 +95,13 @@ public class TCPIncomingConnectionHelper extends IncomingConnectionHelper {
             if (ProtocolType.typeOfProtocol(protocol) == ProtocolType.HANDSHAKE_REQUEST) {
                 Protocol.HandshakeRequest handshakeRequest = (Protocol.HandshakeRequest) protocol;
                 HostPort hostPort = handshakeRequest.peer;
+                if (attachBulk(conn, handshakeRequest) || attachStream(conn, handshakeRequest)) {
+                    return;
+                }
                 int res = ConnectionManager.getInstance().addConnection(conn, hostPort);
                 if (res == 0) {
                     // success
+                    conn.setPeerFeatures(handshakeRequest.features.features);
                     conn.send(handshakeResponseJsonCache);
                     conn.active(hostPort);
                     return;
@@ -126,4 +131,58 @@ public class TCPIncomingConnectionHelper extends IncomingConnectionHelper {
 
     }
 
+
+    // hybrid mode, join the UDP connection of the same peer to carry its file bytes
+    private boolean attachBulk(TCPConnection conn, Protocol.HandshakeRequest handshakeRequest) {
+        if (!Connection.HYBRID ||
+                !handshakeRequest.features.features.contains(ProtocolFeature.HYBRID_TRANSPORT.getKey())) {
+            return false;
+        }
+
+        Connection primary = ConnectionManager.getInstance().getConnection(handshakeRequest.peer);
+        if (!(primary instanceof UDPConnection) || !primary.supportsFeature(ProtocolFeature.HYBRID_TRANSPORT)) {
+            return false;
+        }
+        // only the peer of the UDP connection can join it
+        UDPConnection udpConnection = (UDPConnection) primary;
+        if (!udpConnection.getAddress().getAddress().equals(conn.getRemoteAddress())) {
+            return false;
+        }
+
+        // the response goes first, nothing else can be sent before the connection is attached
+        conn.send(handshakeResponseJsonCache);
+        if (udpConnection.attachBulk(conn)) {
+            conn.activeAsBulk(udpConnection);
+        } else {
+            conn.close();
+        }
+        return true;
+    }
+
+
+    // a data stream joins the TCP connection of the same peer to carry part of its file bytes
+    private boolean attachStream(TCPConnection conn, Protocol.HandshakeRequest handshakeRequest) {
+        if (handshakeRequest.stream <= 0) {
+            return false;
+        }
+
+        Connection primary = ConnectionManager.getInstance().getConnection(handshakeRequest.peer);
+        if (!(primary instanceof TCPConnection) || !primary.supportsFeature(ProtocolFeature.STRIPED_STREAMS)
+                || !((TCPConnection) primary).getRemoteAddress().equals(conn.getRemoteAddress())
+                || !((TCPConnection) primary).acceptsStream()) {
+            // never a peer of its own
+            conn.abortWithInvalidProtocol("No connection for the data stream");
+            return true;
+        }
+
+        // the response goes first, nothing else can be sent before the stream is attached
+        TCPConnection tcpConnection = (TCPConnection) primary;
+        conn.send(handshakeResponseJsonCache);
+        if (tcpConnection.attachStream(conn)) {
+            conn.activeAsBulk(tcpConnection);
+        } else {
+            conn.close();
+        }
+        return true;
+    }
 }
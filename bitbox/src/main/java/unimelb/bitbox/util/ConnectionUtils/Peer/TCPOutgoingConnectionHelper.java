@@ -5,9 +5,13 @@ import javafx.util.Pair;
 import unimelb.bitbox.protocol.InvalidProtocolException;
 import unimelb.bitbox.protocol.Protocol;
 import unimelb.bitbox.protocol.ProtocolFactory;
+import unimelb.bitbox.protocol.ProtocolFeature;
 import unimelb.bitbox.protocol.ProtocolType;
 import unimelb.bitbox.util.ConnectionManager;
 import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.ThreadPool.Priority;
+import unimelb.bitbox.util.ThreadPool.PriorityTask;
+import unimelb.bitbox.util.ThreadPool.PriorityThreadPool;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -89,7 +93,18 @@ public class TCPOutgoingConnectionHelper extends OutgoingConnectionHelper {
 
                     int res = ConnectionManager.getInstance().addConnection(conn, hostPort);
                     if (res == 0) {
+                        conn.setPeerFeatures(handshakeResponse.features.features);
                         conn.active(handshakeResponse.peer);
+                        if (conn.supportsFeature(ProtocolFeature.STRIPED_STREAMS)) {
+                            for (int i = 1; i <= Connection.DATA_STREAMS; i++) {
+                                int stream = i;
+                                PriorityThreadPool.getInstance().submitTask(new PriorityTask(
+                                        "Outgoing connection: data stream",
+                                        Priority.NORMAL,
+                                        () -> connectStream(conn, hostPort, stream)
+                                ));
+                            }
+                        }
                         return new Pair<>(true, "Connected");
                     } else {
                         // already exists
@@ -119,4 +134,35 @@ public class TCPOutgoingConnectionHelper extends OutgoingConnectionHelper {
         }
     }
 
+
+    // open one more connection to the peer for its file bytes, the peer just uses fewer streams if it fails
+    private void connectStream(TCPConnection conn, HostPort hostPort, int stream) {
+        Protocol.HandshakeRequest streamRequest = new Protocol.HandshakeRequest();
+        streamRequest.peer = handshakeRequest.peer;
+        streamRequest.features = handshakeRequest.features;
+        streamRequest.stream = stream;
+
+        TCPConnection streamConn = null;
+        try {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(hostPort.host, hostPort.port), TCP_CONNECTION_TIMEOUT);
+            streamConn = new TCPConnection(socket);
+            streamConn.send(ProtocolFactory.marshalProtocol(streamRequest));
+
+            String json = streamConn.waitForOneMessage(HANDSHAKE_TIMEOUT);
+            if (json != null
+                    && ProtocolType.typeOfProtocol(ProtocolFactory.parseProtocol(json)) == ProtocolType.HANDSHAKE_RESPONSE
+                    && conn.attachStream(streamConn)) {
+                streamConn.activeAsBulk(conn);
+                return;
+            }
+            log.warning(hostPort.toString() + " Data stream " + stream + " refused");
+        } catch (IOException | InvalidProtocolException e) {
+            log.warning(hostPort.toString() + " Unable to open data stream " + stream + ": " + e.toString());
+        }
+
+        if (streamConn != null) {
+            streamConn.close(false);
+        }
+    }
 }
@@ -6,20 +6,28 @@ import unimelb.bitbox.protocol.IRequest;
 import unimelb.bitbox.protocol.IResponse;
 import unimelb.bitbox.protocol.Protocol;
 import unimelb.bitbox.protocol.ProtocolFactory;
+import unimelb.bitbox.protocol.ProtocolFeature;
 import unimelb.bitbox.util.*;
+import unimelb.bitbox.util.Metrics.MetricsRegistry;
 import unimelb.bitbox.util.ThreadPool.Priority;
 import unimelb.bitbox.util.ThreadPool.PriorityTask;
 import unimelb.bitbox.util.ThreadPool.PriorityThreadPool;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -31,28 +39,74 @@ import java.util.logging.Logger;
  * @author Zijie Shen (741404)
  * @author Zijun Chen (813190)
  */
-public class UDPConnection extends Connection {
+public class UDPConnection extends Connection implements UDPReliableSession.Transport {
 
-    private static final long BLOCK_SIZE =
-            Math.min(Long.parseLong(Configuration.getConfigurationValue(Constants.CONFIG_FIELD_BLOCKSIZE)), 8192);
+    // used with fragmentation or when the file bytes go over TCP
+    private static final long LARGE_BLOCK_SIZE =
+            Long.parseLong(Configuration.getConfigurationValue(Constants.CONFIG_FIELD_BLOCKSIZE));
+    // otherwise a block has to fit in one datagram
+    private static final long BLOCK_SIZE = Math.min(LARGE_BLOCK_SIZE, 8192);
 
     protected static final long UDP_TIMEOUT_MS = Long.parseLong(Configuration.getConfigurationValue("udpTimeout"));
     protected static final int MAX_RETRY = Integer.parseInt(Configuration.getConfigurationValue("udpRetries"));
 
-    private static final ConcurrentHashMap<HostPort, UDPConnection> udpConnectionMap = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<InetSocketAddress, UDPConnection> udpConnectionMap = new ConcurrentHashMap<>();
     private static final int INCOMING_CONNECTION_FIRST_SYNC_WAIT_TIME = 1000;
+    // hybrid mode, the longest the first sync waits for the TCP connection of the file bytes
+    private static final int BULK_WAIT_TIME = 10000;
+    // deadlines of the requests waiting for a response and of the reliable sessions
+    private static final HashedWheelTimer RETRANSMISSION_TIMER =
+            new HashedWheelTimer("UDP retransmission", 10, TimeUnit.MILLISECONDS, 512);
     private static Logger log = Logger.getLogger(UDPConnection.class.getName());
 
-    private final DatagramSocket serverSocket;
-    private final InetAddress hostAddress;
+    static {
+        MetricsRegistry.getInstance().gauge("bitbox_udp_outbound_datagrams",
+                "Datagrams waiting for the UDP sender thread", () -> {
+                    long n = 0;
+                    for (UDPConnection conn : udpConnectionMap.values()) {
+                        n += conn.outbound.size();
+                    }
+                    return n;
+                });
+        MetricsRegistry.getInstance().gauge("bitbox_udp_queued_frames",
+                "Frames of the reliable sessions waiting for room in the congestion window", () -> {
+                    long n = 0;
+                    for (UDPConnection conn : udpConnectionMap.values()) {
+                        UDPReliableSession session = conn.session;
+                        if (session != null) n += session.getQueuedCount();
+                    }
+                    return n;
+                });
+    }
+
+    private final DatagramChannel channel;
+    // actual address of the peer, the hostPort may be an advertised name
+    private final InetSocketAddress address;
 
-    // use linkedHashMap to get LRU-liked order, so the oldest request should be in front
-    // default is accessOrder = false
-    private final LinkedHashMap<IRequest, WaitingInfo> waitingList = new LinkedHashMap<>();
+    // requests waiting for a response, each one with its own timeout
+    // keyed by the request id when the peer echoes it, otherwise by the request itself
+    private final HashMap<IRequest, WaitingInfo> waitingList = new HashMap<>();
+    private final InFlightTable<WaitingInfo> inFlight = new InFlightTable<>(); // guarded by waitingList
 
     private boolean isClosed = false;
     private boolean isActive = false;
 
+    // only set when the reliable layer is negotiated, the waiting list is not used then
+    private volatile UDPReliableSession session = null;
+
+    // datagrams waiting for the UDPSender
+    private final ConcurrentLinkedQueue<byte[]> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private volatile boolean batching = false;
+
+    // hybrid mode, the TCP connection carrying the file bytes of this peer
+    private volatile TCPConnection bulk = null;
+    private final AtomicBoolean firstSyncStarted = new AtomicBoolean(false);
+
+    // reliable UDP, session ids of this connection and of the peer, exchanged in the handshake
+    private final int sessionId = newSessionId();
+    private volatile int peerSessionId = 0;
+
     private UDPOutgoingConnectionHelper outgoingConnectionHelper;
 
 
@@ -62,55 +116,61 @@ public class UDPConnection extends Connection {
     protected Pair<Boolean, String> handshakeResult = null;
 
 
-    protected static boolean distributeMessage(DatagramPacket packet) {
-        UDPConnection connection =
-                udpConnectionMap.get(new HostPort(packet.getAddress().getHostAddress(), packet.getPort()));
+    // the datagram is decoded in the lane of the connection, not by the receiving thread
+    protected static boolean distributeMessage(InetSocketAddress address, byte[] data) {
+        UDPConnection connection = udpConnectionMap.get(address);
         if (connection == null) {
             return false;
         }
-        String msg = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
-        PriorityThreadPool.getInstance().submitTask(new PriorityTask(
-                "handle UDP request",
-                Priority.NORMAL,
-                () -> connection.receive(msg)
-        ));
-
+        connection.countReceived(data.length);
+        // the receiving thread serves all the peers and never waits, the peer sends it again
+        if (!connection.lane.offer(() -> connection.receiveDatagram(data))) {
+            log.fine(connection.currentHostPort() + " Overloaded, datagram dropped");
+        }
         return true;
     }
 
-    protected static void checkTimeoutRequest() {
+
+    // congestion state of each reliable session
+    protected static void logStatus() {
         for (UDPConnection conn : udpConnectionMap.values()) {
-            conn.retryTimeoutRequest();
+            UDPReliableSession session = conn.session;
+            if (session == null || session.getSentCount() == 0) continue;
+            log.info(String.format("%s cwnd: %.1f, srtt: %dms, base delay: %dms, queuing delay: %dms, " +
+                            "loss: %.2f%% (%d/%d), in flight: %d, queued: %d, reassembling: %d bytes",
+                    conn.currentHostPort(), session.getCwnd(), session.getSrtt(), session.getBaseDelay(),
+                    session.getQueuingDelay(), session.getLossRate() * 100, session.getRetransmittedCount(),
+                    session.getSentCount(), session.getInFlightCount(), session.getQueuedCount(),
+                    session.getReassemblyBytes()));
         }
     }
 
     /**
      * Constructor for incoming connection
      *
-     * @param serverSocket the established socket
-     * @param hostPort     host and port information
-     * @param hostAddress  host address
-     * @param actualPort   actual port
+     * @param channel  the bound channel
+     * @param hostPort host and port information
+     * @param address  actual address of the peer
      * @throws CException customized exception
      */
-    public UDPConnection(DatagramSocket serverSocket, HostPort hostPort, InetAddress hostAddress, int actualPort) throws CException {
+    public UDPConnection(DatagramChannel channel, HostPort hostPort, InetSocketAddress address) throws CException {
         super(ConnectionType.INCOMING);
         try {
             activeSemaphore.acquire();
         } catch (InterruptedException ignored) {
         }
-        this.serverSocket = serverSocket;
+        this.channel = channel;
         this.hostPort = hostPort;
         // allow the advertisedName be fake
         // actual one should be InetAddress.getByName(hostPort.host)
 
-        this.hostAddress = hostAddress;
-        if (this.hostPort.port != actualPort) {
+        this.address = address;
+        if (this.hostPort.port != address.getPort()) {
             throw new CException("Given port does not math with the actual port");
         }
 
         // register self
-        if (udpConnectionMap.putIfAbsent(new HostPort(this.hostAddress.getHostAddress(), hostPort.port), this) != null) {
+        if (udpConnectionMap.putIfAbsent(address, this) != null) {
             throw new CException("Connection already exists");
         }
     }
@@ -118,25 +178,25 @@ public class UDPConnection extends Connection {
     /**
      * Constructor for outgoing connection
      *
-     * @param serverSocket             the established socket
+     * @param channel                  the bound channel
      * @param hostPort                 host and port information
-     * @param hostAddress              host address
+     * @param address                  actual address of the peer
      * @param outgoingConnectionHelper the established outgoing connection helper
      * @throws CException customized exception
      */
-    public UDPConnection(DatagramSocket serverSocket, HostPort hostPort, InetAddress hostAddress, UDPOutgoingConnectionHelper outgoingConnectionHelper) throws CException {
+    public UDPConnection(DatagramChannel channel, HostPort hostPort, InetSocketAddress address, UDPOutgoingConnectionHelper outgoingConnectionHelper) throws CException {
         super(ConnectionType.OUTGOING);
         try {
             activeSemaphore.acquire();
         } catch (InterruptedException ignored) {
         }
-        this.serverSocket = serverSocket;
+        this.channel = channel;
         this.hostPort = hostPort;
         this.outgoingConnectionHelper = outgoingConnectionHelper;
-        this.hostAddress = hostAddress;
+        this.address = address;
 
         // register self
-        if (udpConnectionMap.putIfAbsent(new HostPort(this.hostAddress.getHostAddress(), hostPort.port), this) != null) {
+        if (udpConnectionMap.putIfAbsent(address, this) != null) {
             throw new CException("Connection already exists");
         }
     }
@@ -144,84 +204,280 @@ public class UDPConnection extends Connection {
     // Send protocol asynchronously
     @Override
     public void sendAsync(Protocol protocol) {
+        TCPConnection bulk = this.bulk;
+        if (bulk != null && isFileBytes(protocol)) {
+            // ordered and retransmitted by TCP, no need for the waiting list
+            bulk.sendAsync(protocol);
+            return;
+        }
+        countMessage(protocol);
+
+        UDPReliableSession session = this.session;
+        if (session != null) {
+            String msg = ProtocolFactory.marshalProtocol(protocol);
+            if (MESSAGE_LOG.isLoggable(log, Level.INFO)) {
+                MESSAGE_LOG.log(log, Level.INFO, "{0} Message sent: {1}", currentHostPort(),
+                        msg.substring(0, Math.min(MAX_LOG_LEN, msg.length())));
+            }
+            session.send(msg.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
         // add to waiting list if the protocol requires retry
+        long requestId = protocol.requestId;
         if (protocol instanceof IRequest) {
             IRequest request = (IRequest) protocol;
+            if (requestId == 0) {
+                // the same request object may be broadcast, so the id is not stored in it
+                requestId = nextRequestId();
+            }
             synchronized (waitingList) {
-                WaitingInfo waitingInfo = waitingList.remove(request);
+                WaitingInfo waitingInfo = (requestId != 0) ? inFlight.get(requestId) : waitingList.get(request);
                 if (waitingInfo == null) {
                     // new request, create new waiting info
-                    waitingInfo = new WaitingInfo();
+                    waitingInfo = new WaitingInfo(request, requestId);
+                    if (requestId != 0) {
+                        inFlight.put(requestId, waitingInfo);
+                    } else {
+                        waitingList.put(request, waitingInfo);
+                    }
                 } else {
-                    // still waiting for the same old request, reset the timestamp but keep the retryCount
-                    waitingInfo.timestamp = System.currentTimeMillis();
+                    // still waiting for the same old request, restart the timeout but keep the retryCount
+                    waitingInfo.timeout.cancel();
                 }
+                waitingInfo.timeout = scheduleRetry(waitingInfo);
+            }
+        }
+        sendDatagram(protocol, requestId);
+    }
 
-                // put at the back of waiting list
-                waitingList.put(request, waitingInfo);
+
+    /**
+     * Use a TCP connection for the file bytes of this peer, hybrid mode only
+     *
+     * @param conn the TCP connection, activated by the caller
+     * @return false if the connection is closed or already has one
+     */
+    boolean attachBulk(TCPConnection conn) {
+        synchronized (this) {
+            if (isClosed || bulk != null) {
+                return false;
             }
+            bulk = conn;
         }
-        sendDatagram(protocol);
+        log.info(currentHostPort() + " File bytes over TCP");
+        bulkSettled();
+        return true;
     }
 
 
-    private void sendDatagram(Protocol protocol) {
-        String msg = ProtocolFactory.marshalProtocol(protocol);
-        log.info(currentHostPort() + " Message sent: "
-                + msg.substring(0, Math.min(MAX_LOG_LEN, msg.length())));
-        byte[] buffer = msg.getBytes(StandardCharsets.UTF_8);
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, hostAddress, hostPort.port);
-        try {
-            serverSocket.send(packet);
-        } catch (IOException e) {
-            close();
+    /**
+     * Hybrid mode, the TCP connection for the file bytes is attached or will not be,
+     * the first sync held by {@link #active(boolean)} starts
+     */
+    void bulkSettled() {
+        if (firstSyncStarted.compareAndSet(false, true)) {
+            PriorityThreadPool.getInstance().submitTask(new PriorityTask(
+                    "UDP connection first sync",
+                    Priority.NORMAL,
+                    this::firstSync
+            ));
+        }
+    }
+
+
+    /**
+     * @return the session id the peer puts in the reliable UDP frames of this connection
+     */
+    long getSessionId() {
+        return sessionId & 0xFFFFFFFFL;
+    }
+
+
+    /**
+     * @param peerSessionId the session id of the peer from the handshake, 0 if it did not send one
+     */
+    void setPeerSessionId(long peerSessionId) {
+        this.peerSessionId = (int) peerSessionId;
+    }
+
+
+    // a random session id, never 0 so it is sent in the handshake
+    private static int newSessionId() {
+        int id;
+        do {
+            id = ThreadLocalRandom.current().nextInt();
+        } while (id == 0);
+        return id;
+    }
+
+
+    /**
+     * @return the address of the peer
+     */
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+
+    private void sendDatagram(Protocol protocol, long requestId) {
+        String msg = ProtocolFactory.marshalProtocol(protocol, requestId);
+        if (MESSAGE_LOG.isLoggable(log, Level.INFO)) {
+            MESSAGE_LOG.log(log, Level.INFO, "{0} Message sent: {1}", currentHostPort(),
+                    msg.substring(0, Math.min(MAX_LOG_LEN, msg.length())));
+        }
+        enqueue(msg.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    // queue a datagram for the sender thread
+    private void enqueue(byte[] datagram) {
+        outbound.add(datagram);
+        if (flushScheduled.compareAndSet(false, true)) {
+            UDPSender.getInstance().schedule(this);
+        }
+    }
+
+
+    /**
+     * Send the queued datagrams, only called by the {@link UDPSender} thread
+     *
+     * @param buffer the buffer of the sender thread
+     */
+    void flush(ByteBuffer buffer) {
+        // cleared first, anything queued from now on schedules another flush
+        flushScheduled.set(false);
+
+        ArrayList<byte[]> datagrams = new ArrayList<>();
+        byte[] datagram;
+        while (datagrams.size() < UDPSender.MAX_DATAGRAMS_PER_FLUSH && (datagram = outbound.poll()) != null) {
+            datagrams.add(datagram);
+        }
+
+        while (!datagrams.isEmpty()) {
+            ByteBuffer out = buffer;
+            if (!batching || UDPSender.batch(datagrams, buffer) == 0) {
+                out = UDPSender.single(datagrams.remove(0), buffer);
+            }
+            try {
+                countSent(channel.send(out, address));
+            } catch (ClosedChannelException e) {
+                close();
+                return;
+            } catch (IOException e) {
+                // the datagram is lost, retransmission takes care of it
+                log.warning(currentHostPort() + " Failed to send datagram: " + e.getMessage());
+            }
+        }
+
+        // the limit was reached, let the other connections send first
+        if (!outbound.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+            UDPSender.getInstance().schedule(this);
         }
     }
 
     public void active() {
+        active(false);
+    }
+
+    /**
+     * @param awaitBulk hybrid mode, hold the first sync until the TCP connection for the file bytes
+     *                  is settled, so the blocks are requested in the size it serves
+     */
+    public void active(boolean awaitBulk) {
         synchronized (this) {
             if (isActive) {
                 return;
             }
+            if (supportsFeature(ProtocolFeature.RELIABLE_UDP)) {
+                int maxDatagramSize = supportsFeature(ProtocolFeature.UDP_FRAGMENTATION) ?
+                        UDPReliableSession.MAX_DATAGRAM_SIZE : 0;
+                session = new UDPReliableSession(this, UDP_TIMEOUT_MS, MAX_RETRY, UDPPacer.getInstance(),
+                        maxDatagramSize, RETRANSMISSION_TIMER, sessionId, peerSessionId);
+                log.info(currentHostPort() + " Using reliable UDP" +
+                        (session.isFragmenting() ? ", fragmented to " + maxDatagramSize + " bytes" : ""));
+            }
+            batching = supportsFeature(ProtocolFeature.UDP_BATCH);
             isActive = true;
             activeSemaphore.release();
         }
 
-        // trigger first sync
-        PriorityThreadPool.getInstance().submitTask(new PriorityTask(
-                "UDP connection first sync",
-                Priority.NORMAL,
-                this::firstSync
-        ));
+        // trigger first sync, in hybrid mode not later than the wait for the TCP connection
+        if (awaitBulk) {
+            RETRANSMISSION_TIMER.schedule(this::bulkSettled, BULK_WAIT_TIME, TimeUnit.MILLISECONDS);
+        } else {
+            bulkSettled();
+        }
+    }
+
+    private HashedWheelTimer.Timeout scheduleRetry(WaitingInfo info) {
+        return RETRANSMISSION_TIMER.schedule(() -> retryRequest(info), UDP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
     }
 
-    private void retryTimeoutRequest() {
-        // note that every thing in waiting list is time ordered
+    // no response in time (run on the timer thread)
+    private void retryRequest(WaitingInfo info) {
+        boolean retry;
         synchronized (waitingList) {
-            while (!waitingList.isEmpty()) {
-                // get the first one
-                Map.Entry<IRequest, UDPConnection.WaitingInfo> entry = waitingList.entrySet().iterator().next();
-                if (entry.getValue().timestamp + UDP_TIMEOUT_MS > System.currentTimeMillis()) {
-                    // not timeout yet.
-                    return;
-                }
+            // answered or sent again in the meantime
+            WaitingInfo current = (info.requestId != 0) ? inFlight.get(info.requestId) : waitingList.get(info.request);
+            if (current != info) {
+                return;
+            }
+            retry = info.doRetry();
+            if (retry) {
+                info.timeout = scheduleRetry(info);
+            } else if (info.requestId != 0) {
+                inFlight.remove(info.requestId);
+            } else {
+                waitingList.remove(info.request);
+            }
+        }
 
-                // timeout
-                IRequest request = entry.getKey();
-                WaitingInfo info = entry.getValue();
-                waitingList.remove(request);
+        if (!retry) {
+            // out of retry count, abort
+            this.close();
+        } else {
+            UDPReliableSession.RETRANSMITS.inc();
+            this.sendDatagram((Protocol) info.request, info.requestId);
+        }
+    }
 
-                if (!info.doRetry()) {
-                    // out of retry count, abort
-                    this.close();
-                    return;
-                }
 
-                this.sendDatagram((Protocol) request);
+    @Override
+    public void sendFrame(byte[] frame) {
+        enqueue(frame);
+    }
+
 
-                // move item to the end of waiting list
-                waitingList.put(request, info);
-            }
+    @Override
+    public void deliver(byte[] payload) {
+        receive(new String(payload, StandardCharsets.UTF_8));
+    }
+
+
+    @Override
+    public void peerLost() {
+        log.warning(currentHostPort() + " No acknowledgement from peer");
+        close();
+    }
+
+
+    private void receiveDatagram(byte[] data) {
+        if (UDPSender.isBatch(data)) {
+            UDPSender.unbatch(data, this::receiveDatagram);
+        } else if (UDPReliableSession.isFrame(data, data.length)) {
+            receiveFrame(data);
+        } else {
+            receive(new String(data, StandardCharsets.UTF_8));
+        }
+    }
+
+
+    // frames arriving before the connection is active are dropped, the peer will retransmit them
+    private void receiveFrame(byte[] frame) {
+        UDPReliableSession session = this.session;
+        if (session != null) {
+            session.receive(frame, frame.length);
         }
     }
 
@@ -236,8 +492,10 @@ public class UDPConnection extends Connection {
             }
         }
 
-        log.info(currentHostPort() + " Message Received: "
-                + msg.substring(0, Math.min(MAX_LOG_LEN, msg.length())));
+        if (MESSAGE_LOG.isLoggable(log, Level.INFO)) {
+            MESSAGE_LOG.log(log, Level.INFO, "{0} Message Received: {1}", currentHostPort(),
+                    msg.substring(0, Math.min(MAX_LOG_LEN, msg.length())));
+        }
         MessageHandler.handleMessage(msg, this);
     }
 
@@ -248,11 +506,25 @@ public class UDPConnection extends Connection {
                 return;
             }
             isClosed = true;
-
+            if (session != null) {
+                session.close();
+            }
+            if (bulk != null) {
+                bulk.close(false);
+            }
+            outbound.clear();
+            synchronized (waitingList) {
+                for (WaitingInfo info : waitingList.values()) {
+                    info.timeout.cancel();
+                }
+                waitingList.clear();
+                inFlight.forEachValue(info -> info.timeout.cancel());
+                inFlight.clear();
+            }
 
             log.info(currentHostPort() + " Connection Closed");
 
-            udpConnectionMap.remove(new HostPort(this.hostAddress.getHostAddress(), hostPort.port), this);
+            udpConnectionMap.remove(address, this);
             if (isActive) {
                 ConnectionManager.getInstance().removeConnection(this);
 
@@ -288,7 +560,15 @@ public class UDPConnection extends Connection {
     public void abortWithInvalidProtocol(String additionalMsg) {
         Protocol.InvalidProtocol invalidProtocol = new Protocol.InvalidProtocol();
         invalidProtocol.msg = additionalMsg;
-        sendAsync(invalidProtocol);
+        countMessage(invalidProtocol);
+        // sent at once as a plain datagram, close() drops the outbound queue and the reliable session
+        String msg = ProtocolFactory.marshalProtocol(invalidProtocol);
+        log.info(currentHostPort() + " Message sent: " + msg.substring(0, Math.min(MAX_LOG_LEN, msg.length())));
+        try {
+            countSent(channel.send(ByteBuffer.wrap(msg.getBytes(StandardCharsets.UTF_8)), address));
+        } catch (IOException e) {
+            log.warning(currentHostPort() + " Failed to send datagram: " + e.getMessage());
+        }
         close();
     }
 
@@ -300,9 +580,14 @@ public class UDPConnection extends Connection {
      */
     @Override
     public void markRequestAsDone(IResponse response) {
-        IRequest request = ProtocolFactory.identifyRes(response);
+        long requestId = ((Protocol) response).requestId;
+        // only rebuild the request when the peer did not echo an id
+        IRequest request = (requestId == 0) ? ProtocolFactory.identifyRes(response) : null;
         synchronized (waitingList) {
-            waitingList.remove(request);
+            WaitingInfo info = (requestId != 0) ? inFlight.remove(requestId) : waitingList.remove(request);
+            if (info != null) {
+                info.timeout.cancel();
+            }
         }
     }
 
@@ -313,7 +598,14 @@ public class UDPConnection extends Connection {
 
     @Override
     public long getBlockSize() {
-        return BLOCK_SIZE;
+        return bulk != null ? LARGE_BLOCK_SIZE : getMessageSize();
+    }
+
+    // only file bytes go over the bulk connection, the other messages stay in datagrams
+    @Override
+    public long getMessageSize() {
+        UDPReliableSession session = this.session;
+        return session != null && session.isFragmenting() ? LARGE_BLOCK_SIZE : BLOCK_SIZE;
     }
 
     public boolean isActive() {
@@ -330,18 +622,20 @@ public class UDPConnection extends Connection {
 
     protected static class WaitingInfo {
 
+        final IRequest request;
+        final long requestId;
         int retryCount;
-        long timestamp;
+        HashedWheelTimer.Timeout timeout;
 
-        protected WaitingInfo() {
+        protected WaitingInfo(IRequest request, long requestId) {
+            this.request = request;
+            this.requestId = requestId;
             retryCount = 0;
-            timestamp = System.currentTimeMillis();
         }
 
         protected boolean doRetry() {
             if (retryCount >= MAX_RETRY) return false;
             retryCount += 1;
-            timestamp = System.currentTimeMillis();
             return true;
         }
     }
@@ -4,7 +4,9 @@ import unimelb.bitbox.Constants;
 import unimelb.bitbox.protocol.InvalidProtocolException;
 import unimelb.bitbox.protocol.Protocol;
 import unimelb.bitbox.protocol.ProtocolFactory;
+import unimelb.bitbox.protocol.ProtocolFeature;
 import unimelb.bitbox.protocol.ProtocolType;
+import unimelb.bitbox.util.Configuration;
 import unimelb.bitbox.util.ConnectionManager;
 import unimelb.bitbox.util.Scheduler;
 import unimelb.bitbox.util.ThreadPool.Priority;
@@ -12,16 +14,23 @@ import unimelb.bitbox.util.ThreadPool.PriorityTask;
 import unimelb.bitbox.util.ThreadPool.PriorityThreadPool;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
  * UDPIncomingConnectionHelper deals with all UDP incoming connections
+ * <p>
+ * Datagrams are read from a {@link DatagramChannel} into a reused direct buffer and handed to their
+ * connection as bytes, the connection decodes them in the thread pool.
+ * With udpReceiveThreads above 1, that many channels are bound to the same port with SO_REUSEPORT
+ * and each one is read by its own thread, the kernel keeps the datagrams of one peer on the same channel.
  *
  * @author Weizhi Xu (752454)
  * @author Wenqing Xue (813044)
@@ -31,58 +40,97 @@ import java.util.logging.Logger;
 public class UDPIncomingConnectionHelper extends IncomingConnectionHelper {
     private static Logger log = Logger.getLogger(UDPIncomingConnectionHelper.class.getName());
     private static final int BUFFER_SIZE = 65536;
+    private static final int STATUS_LOG_INTERVAL_IN_SEC = 30;
+    private static final int RECEIVE_THREADS = Integer.parseInt(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_UDP_RECEIVE_THREADS, "1"));
+    // empty for all the addresses
+    private static final String BIND_ADDRESS = Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_UDP_BIND_ADDRESS, "").trim();
 
     private final int port;
 
-    private final DatagramSocket serverSocket;
+    // the first channel also sends everything
+    private final DatagramChannel[] channels;
 
     /**
      * Constructor
      *
      * @param advertisedName from config
      * @param port           listening port from config
-     * @throws SocketException
+     * @throws IOException if the port cannot be bound
      */
-    public UDPIncomingConnectionHelper(String advertisedName, int port) throws SocketException {
+    public UDPIncomingConnectionHelper(String advertisedName, int port) throws IOException {
         super(advertisedName, port);
         this.port = port;
-        serverSocket = new DatagramSocket(port);
+
+        int readers = Math.max(1, RECEIVE_THREADS);
+        SocketOption<Boolean> reusePort = readers > 1 ? reusePortOption() : null;
+        if (readers > 1 && reusePort == null) {
+            log.warning("SO_REUSEPORT is not supported, using one receive thread");
+            readers = 1;
+        }
+
+        channels = new DatagramChannel[readers];
+        for (int i = 0; i < readers; i++) {
+            channels[i] = DatagramChannel.open();
+            if (reusePort != null) {
+                channels[i].setOption(reusePort, true);
+            }
+            channels[i].bind(BIND_ADDRESS.isEmpty() ?
+                    new InetSocketAddress(port) : new InetSocketAddress(BIND_ADDRESS, port));
+        }
     }
 
-    public DatagramSocket getServerSocket() {
-        return serverSocket;
+    public DatagramChannel getServerChannel() {
+        return channels[0];
     }
 
     // main work thread
     @Override
     protected void execute() throws Exception {
-        byte[] buffer = new byte[BUFFER_SIZE];
-
-        log.info(String.format("Start listening to port: %d", port));
+        log.info(String.format("Start listening to port: %d, receive threads: %d", port, channels.length));
 
-        // register UDP connection timeout check
-        Scheduler.getInstance().addTask(500, TimeUnit.MILLISECONDS,
-                new PriorityTask("check timeout UDP request",
+        Scheduler.getInstance().addTask(STATUS_LOG_INTERVAL_IN_SEC, TimeUnit.SECONDS,
+                new PriorityTask("log UDP congestion status",
                         Priority.LOW,
-                        UDPConnection::checkTimeoutRequest
+                        UDPConnection::logStatus
                 ));
 
+        for (int i = 1; i < channels.length; i++) {
+            DatagramChannel channel = channels[i];
+            Thread thread = new Thread(() -> receive(channel), "UDP receiver " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        receive(channels[0]);
+    }
+
+    // receive loop of one channel
+    private void receive(DatagramChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
         while (!Thread.currentThread().isInterrupted()) {
             try {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                serverSocket.receive(packet);
-                boolean handled = UDPConnection.distributeMessage(packet);
+                buffer.clear();
+                InetSocketAddress address = (InetSocketAddress) channel.receive(buffer);
+                buffer.flip();
+                // make a copy, the buffer is reused
+                byte[] data = new byte[buffer.remaining()];
+                buffer.get(data);
+
+                boolean handled = UDPConnection.distributeMessage(address, data);
                 if (!handled) {
-                    // new connection, try handshake
-                    // make a copy
-                    String msg = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
-                    PriorityThreadPool.getInstance().submitTask(new PriorityTask(
+                    // new connection, try handshake, dropped when overloaded as the peer retries
+                    PriorityThreadPool.getInstance().trySubmitTask(new PriorityTask(
                             "Incoming connection: handshake",
                             Priority.NORMAL,
-                            () -> handleHandshake(serverSocket, msg, packet.getAddress(), packet.getPort())
+                            () -> handleHandshake(new String(data, StandardCharsets.UTF_8), address)
                     ));
                 }
 
+            } catch (ClosedChannelException e) {
+                log.severe("UDP channel closed: " + e.toString());
+                return;
             } catch (Exception e) {
                 log.warning(e.toString());
             }
@@ -90,7 +138,7 @@ public class UDPIncomingConnectionHelper extends IncomingConnectionHelper {
     }
 
     // handle the handshake process (run in thread pool)
-    private void handleHandshake(DatagramSocket serverSocket, String msg, InetAddress hostAddress, int actualPort) {
+    private void handleHandshake(String msg, InetSocketAddress address) {
         String replyMsg = "";
         boolean unexpectedProtocol = false;
         int res = -1;
@@ -98,13 +146,18 @@ public class UDPIncomingConnectionHelper extends IncomingConnectionHelper {
             Protocol protocol = ProtocolFactory.parseProtocol(msg);
             if (ProtocolType.typeOfProtocol(protocol) == ProtocolType.HANDSHAKE_REQUEST) {
                 Protocol.HandshakeRequest handshakeRequest = (Protocol.HandshakeRequest) protocol;
-                UDPConnection conn = new UDPConnection(serverSocket, handshakeRequest.peer, hostAddress, actualPort);
+                UDPConnection conn = new UDPConnection(channels[0], handshakeRequest.peer, address);
 
                 res = ConnectionManager.getInstance().addConnection(conn, handshakeRequest.peer);
                 if (res == 0) {
                     // success
-                    replyMsg = handshakeResponseJsonCache;
-                    conn.active();
+                    conn.setPeerFeatures(handshakeRequest.features.features);
+                    conn.setPeerSessionId(handshakeRequest.udpSession);
+                    Protocol.HandshakeResponse handshakeResponse = newHandshakeResponse();
+                    handshakeResponse.udpSession = conn.getSessionId();
+                    replyMsg = ProtocolFactory.marshalProtocol(handshakeResponse);
+                    // the peer connects the TCP connection for the file bytes after the response
+                    conn.active(conn.supportsFeature(ProtocolFeature.HYBRID_TRANSPORT));
 
                 } else {
                     Protocol.ConnectionRefused connectionRefused = new Protocol.ConnectionRefused();
@@ -140,13 +193,25 @@ public class UDPIncomingConnectionHelper extends IncomingConnectionHelper {
             log.info("Handshake Finished Result: " + res +
                     " reply: " + replyMsg.substring(0, Math.min(UDPConnection.MAX_LOG_LEN, replyMsg.length())));
 
-            byte[] buffer = replyMsg.getBytes(StandardCharsets.UTF_8);
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length, hostAddress, actualPort);
             try {
-                serverSocket.send(packet);
+                channels[0].send(ByteBuffer.wrap(replyMsg.getBytes(StandardCharsets.UTF_8)), address);
             } catch (IOException e) {
-                log.warning("unable reply to: " + hostAddress.getHostAddress() + ":" + actualPort);
+                log.warning("unable reply to: " + address.getAddress().getHostAddress() + ":" + address.getPort());
+            }
+        }
+    }
+
+    // SO_REUSEPORT is only in StandardSocketOptions since Java 9
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            SocketOption<Boolean> option =
+                    (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            try (DatagramChannel probe = DatagramChannel.open()) {
+                return probe.supportedOptions().contains(option) ? option : null;
             }
+        } catch (ReflectiveOperationException | IOException e) {
+            return null;
         }
     }
 }
@@ -5,15 +5,22 @@ import javafx.util.Pair;
 import unimelb.bitbox.protocol.InvalidProtocolException;
 import unimelb.bitbox.protocol.Protocol;
 import unimelb.bitbox.protocol.ProtocolFactory;
+import unimelb.bitbox.protocol.ProtocolFeature;
 import unimelb.bitbox.protocol.ProtocolType;
 import unimelb.bitbox.util.ConnectionManager;
 import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.ThreadPool.Priority;
+import unimelb.bitbox.util.ThreadPool.PriorityTask;
+import unimelb.bitbox.util.ThreadPool.PriorityThreadPool;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 
 /**
@@ -26,18 +33,20 @@ import java.util.concurrent.TimeUnit;
  */
 public class UDPOutgoingConnectionHelper extends OutgoingConnectionHelper {
 
-    private final DatagramSocket serverSocket;
+    private static Logger log = Logger.getLogger(UDPOutgoingConnectionHelper.class.getName());
+
+    private final DatagramChannel channel;
 
     /**
      * Constructor
      *
      * @param advertisedName from config
      * @param port           from config
-     * @param serverSocket   created in UDPIncomingConnectionHelper
+     * @param channel        created in UDPIncomingConnectionHelper
      */
-    public UDPOutgoingConnectionHelper(String advertisedName, int port, DatagramSocket serverSocket) {
+    public UDPOutgoingConnectionHelper(String advertisedName, int port, DatagramChannel channel) {
         super(advertisedName, port);
-        this.serverSocket = serverSocket;
+        this.channel = channel;
     }
 
     @Override
@@ -56,9 +65,15 @@ public class UDPOutgoingConnectionHelper extends OutgoingConnectionHelper {
     protected Pair<Boolean, String> tryConnectTo(HostPort hostPort) {
         UDPConnection conn = null;
         try {
-            conn = new UDPConnection(serverSocket, hostPort,
-                    InetAddress.getByName(hostPort.host), this);
-            conn.sendAsync(handshakeRequest);
+            conn = new UDPConnection(channel, hostPort,
+                    new InetSocketAddress(InetAddress.getByName(hostPort.host), hostPort.port), this);
+            // the same handshake with the session id of this connection
+            Protocol.HandshakeRequest request = new Protocol.HandshakeRequest();
+            request.peer = handshakeRequest.peer;
+            request.features = handshakeRequest.features;
+            request.tcpPort = handshakeRequest.tcpPort;
+            request.udpSession = conn.getSessionId();
+            conn.sendAsync(request);
 
             // wait for async handshake to be finished
             try {
@@ -102,8 +117,19 @@ public class UDPOutgoingConnectionHelper extends OutgoingConnectionHelper {
 
                 int res = ConnectionManager.getInstance().addConnection(conn, hostPort);
                 if (res == 0) {
+                    conn.setPeerFeatures(handshakeResponse.features.features);
+                    conn.setPeerSessionId(handshakeResponse.udpSession);
                     conn.handshakeResult = new Pair<>(true, "Connected");
-                    conn.active();
+                    boolean hybrid = conn.supportsFeature(ProtocolFeature.HYBRID_TRANSPORT) && handshakeResponse.tcpPort > 0;
+                    conn.active(hybrid);
+                    if (hybrid) {
+                        int tcpPort = (int) handshakeResponse.tcpPort;
+                        PriorityThreadPool.getInstance().submitTask(new PriorityTask(
+                                "Outgoing connection: file bytes over TCP",
+                                Priority.NORMAL,
+                                () -> connectBulk(conn, tcpPort)
+                        ));
+                    }
                     return;
                 } else {
                     // already exists
@@ -131,4 +157,33 @@ public class UDPOutgoingConnectionHelper extends OutgoingConnectionHelper {
                 return;
         }
     }
+
+
+    // hybrid mode, open the TCP connection for the file bytes, the peer just stays on UDP if it fails
+    private void connectBulk(UDPConnection conn, int tcpPort) {
+        TCPConnection bulk = null;
+        try {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(conn.getAddress().getAddress(), tcpPort), HANDSHAKE_TIMEOUT);
+            bulk = new TCPConnection(socket);
+            // the same handshake as UDP, the peer finds the UDP connection by the host&port
+            bulk.send(ProtocolFactory.marshalProtocol(handshakeRequest));
+
+            String json = bulk.waitForOneMessage(HANDSHAKE_TIMEOUT);
+            if (json != null
+                    && ProtocolType.typeOfProtocol(ProtocolFactory.parseProtocol(json)) == ProtocolType.HANDSHAKE_RESPONSE
+                    && conn.attachBulk(bulk)) {
+                bulk.activeAsBulk(conn);
+                return;
+            }
+            log.warning(conn.currentHostPort() + " TCP connection for file bytes refused");
+        } catch (IOException | InvalidProtocolException e) {
+            log.warning(conn.currentHostPort() + " Unable to connect TCP for file bytes: " + e.toString());
+        }
+
+        if (bulk != null) {
+            bulk.close(false);
+        }
+        conn.bulkSettled();
+    }
 }
@@ -0,0 +1,117 @@
+package unimelb.bitbox.util.ConnectionUtils.Peer;
+
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+
+/**
+ * UDPPacer is a singleton class which sends frames at the time given by their {@link UDPReliableSession},
+ * so a congestion window is spread over the round trip instead of sent as one burst.
+ * <p>
+ * A single thread sends the frames of all the connections, the thread is started on first use.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class UDPPacer {
+    private static Logger log = Logger.getLogger(UDPPacer.class.getName());
+
+    private static UDPPacer instance = new UDPPacer();
+
+
+    public static UDPPacer getInstance() {
+        return instance;
+    }
+
+
+    private final DelayQueue<PacedFrame> queue = new DelayQueue<>();
+    // keeps frames with the same send time in order
+    private final AtomicLong seq = new AtomicLong();
+    private Thread thread = null;
+
+
+    private UDPPacer() {
+    }
+
+
+    /**
+     * Send a frame at the given time
+     *
+     * @param transport the connection
+     * @param frame     the frame
+     * @param sendTime  when to send, in {@link System#nanoTime()}
+     * @param sent      run once the frame is sent
+     */
+    public void schedule(UDPReliableSession.Transport transport, byte[] frame, long sendTime, Runnable sent) {
+        synchronized (this) {
+            if (thread == null) {
+                thread = new Thread(this::run, "UDP pacer");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        queue.add(new PacedFrame(transport, frame, sendTime, sent, seq.getAndIncrement()));
+    }
+
+
+    /**
+     * @return frames waiting to be sent
+     */
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                PacedFrame pacedFrame = queue.take();
+                pacedFrame.transport.sendFrame(pacedFrame.frame);
+                pacedFrame.sent.run();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                log.warning("Failed to send paced frame: " + e.getMessage());
+            }
+        }
+    }
+
+
+    // a frame waiting for its send time
+    private static class PacedFrame implements Delayed {
+        final UDPReliableSession.Transport transport;
+        final byte[] frame;
+        final long sendTime;
+        final Runnable sent;
+        final long seq;
+
+
+        PacedFrame(UDPReliableSession.Transport transport, byte[] frame, long sendTime, Runnable sent, long seq) {
+            this.transport = transport;
+            this.frame = frame;
+            this.sendTime = sendTime;
+            this.sent = sent;
+            this.seq = seq;
+        }
+
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(sendTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+
+        @Override
+        public int compareTo(Delayed o) {
+            PacedFrame other = (PacedFrame) o;
+            int c = Long.compare(sendTime - other.sendTime, 0);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+}
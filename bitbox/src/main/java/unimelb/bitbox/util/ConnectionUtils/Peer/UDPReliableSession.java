@@ -0,0 +1,888 @@
+package unimelb.bitbox.util.ConnectionUtils.Peer;
+
+
+import unimelb.bitbox.Constants;
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.HashedWheelTimer;
+import unimelb.bitbox.util.Metrics.Counter;
+import unimelb.bitbox.util.Metrics.MetricsRegistry;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * UDPReliableSession makes the datagrams of one {@link UDPConnection} reliable.
+ * <p>
+ * Every message is sent as a data frame with a sequence number. The receiver answers each data frame
+ * with the next sequence number expected (cumulative ack) and the ranges received above it (selective acks).
+ * Frames are retransmitted once their timeout expires, the timeout is estimated from the round trip time
+ * (Jacobson/Karels) and doubled for each retransmission of the same frame, until the peer acknowledges
+ * anything new. A frame is also retransmitted
+ * immediately when frames sent after it have been acknowledged 3 times (fast retransmit).
+ * Sequence numbers in flight span at most {@link #WINDOW_SIZE}, the rest of the messages wait in a queue.
+ * <p>
+ * The frames in flight are also limited by a congestion window, adjusted LEDBAT-style (RFC 6817):
+ * the lowest round trip time seen in the last minutes is taken as the base, anything above it is
+ * queuing delay. The window grows while the queuing delay is under the target and shrinks when it
+ * is above, so bulk sync backs off before it fills the queues other traffic goes through.
+ * The window is halved on loss and reset on timeout. When a pacer is given, the data frames of a
+ * window are spread over the round trip time instead of sent in one burst. A paced frame counts as sent
+ * when the pacer sends it, so the time it waited is not taken as round trip or queuing delay.
+ * <p>
+ * When fragmentation is on, messages larger than one datagram are split into fragments which are sent
+ * as data frames with consecutive sequence numbers, each one retransmitted on its own. The receiver
+ * puts the message back together once all of its fragments arrived. Partial messages are dropped after
+ * {@link #REASSEMBLY_TIMEOUT_MS} without a new fragment, or when they take more memory than allowed.
+ * <p>
+ * Messages are delivered as soon as they arrive, duplicates are dropped. The order is not kept,
+ * the same as plain UDP. Data frames beyond the receive window are dropped.
+ * <p>
+ * Each side of a connection picks a session id and tells the peer in the handshake, a frame carries the
+ * session id of its receiver. Frames of an earlier connection between the same addresses are dropped.
+ * <p>
+ * Frame format, all numbers are big-endian:
+ * <pre>
+ * magic (1) | flags (1) | session (4) | seq (8) | ack (8) | sack count (1) | sack ranges (16 each) | payload
+ * </pre>
+ * The payload of a fragment starts with its index and the number of fragments of the message (4 each),
+ * the message starts at sequence number seq - index.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class UDPReliableSession {
+    private static Logger log = Logger.getLogger(UDPReliableSession.class.getName());
+
+    /**
+     * True if this peer offers the reliable layer, it is used when both peers offer it
+     */
+    public static final boolean ENABLED = Boolean.parseBoolean(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_UDP_RELIABLE, "true"));
+
+    /**
+     * First byte of every frame, a JSON message never starts with it
+     */
+    public static final byte MAGIC = (byte) 0xB1;
+
+    static final byte FLAG_DATA = 0x01;
+    static final byte FLAG_ACK = 0x02;
+    static final byte FLAG_FRAGMENT = 0x04;
+
+    /**
+     * Queuing delay the congestion window aims at, in milliseconds
+     */
+    public static final long TARGET_DELAY_MS = Long.parseLong(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_UDP_TARGET_DELAY, "100"));
+
+    /**
+     * Largest datagram sent when fragmenting, 0 to disable fragmentation
+     */
+    public static final int MAX_DATAGRAM_SIZE = Integer.parseInt(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_UDP_MAX_DATAGRAM_SIZE, "1472"));
+
+    /**
+     * Bytes of partial messages kept by one session
+     */
+    public static final long REASSEMBLY_LIMIT = Long.parseLong(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_UDP_REASSEMBLY_LIMIT, "16777216"));
+
+    static final int WINDOW_SIZE = 256;
+    static final double INITIAL_CWND = 10;
+    static final double MIN_CWND = 2;
+    static final double GAIN = 1;
+    static final int HEADER_SIZE = 23;
+    static final int SEQ_OFFSET = 6;
+    static final int MAX_SACK_RANGES = 8;
+    static final int FAST_RETRANSMIT_THRESHOLD = 3;
+    static final long MIN_RTO_MS = 200;
+    static final long MAX_RTO_MS = 60000;
+    // base delay is the minimum over this many one minute buckets
+    static final int BASE_HISTORY = 10;
+    static final long BASE_BUCKET_MS = 60000;
+    // current delay is the minimum of the last few samples, to filter out noise
+    static final int CURRENT_FILTER = 4;
+    static final int FRAGMENT_HEADER_SIZE = 8;
+    static final long REASSEMBLY_TIMEOUT_MS = 30000;
+
+    // frames of the reliable sessions and requests of the plain UDP connections sent again
+    static final Counter RETRANSMITS = MetricsRegistry.getInstance().counter("bitbox_udp_retransmits_total",
+            "UDP frames and requests sent again");
+
+
+    /**
+     * What the session needs from the connection
+     */
+    public interface Transport {
+        // send a frame as one datagram
+        void sendFrame(byte[] frame);
+
+        // a message arrived
+        void deliver(byte[] payload);
+
+        // a frame was not acknowledged after all the retries
+        void peerLost();
+    }
+
+
+    private final Transport transport;
+    private final int maxRetries;
+    private final UDPPacer pacer;
+    // payload bytes per fragment, 0 if messages are never fragmented
+    private final int fragmentSize;
+    private final HashedWheelTimer timer;
+    // session ids of this side and of the peer
+    private final int sessionId;
+    private final int peerSessionId;
+    // one timer per session, armed for the earliest deadline, like the retransmission timer of TCP
+    private HashedWheelTimer.Timeout timeout = null;
+    private long timeoutDeadline;
+
+    // sender
+    private long nextSeq = 0;
+    private final TreeMap<Long, Segment> inFlight = new TreeMap<>();
+    private final LinkedList<Segment> queue = new LinkedList<>();
+    private long srtt = -1;
+    private long rttVar = 0;
+    private long rto;
+
+    // congestion control
+    private double cwnd = INITIAL_CWND;
+    private double ssthresh = WINDOW_SIZE;
+    private final long[] baseDelays = new long[BASE_HISTORY];
+    private int baseIndex = 0;
+    private long baseBucketStart = -1;
+    private final LinkedList<Long> currentDelays = new LinkedList<>();
+    private long lastDecrease = Long.MIN_VALUE;
+    private long nextPaceTime = System.nanoTime();
+
+    // metrics
+    private long framesSent = 0;
+    private long framesRetransmitted = 0;
+
+    // receiver
+    private long expectedSeq = 0;
+    private final TreeSet<Long> receivedAbove = new TreeSet<>();
+    // partial messages by the sequence number of their first fragment, oldest first
+    private final LinkedHashMap<Long, Reassembly> reassemblies = new LinkedHashMap<>();
+    private long reassemblyBytes = 0;
+
+    private boolean closed = false;
+
+
+    /**
+     * Constructor
+     *
+     * @param transport  the connection
+     * @param initialRto the retransmission timeout before any round trip time is measured
+     * @param maxRetries retransmissions of one frame before the peer is considered lost
+     */
+    public UDPReliableSession(Transport transport, long initialRto, int maxRetries) {
+        this(transport, initialRto, maxRetries, null, 0, null);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param transport       the connection
+     * @param initialRto      the retransmission timeout before any round trip time is measured
+     * @param maxRetries      retransmissions of one frame before the peer is considered lost
+     * @param pacer           spreads the data frames over the round trip time, null to send them at once
+     * @param maxDatagramSize largest datagram to send, larger messages are fragmented, 0 to never fragment
+     * @param timer           runs {@link #tick()} when the next frame times out, null to call it by hand
+     */
+    public UDPReliableSession(Transport transport, long initialRto, int maxRetries, UDPPacer pacer,
+                              int maxDatagramSize, HashedWheelTimer timer) {
+        this(transport, initialRto, maxRetries, pacer, maxDatagramSize, timer, 0, 0);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param transport       the connection
+     * @param initialRto      the retransmission timeout before any round trip time is measured
+     * @param maxRetries      retransmissions of one frame before the peer is considered lost
+     * @param pacer           spreads the data frames over the round trip time, null to send them at once
+     * @param maxDatagramSize largest datagram to send, larger messages are fragmented, 0 to never fragment
+     * @param timer           runs {@link #tick()} when the next frame times out, null to call it by hand
+     * @param sessionId       session id of this side, frames carrying another one are dropped
+     * @param peerSessionId   session id of the peer, from the handshake
+     */
+    public UDPReliableSession(Transport transport, long initialRto, int maxRetries, UDPPacer pacer,
+                              int maxDatagramSize, HashedWheelTimer timer, int sessionId, int peerSessionId) {
+        this.transport = transport;
+        this.sessionId = sessionId;
+        this.peerSessionId = peerSessionId;
+        this.rto = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, initialRto));
+        this.maxRetries = maxRetries;
+        this.pacer = pacer;
+        this.timer = timer;
+        this.fragmentSize = maxDatagramSize <= 0 ? 0 :
+                Math.max(1, maxDatagramSize - HEADER_SIZE - MAX_SACK_RANGES * 16 - FRAGMENT_HEADER_SIZE);
+        Arrays.fill(baseDelays, Long.MAX_VALUE);
+    }
+
+
+    /**
+     * Check if a datagram is a frame of this layer
+     *
+     * @param data   the datagram
+     * @param length the length of the datagram
+     * @return true if it is a frame
+     */
+    public static boolean isFrame(byte[] data, int length) {
+        return length >= HEADER_SIZE && data[0] == MAGIC;
+    }
+
+
+    /**
+     * Send a message reliably, it is queued when the window is full
+     *
+     * @param payload the message
+     */
+    public void send(byte[] payload) {
+        send(payload, System.currentTimeMillis());
+    }
+
+
+    void send(byte[] payload, long now) {
+        ArrayList<byte[]> frames = new ArrayList<>();
+        synchronized (this) {
+            if (closed) return;
+            if (fragmentSize > 0 && payload.length > fragmentSize + FRAGMENT_HEADER_SIZE) {
+                // queued together so the fragments get consecutive sequence numbers
+                int count = (payload.length + fragmentSize - 1) / fragmentSize;
+                for (int i = 0; i < count; i++) {
+                    int offset = i * fragmentSize;
+                    int length = Math.min(fragmentSize, payload.length - offset);
+                    ByteBuffer fragment = ByteBuffer.allocate(FRAGMENT_HEADER_SIZE + length);
+                    fragment.putInt(i);
+                    fragment.putInt(count);
+                    fragment.put(payload, offset, length);
+                    queue.addLast(new Segment(fragment.array(), true));
+                }
+            } else {
+                queue.addLast(new Segment(payload, false));
+            }
+            fillWindow(now, frames);
+        }
+        sendAll(frames);
+    }
+
+
+    /**
+     * @return true if messages larger than one datagram are fragmented
+     */
+    public boolean isFragmenting() {
+        return fragmentSize > 0;
+    }
+
+
+    /**
+     * Handle a frame received from the peer
+     *
+     * @param data   the datagram
+     * @param length the length of the datagram
+     */
+    public void receive(byte[] data, int length) {
+        receive(data, length, System.currentTimeMillis());
+    }
+
+
+    void receive(byte[] data, int length, long now) {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        byte flags;
+        long seq;
+        long ack;
+        long[] sacks;
+        try {
+            buffer.get(); // magic
+            flags = buffer.get();
+            if (buffer.getInt() != sessionId) {
+                // a frame of another session
+                return;
+            }
+            seq = buffer.getLong();
+            ack = buffer.getLong();
+            int sackCount = buffer.get() & 0xFF;
+            sacks = new long[sackCount * 2];
+            for (int i = 0; i < sacks.length; i++) {
+                sacks[i] = buffer.getLong();
+            }
+        } catch (BufferUnderflowException e) {
+            // broken frame, ignore
+            return;
+        }
+
+        byte[] payload = null;
+        ArrayList<byte[]> frames = new ArrayList<>();
+
+        synchronized (this) {
+            if (closed) return;
+
+            if ((flags & FLAG_ACK) != 0) {
+                onAck(ack, sacks, now, frames);
+            }
+
+            if ((flags & FLAG_DATA) != 0) {
+                // deliver only the first copy, the sender never has more than a window in flight
+                if (seq >= expectedSeq && seq < expectedSeq + WINDOW_SIZE && !receivedAbove.contains(seq)) {
+                    if (seq == expectedSeq) {
+                        expectedSeq++;
+                        while (receivedAbove.remove(expectedSeq)) {
+                            expectedSeq++;
+                        }
+                    } else {
+                        receivedAbove.add(seq);
+                    }
+                    payload = new byte[buffer.remaining()];
+                    buffer.get(payload);
+                    if ((flags & FLAG_FRAGMENT) != 0) {
+                        payload = reassemble(seq, payload, now);
+                    }
+                }
+                // always acknowledge, the previous ack may have been lost
+                frames.add(encode(FLAG_ACK, 0, null));
+            }
+        }
+
+        sendAll(frames);
+        if (payload != null) {
+            transport.deliver(payload);
+        }
+    }
+
+
+    /**
+     * Retransmit the frames whose timeout expired and drop the partial messages given up,
+     * called by the timer when there is one
+     */
+    public void tick() {
+        tick(System.currentTimeMillis());
+    }
+
+
+    void tick(long now) {
+        ArrayList<byte[]> frames = new ArrayList<>();
+        boolean lost = false;
+
+        synchronized (this) {
+            if (closed) return;
+            timeout = null;
+
+            boolean expired = false;
+            long nextDeadline = Long.MAX_VALUE;
+            for (Segment segment : inFlight.values()) {
+                if (now - segment.lastSent < backoff(segment)) {
+                    nextDeadline = Math.min(nextDeadline, segment.lastSent + backoff(segment));
+                    continue;
+                }
+                if (segment.retries >= maxRetries) {
+                    lost = true;
+                    break;
+                }
+                segment.retries++;
+                segment.retransmitted = true;
+                segment.lastSent = now;
+                framesRetransmitted++;
+                RETRANSMITS.inc();
+                frames.add(encode(segment));
+                expired = true;
+            }
+
+            // nothing came back for a whole timeout, start over from the smallest window
+            if (expired) {
+                ssthresh = Math.max(MIN_CWND, cwnd / 2);
+                cwnd = MIN_CWND;
+                lastDecrease = now;
+            }
+
+            // the sender gave up on these messages
+            Iterator<Reassembly> it = reassemblies.values().iterator();
+            while (it.hasNext()) {
+                Reassembly reassembly = it.next();
+                if (now - reassembly.lastUpdate >= REASSEMBLY_TIMEOUT_MS) {
+                    log.warning(String.format("Dropping a message of %d fragments, %d of them never arrived",
+                            reassembly.count, reassembly.count - reassembly.parts.size()));
+                    reassemblyBytes -= reassembly.bytes;
+                    it.remove();
+                } else {
+                    nextDeadline = Math.min(nextDeadline, reassembly.lastUpdate + REASSEMBLY_TIMEOUT_MS);
+                }
+            }
+
+            // the retransmitted frames come after the ones checked, their deadline is later
+            if (expired) {
+                nextDeadline = Math.min(nextDeadline, now + rto);
+            }
+            if (!lost && nextDeadline != Long.MAX_VALUE) {
+                armTimer(nextDeadline, now);
+            }
+        }
+
+        if (lost) {
+            close();
+            transport.peerLost();
+            return;
+        }
+        sendAll(frames);
+    }
+
+
+    /**
+     * Stop the session, nothing is sent afterwards
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+            inFlight.clear();
+            queue.clear();
+            reassemblies.clear();
+            reassemblyBytes = 0;
+        }
+    }
+
+
+    public synchronized long getRto() {
+        return rto;
+    }
+
+
+    public synchronized long getSrtt() {
+        return srtt;
+    }
+
+
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+
+    /**
+     * @return bytes of the messages waiting for more fragments
+     */
+    public synchronized long getReassemblyBytes() {
+        return reassemblyBytes;
+    }
+
+
+    public synchronized double getCwnd() {
+        return cwnd;
+    }
+
+
+    /**
+     * @return lowest round trip time seen recently, -1 if not measured yet
+     */
+    public synchronized long getBaseDelay() {
+        long base = baseDelay();
+        return base == Long.MAX_VALUE ? -1 : base;
+    }
+
+
+    /**
+     * @return current round trip time above the base delay, 0 if not measured yet
+     */
+    public synchronized long getQueuingDelay() {
+        return queuingDelay();
+    }
+
+
+    public synchronized long getSentCount() {
+        return framesSent;
+    }
+
+
+    public synchronized long getRetransmittedCount() {
+        return framesRetransmitted;
+    }
+
+
+    /**
+     * @return retransmitted frames over all the data frames sent
+     */
+    public synchronized double getLossRate() {
+        return framesSent == 0 ? 0 : (double) framesRetransmitted / framesSent;
+    }
+
+
+    // process the acknowledgement part of a frame
+    private void onAck(long ack, long[] sacks, long now, ArrayList<byte[]> frames) {
+        long rttSample = -1;
+        int before = inFlight.size();
+
+        // cumulative
+        Iterator<Map.Entry<Long, Segment>> it = inFlight.headMap(ack).entrySet().iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next().getValue();
+            if (!segment.retransmitted) {
+                rttSample = now - segment.firstSent;
+            }
+            it.remove();
+        }
+
+        // selective
+        long highestSacked = -1;
+        for (int i = 0; i + 1 < sacks.length; i += 2) {
+            Iterator<Map.Entry<Long, Segment>> sit =
+                    inFlight.subMap(sacks[i], true, sacks[i + 1], true).entrySet().iterator();
+            while (sit.hasNext()) {
+                Segment segment = sit.next().getValue();
+                // Karn's rule, a retransmitted frame gives no valid sample
+                if (!segment.retransmitted) {
+                    rttSample = now - segment.firstSent;
+                }
+                sit.remove();
+            }
+            highestSacked = Math.max(highestSacked, sacks[i + 1]);
+        }
+        int acked = before - inFlight.size();
+        boolean progress = acked > 0;
+
+        if (rttSample >= 0) {
+            updateRto(rttSample);
+            updateDelay(rttSample, now);
+        }
+        if (progress) {
+            increaseWindow(acked);
+        }
+
+        // the peer is alive, restart the backoff of the frames still in flight
+        if (progress && !inFlight.isEmpty()) {
+            long oldest = Long.MAX_VALUE;
+            for (Segment segment : inFlight.values()) {
+                segment.retries = 0;
+                oldest = Math.min(oldest, segment.lastSent);
+            }
+            armTimer(oldest + rto, now);
+        }
+
+        // frames below a selectively acked one are probably lost
+        if (highestSacked >= 0) {
+            for (Segment segment : inFlight.headMap(highestSacked).values()) {
+                segment.dupAcks++;
+                if (segment.dupAcks == FAST_RETRANSMIT_THRESHOLD) {
+                    segment.retransmitted = true;
+                    segment.lastSent = now;
+                    framesRetransmitted++;
+                    RETRANSMITS.inc();
+                    frames.add(encode(segment));
+                    decreaseWindow(now);
+                }
+            }
+        }
+
+        fillWindow(now, frames);
+    }
+
+
+    // Jacobson/Karels
+    private void updateRto(long sample) {
+        if (srtt < 0) {
+            srtt = sample;
+            rttVar = sample / 2;
+        } else {
+            rttVar = (3 * rttVar + Math.abs(srtt - sample)) / 4;
+            srtt = (7 * srtt + sample) / 8;
+        }
+        rto = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, srtt + Math.max(1, 4 * rttVar)));
+    }
+
+
+    // timeout of a frame after its retransmissions
+    private long backoff(Segment segment) {
+        return Math.min(MAX_RTO_MS, rto << segment.retries);
+    }
+
+
+    // make sure tick runs by the given deadline, an earlier timer already armed is kept
+    private void armTimer(long deadline, long now) {
+        if (timer == null || closed) return;
+        if (timeout != null) {
+            if (timeoutDeadline <= deadline) return;
+            timeout.cancel();
+        }
+        timeoutDeadline = deadline;
+        timeout = timer.schedule(this::tick, Math.max(0, deadline - now), TimeUnit.MILLISECONDS);
+    }
+
+
+    // keep the lowest sample of each bucket for the base, and the last few samples for the current delay
+    private void updateDelay(long sample, long now) {
+        if (baseBucketStart < 0) {
+            baseBucketStart = now;
+        } else if (now - baseBucketStart >= BASE_BUCKET_MS) {
+            baseBucketStart = now;
+            baseIndex = (baseIndex + 1) % BASE_HISTORY;
+            baseDelays[baseIndex] = Long.MAX_VALUE;
+        }
+        baseDelays[baseIndex] = Math.min(baseDelays[baseIndex], sample);
+
+        currentDelays.addLast(sample);
+        if (currentDelays.size() > CURRENT_FILTER) {
+            currentDelays.removeFirst();
+        }
+    }
+
+
+    private long baseDelay() {
+        long base = Long.MAX_VALUE;
+        for (long delay : baseDelays) {
+            base = Math.min(base, delay);
+        }
+        return base;
+    }
+
+
+    private long queuingDelay() {
+        if (currentDelays.isEmpty()) return 0;
+        long current = Long.MAX_VALUE;
+        for (long delay : currentDelays) {
+            current = Math.min(current, delay);
+        }
+        return Math.max(0, current - baseDelay());
+    }
+
+
+    // LEDBAT, grow in proportion to how far the queuing delay is under the target, shrink when above.
+    // the window doubles every round trip at first, until the delay reaches half of the target
+    private void increaseWindow(int acked) {
+        long queuingDelay = queuingDelay();
+        if (cwnd < ssthresh && queuingDelay < TARGET_DELAY_MS / 2) {
+            cwnd += acked;
+        } else {
+            ssthresh = Math.min(ssthresh, cwnd);
+            double offTarget = (double) (TARGET_DELAY_MS - queuingDelay) / Math.max(1, TARGET_DELAY_MS);
+            cwnd += GAIN * offTarget * acked / cwnd;
+        }
+        cwnd = Math.max(MIN_CWND, Math.min(WINDOW_SIZE, cwnd));
+    }
+
+
+    // halve the window, at most once per round trip since the frames lost together are one congestion event
+    private void decreaseWindow(long now) {
+        if (lastDecrease != Long.MIN_VALUE && now - lastDecrease < Math.max(srtt, 1)) return;
+        lastDecrease = now;
+        cwnd = Math.max(MIN_CWND, cwnd / 2);
+        ssthresh = cwnd;
+    }
+
+
+    // move queued messages into the window, the window starts at the oldest frame not acknowledged
+    // so the receiver never has to keep more than the window size of sequence numbers.
+    // frames only selectively acked are gone from inFlight, so its size is what the network holds
+    private void fillWindow(long now, ArrayList<byte[]> frames) {
+        while (!queue.isEmpty() && inFlight.size() < (int) cwnd
+                && nextSeq < (inFlight.isEmpty() ? nextSeq : inFlight.firstKey()) + WINDOW_SIZE) {
+            Segment segment = queue.removeFirst();
+            segment.seq = nextSeq++;
+            segment.firstSent = segment.lastSent = now;
+            inFlight.put(segment.seq, segment);
+            framesSent++;
+            frames.add(encode(segment));
+            armTimer(now + rto, now);
+        }
+    }
+
+
+    // add a fragment to its message, returns the message once complete
+    private byte[] reassemble(long seq, byte[] fragment, long now) {
+        if (fragment.length < FRAGMENT_HEADER_SIZE) return null;
+        ByteBuffer buffer = ByteBuffer.wrap(fragment);
+        int index = buffer.getInt();
+        int count = buffer.getInt();
+        if (count <= 0 || index < 0 || index >= count) return null;
+
+        long start = seq - index;
+        Reassembly reassembly = reassemblies.get(start);
+        if (reassembly == null) {
+            reassembly = new Reassembly(count);
+            reassemblies.put(start, reassembly);
+            armTimer(now + REASSEMBLY_TIMEOUT_MS, now);
+        }
+        if (reassembly.count != count || reassembly.parts.containsKey(index)) return null;
+
+        byte[] part = new byte[fragment.length - FRAGMENT_HEADER_SIZE];
+        buffer.get(part);
+        reassembly.parts.put(index, part);
+        reassembly.bytes += part.length;
+        reassembly.lastUpdate = now;
+        reassemblyBytes += part.length;
+
+        if (reassembly.parts.size() == count) {
+            reassemblies.remove(start);
+            reassemblyBytes -= reassembly.bytes;
+            byte[] message = new byte[(int) reassembly.bytes];
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                byte[] p = reassembly.parts.get(i);
+                System.arraycopy(p, 0, message, offset, p.length);
+                offset += p.length;
+            }
+            return message;
+        }
+
+        // over the limit, give up the oldest messages but never the one just completed
+        Iterator<Map.Entry<Long, Reassembly>> it = reassemblies.entrySet().iterator();
+        while (reassemblyBytes > REASSEMBLY_LIMIT && it.hasNext()) {
+            Map.Entry<Long, Reassembly> entry = it.next();
+            if (entry.getKey() == start) continue;
+            log.warning(String.format("Reassembly limit reached, dropping a message of %d fragments",
+                    entry.getValue().count));
+            reassemblyBytes -= entry.getValue().bytes;
+            it.remove();
+        }
+        return null;
+    }
+
+
+    private byte[] encode(Segment segment) {
+        byte flags = (byte) (FLAG_DATA | FLAG_ACK | (segment.fragment ? FLAG_FRAGMENT : 0));
+        return encode(flags, segment.seq, segment.payload);
+    }
+
+
+    // build a frame carrying the current acknowledgement state, must hold the lock
+    private byte[] encode(byte flags, long seq, byte[] payload) {
+        ArrayList<long[]> ranges = new ArrayList<>();
+        long start = -1;
+        long end = -1;
+        for (long s : receivedAbove) {
+            if (s == end + 1) {
+                end = s;
+                continue;
+            }
+            if (start >= 0) {
+                ranges.add(new long[]{start, end});
+                if (ranges.size() == MAX_SACK_RANGES) break;
+            }
+            start = end = s;
+        }
+        if (start >= 0 && ranges.size() < MAX_SACK_RANGES) {
+            ranges.add(new long[]{start, end});
+        }
+
+        int payloadLength = (payload == null) ? 0 : payload.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + ranges.size() * 16 + payloadLength);
+        buffer.put(MAGIC);
+        buffer.put(flags);
+        buffer.putInt(peerSessionId);
+        buffer.putLong(seq);
+        buffer.putLong(expectedSeq);
+        buffer.put((byte) ranges.size());
+        for (long[] range : ranges) {
+            buffer.putLong(range[0]);
+            buffer.putLong(range[1]);
+        }
+        if (payload != null) {
+            buffer.put(payload);
+        }
+        return buffer.array();
+    }
+
+
+    private void sendAll(ArrayList<byte[]> frames) {
+        if (frames.isEmpty()) return;
+        if (pacer == null) {
+            for (byte[] frame : frames) {
+                transport.sendFrame(frame);
+            }
+            return;
+        }
+
+        // one window per round trip, acknowledgements are never delayed
+        long now = System.nanoTime();
+        long[] sendTimes = new long[frames.size()];
+        synchronized (this) {
+            long interval = srtt > 0 ? (long) (TimeUnit.MILLISECONDS.toNanos(srtt) / cwnd) : 0;
+            for (int i = 0; i < frames.size(); i++) {
+                if ((frames.get(i)[1] & FLAG_DATA) == 0 || interval == 0) {
+                    sendTimes[i] = now;
+                    continue;
+                }
+                sendTimes[i] = nextPaceTime - now > 0 ? nextPaceTime : now;
+                nextPaceTime = sendTimes[i] + interval;
+            }
+        }
+        for (int i = 0; i < frames.size(); i++) {
+            if (sendTimes[i] - now <= 0) {
+                transport.sendFrame(frames.get(i));
+            } else {
+                long seq = ByteBuffer.wrap(frames.get(i), SEQ_OFFSET, 8).getLong();
+                pacer.schedule(transport, frames.get(i), sendTimes[i], () -> transmitted(seq));
+            }
+        }
+    }
+
+
+    // a paced data frame just left, its times start now instead of when it was put into the window
+    private void transmitted(long seq) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Segment segment = inFlight.get(seq);
+            if (segment == null) return;
+            segment.lastSent = Math.max(segment.lastSent, now);
+            if (!segment.retransmitted) {
+                segment.firstSent = segment.lastSent;
+            }
+        }
+    }
+
+
+    // a message or a fragment, queued or in flight
+    private static class Segment {
+        final byte[] payload;
+        final boolean fragment;
+        long seq = -1;
+        long firstSent;
+        long lastSent;
+        int retries = 0;
+        int dupAcks = 0;
+        boolean retransmitted = false;
+
+
+        Segment(byte[] payload, boolean fragment) {
+            this.payload = payload;
+            this.fragment = fragment;
+        }
+    }
+
+
+    // the fragments of a message received so far
+    private static class Reassembly {
+        final int count;
+        // the count comes from the peer, so parts are not preallocated
+        final HashMap<Integer, byte[]> parts = new HashMap<>();
+        long bytes = 0;
+        long lastUpdate;
+
+
+        Reassembly(int count) {
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package unimelb.bitbox.util.ConnectionUtils.Peer;
+
+
+import unimelb.bitbox.Constants;
+import unimelb.bitbox.util.Configuration;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+
+/**
+ * UDPSender is a singleton class which owns the thread sending all the UDP datagrams.
+ * <p>
+ * Each {@link UDPConnection} queues its outbound datagrams and asks the sender to flush it,
+ * the sender drains the connections in turn through one reused direct buffer,
+ * so the pool threads never block on the socket.
+ * When the peer supports it, small datagrams queued together are sent as one batch datagram:
+ * <pre>
+ * magic (1) | length (2) | datagram | length (2) | datagram ...
+ * </pre>
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class UDPSender {
+    private static Logger log = Logger.getLogger(UDPSender.class.getName());
+
+    /**
+     * True if this peer offers batching, it is used when both peers offer it
+     */
+    public static final boolean BATCH_ENABLED = Boolean.parseBoolean(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_UDP_BATCH, "true"));
+
+    /**
+     * First byte of a batch datagram, neither a JSON message nor a reliable frame starts with it
+     */
+    public static final byte BATCH_MAGIC = (byte) 0xB2;
+
+    // a batch stays within one datagram of the reliable layer, so it is not fragmented by IP either
+    static final int BATCH_SIZE = UDPReliableSession.MAX_DATAGRAM_SIZE > 0 ? UDPReliableSession.MAX_DATAGRAM_SIZE : 1472;
+    static final int BATCH_HEADER_SIZE = 1;
+    static final int BATCH_LENGTH_SIZE = 2;
+    // datagrams sent for one connection before letting the others go
+    static final int MAX_DATAGRAMS_PER_FLUSH = 64;
+    private static final int BUFFER_SIZE = 65536;
+
+    private static UDPSender instance = new UDPSender();
+
+
+    public static UDPSender getInstance() {
+        return instance;
+    }
+
+
+    private final LinkedBlockingQueue<UDPConnection> ready = new LinkedBlockingQueue<>();
+    private Thread thread = null;
+
+
+    private UDPSender() {
+    }
+
+
+    /**
+     * Ask for the outbound queue of a connection to be flushed
+     *
+     * @param conn the connection
+     */
+    public void schedule(UDPConnection conn) {
+        synchronized (this) {
+            if (thread == null) {
+                thread = new Thread(this::run, "UDP sender");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        ready.add(conn);
+    }
+
+
+    /**
+     * Check if a datagram is a batch
+     *
+     * @param data the datagram
+     * @return true if it is a batch
+     */
+    public static boolean isBatch(byte[] data) {
+        return data.length > BATCH_HEADER_SIZE && data[0] == BATCH_MAGIC;
+    }
+
+
+    /**
+     * Split a batch into the datagrams it carries, a truncated entry ends the batch
+     *
+     * @param data     the batch
+     * @param consumer called for each datagram
+     */
+    public static void unbatch(byte[] data, Consumer<byte[]> consumer) {
+        ByteBuffer buffer = ByteBuffer.wrap(data, BATCH_HEADER_SIZE, data.length - BATCH_HEADER_SIZE);
+        while (buffer.remaining() >= BATCH_LENGTH_SIZE) {
+            int length = buffer.getShort() & 0xFFFF;
+            if (length > buffer.remaining()) return;
+            byte[] datagram = new byte[length];
+            buffer.get(datagram);
+            consumer.accept(datagram);
+        }
+    }
+
+
+    /**
+     * Put as many of the given datagrams as fit into one batch, starting from the first one.
+     * Nothing is written unless at least two of them fit.
+     *
+     * @param datagrams the datagrams, the ones put into the batch are removed
+     * @param buffer    where the batch is written
+     * @return the number of datagrams in the batch
+     */
+    public static int batch(ArrayList<byte[]> datagrams, ByteBuffer buffer) {
+        int size = BATCH_HEADER_SIZE;
+        int count = 0;
+        while (count < datagrams.size() && size + BATCH_LENGTH_SIZE + datagrams.get(count).length <= BATCH_SIZE) {
+            size += BATCH_LENGTH_SIZE + datagrams.get(count).length;
+            count++;
+        }
+        if (count < 2) return 0;
+
+        buffer.clear();
+        buffer.put(BATCH_MAGIC);
+        for (byte[] datagram : datagrams.subList(0, count)) {
+            buffer.putShort((short) datagram.length);
+            buffer.put(datagram);
+        }
+        buffer.flip();
+        datagrams.subList(0, count).clear();
+        return count;
+    }
+
+
+    /**
+     * Put one datagram into the buffer to be sent alone
+     *
+     * @param datagram the datagram
+     * @param buffer   the buffer of the sender thread
+     * @return the buffer, or the datagram wrapped if it does not fit, the send fails then if it is over the UDP limit
+     */
+    public static ByteBuffer single(byte[] datagram, ByteBuffer buffer) {
+        if (datagram.length > buffer.capacity()) {
+            return ByteBuffer.wrap(datagram);
+        }
+        buffer.clear();
+        buffer.put(datagram);
+        buffer.flip();
+        return buffer;
+    }
+
+
+    private void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                ready.take().flush(buffer);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                log.warning("UDP sender: " + e.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package unimelb.bitbox.util.FileSystem;
+
+
+import unimelb.bitbox.Constants;
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.ConnectionUtils.Peer.Connection;
+import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.Scheduler;
+import unimelb.bitbox.util.ThreadPool.Priority;
+import unimelb.bitbox.util.ThreadPool.PriorityTask;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * BlockCompressor is a singleton class which compresses the blocks of FILE_BYTES_RESPONSE.
+ * <p>
+ * Blocks are compressed with Deflate, and only sent compressed when it saves enough bytes.
+ * Once a block of a file does not compress well, the rest of the file is sent as is,
+ * the MD5 of such files are kept in a small LRU set.
+ * The bytes saved are counted per peer.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class BlockCompressor {
+    private static Logger log = Logger.getLogger(BlockCompressor.class.getName());
+
+    // compression algorithm used by blocks, null to disable
+    public static final String COMPRESSION = parseCompression(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_COMPRESSION, Constants.PROTOCOL_COMPRESSION_DEFLATE));
+
+    private static final int STATUS_LOG_INTERVAL_IN_SEC = 30;
+    // blocks smaller than this are not worth compressing
+    private static final int MIN_BLOCK_SIZE = 512;
+    // compressed size must be under this ratio of the original size
+    private static final double MAX_RATIO = 0.9;
+    private static final int INCOMPRESSIBLE_CACHE_SIZE = 256;
+
+    private static BlockCompressor instance = new BlockCompressor();
+
+
+    public static BlockCompressor getInstance() {
+        return instance;
+    }
+
+
+    // deflaters and inflaters hold native memory, reuse them per thread
+    private final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+
+    private final Set<String> incompressible = Collections.newSetFromMap(
+            new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > INCOMPRESSIBLE_CACHE_SIZE;
+                }
+            });
+
+    private final ConcurrentHashMap<HostPort, Savings> peerSavings = new ConcurrentHashMap<>();
+    private final Savings totalSavings = new Savings();
+
+
+    private BlockCompressor() {
+    }
+
+
+    /**
+     * Register the periodic status log, should be called during the initialization stage
+     */
+    public void init() {
+        if (COMPRESSION == null) return;
+        Scheduler.getInstance().addTask(STATUS_LOG_INTERVAL_IN_SEC, TimeUnit.SECONDS,
+                new PriorityTask(
+                        "log compression savings",
+                        Priority.LOW,
+                        this::logStatus
+                ));
+    }
+
+
+    /**
+     * Compress a block of a file to be sent to the given peer
+     *
+     * @param conn the peer the block is sent to
+     * @param md5  the MD5 of the file
+     * @param data the block
+     * @return the compressed block, or null if it should be sent as is
+     */
+    public byte[] compress(Connection conn, String md5, byte[] data) {
+        if (data.length < MIN_BLOCK_SIZE) return null;
+        synchronized (incompressible) {
+            if (incompressible.contains(md5)) return null;
+        }
+
+        Deflater def = deflater.get();
+        def.reset();
+        def.setInput(data);
+        def.finish();
+
+        // give up as soon as the output gets larger than worth it
+        int limit = (int) (data.length * MAX_RATIO);
+        byte[] buffer = new byte[limit];
+        int size = 0;
+        while (!def.finished() && size < limit) {
+            size += def.deflate(buffer, size, limit - size);
+        }
+
+        if (!def.finished()) {
+            synchronized (incompressible) {
+                incompressible.add(md5);
+            }
+            count(conn, data.length, data.length);
+            return null;
+        }
+
+        byte[] compressed = new byte[size];
+        System.arraycopy(buffer, 0, compressed, 0, size);
+        count(conn, data.length, size);
+        return compressed;
+    }
+
+
+    /**
+     * Decompress a block received
+     *
+     * @param compression the compression algorithm of the block
+     * @param data        the compressed block
+     * @param length      the length of the block before compression
+     * @return the block
+     * @throws DataFormatException if the algorithm is not supported or the data is corrupted
+     */
+    public byte[] decompress(String compression, byte[] data, int length) throws DataFormatException {
+        if (!Constants.PROTOCOL_COMPRESSION_DEFLATE.equals(compression)) {
+            throw new DataFormatException("unsupported compression: " + compression);
+        }
+
+        Inflater inf = inflater.get();
+        inf.reset();
+        inf.setInput(data);
+
+        byte[] result = new byte[length];
+        int size = 0;
+        while (size < length && !inf.finished()) {
+            int n = inf.inflate(result, size, length - size);
+            if (n == 0 && (inf.needsInput() || inf.needsDictionary())) break;
+            size += n;
+        }
+        if (size != length || !inf.finished()) {
+            throw new DataFormatException("block length mismatch");
+        }
+        return result;
+    }
+
+
+    /**
+     * Forget the counters of a disconnected peer
+     *
+     * @param hostPort the peer
+     */
+    public void removePeer(HostPort hostPort) {
+        if (hostPort != null) {
+            peerSavings.remove(hostPort);
+        }
+    }
+
+
+    /**
+     * @param hostPort the peer
+     * @return bytes saved for the given peer since it connected
+     */
+    public long getSavedBytes(HostPort hostPort) {
+        Savings savings = peerSavings.get(hostPort);
+        return savings == null ? 0 : savings.saved();
+    }
+
+
+    /**
+     * @return bytes saved for all the peers since started
+     */
+    public long getTotalSavedBytes() {
+        return totalSavings.saved();
+    }
+
+
+    // add the original and the sent size of a block to the counters
+    private void count(Connection conn, long original, long sent) {
+        totalSavings.add(original, sent);
+        if (conn.getHostPort() != null) {
+            peerSavings.computeIfAbsent(conn.getHostPort(), k -> new Savings()).add(original, sent);
+        }
+    }
+
+
+    private void logStatus() {
+        if (totalSavings.original.get() == 0) return;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Compression saved %d of %d bytes", totalSavings.saved(), totalSavings.original.get()));
+        for (Map.Entry<HostPort, Savings> entry : peerSavings.entrySet()) {
+            sb.append(String.format(", %s: %d/%d", entry.getKey(),
+                    entry.getValue().saved(), entry.getValue().original.get()));
+        }
+        log.info(sb.toString());
+    }
+
+
+    // only deflate is built in, anything else disables the compression
+    private static String parseCompression(String value) {
+        if (Constants.PROTOCOL_COMPRESSION_DEFLATE.equalsIgnoreCase(value.trim())) {
+            return Constants.PROTOCOL_COMPRESSION_DEFLATE;
+        }
+        return null;
+    }
+
+
+    // bytes before and after compression
+    private static class Savings {
+        final AtomicLong original = new AtomicLong();
+        final AtomicLong sent = new AtomicLong();
+
+
+        void add(long original, long sent) {
+            this.original.addAndGet(original);
+            this.sent.addAndGet(sent);
+        }
+
+
+        long saved() {
+            return original.get() - sent.get();
+        }
+    }
+}
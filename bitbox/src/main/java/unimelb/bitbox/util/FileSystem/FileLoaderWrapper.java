@@ -4,13 +4,20 @@ package unimelb.bitbox.util.FileSystem;
 import unimelb.bitbox.protocol.Protocol;
 import unimelb.bitbox.protocol.ProtocolField;
 import unimelb.bitbox.util.ConnectionUtils.Peer.Connection;
+import unimelb.bitbox.util.Histogram;
+import unimelb.bitbox.util.InFlightTable;
+import unimelb.bitbox.util.LogSampler;
 import unimelb.bitbox.util.MessageHandler;
+import unimelb.bitbox.util.Metrics.Counter;
+import unimelb.bitbox.util.Metrics.MetricsRegistry;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
 
 
 /**
@@ -18,6 +25,8 @@ import java.util.logging.Logger;
  * A number of requests (REQUEST_LIMIT) are sent firstly and then when we get a response we send a request.
  * In other words, a 'window' is used to get all the file bytes.
  * Additionally, it also tries to get file bytes from multiple connections if possible.
+ * Requests are only sent after the transfer is admitted by {@link TransferScheduler}.
+ * The pending ranges are cut into blocks when requested, each one fits the block size of its connection.
  *
  * @author Weizhi Xu (752454)
  * @author Wenqing Xue (813044)
@@ -28,8 +37,17 @@ public class FileLoaderWrapper {
     private static Logger log = Logger.getLogger(Connection.class.getName());
 
 
-    private static final int REQUEST_LIMIT = 10; // the number of requests in the first batch
+    private static final int REQUEST_LIMIT = 10; // the number of requests in the first batch, per stream
     private static final long TIMEOUT_IN_MILLIS = 20000;
+    // a line per block received
+    private static final LogSampler TRANSFER_LOG = LogSampler.get("transfer");
+
+    private static final Counter BYTES_LOADED = MetricsRegistry.getInstance().counter(
+            "bitbox_file_loader_bytes_total", "File bytes received and written");
+    private static final Counter RETRIES = MetricsRegistry.getInstance().counter(
+            "bitbox_file_loader_retries_total", "Blocks requested again after an invalid response or a lost connection");
+    private static final Histogram LOAD_TIMES = MetricsRegistry.getInstance().histogram(
+            "bitbox_file_loader_duration_milliseconds", "Time from the transfer being admitted to the file complete");
 
     // messages that are pending to be sent
     private final LinkedList<ProtocolField.FilePosition> pending = new LinkedList<>();
@@ -37,10 +55,13 @@ public class FileLoaderWrapper {
 
     private ProtocolField.FileDes fileDes;
     private FileSystemManager fileSystemManager;
+    private final long windowBytes;
+    private boolean started = false;
+    private long startTime;
 
 
     /**
-     * Constructor of FileLoaderWrapper
+     * Constructor of FileLoaderWrapper, nothing is requested until it is submitted to {@link TransferScheduler}
      *
      * @param fileDes           the file descriptor
      * @param fileSystemManager the file system manager
@@ -51,24 +72,58 @@ public class FileLoaderWrapper {
         this.fileDes = fileDes;
         this.fileSystemManager = fileSystemManager;
 
-        long base = 0, remaining = fileDes.fileSize;
-
         synchronized (this) {
 
             connectionInfoMap.put(conn, new ConnectionInfo());
 
-            // Split the whole file into blocks and save it to the pending list
-            while (remaining > 0) {
-                ProtocolField.FilePosition pos = new ProtocolField.FilePosition();
-                pos.pos = base;
-                pos.len = Math.min(remaining, conn.getBlockSize());
-                base += pos.len;
-                remaining -= pos.len;
-                pending.addLast(pos);
+            // the whole file is pending, it is split into blocks as they are requested
+            if (fileDes.fileSize > 0) {
+                pending.addLast(position(0, fileDes.fileSize));
+            }
+        }
+
+        windowBytes = Math.min(fileDes.fileSize, requestLimit(conn) * conn.getBlockSize());
+    }
+
+
+    /**
+     * Start requesting bytes from all the connections, called by {@link TransferScheduler} once admitted
+     */
+    public void start() {
+        ArrayList<Connection> connections;
+        synchronized (this) {
+            started = true;
+            startTime = System.currentTimeMillis();
+            // time spent in the queue should not count as inactive
+            long now = System.currentTimeMillis();
+            for (ConnectionInfo info : connectionInfoMap.values()) {
+                info.lastActiveTime = now;
             }
+            connections = new ArrayList<>(connectionInfoMap.keySet());
+        }
+
+        if (fileDes.fileSize == 0) {
+            // nothing to request
+            complete();
+            return;
+        }
+
+        for (Connection conn : connections) {
+            send(requestLimit(conn), conn);
         }
+    }
+
+
+    public long getFileSize() {
+        return fileDes.fileSize;
+    }
+
 
-        send(REQUEST_LIMIT, conn);
+    /**
+     * @return the maximum bytes this transfer can have outstanding at the same time
+     */
+    public long getWindowBytes() {
+        return windowBytes;
     }
 
 
@@ -94,9 +149,11 @@ public class FileLoaderWrapper {
             if (connectionInfoMap.containsKey(conn)) return;
             ConnectionInfo connectionInfo = new ConnectionInfo();
             connectionInfoMap.put(conn, connectionInfo);
+            // requests will be sent once the transfer is admitted
+            if (!started) return;
         }
 
-        send(REQUEST_LIMIT, conn);
+        send(requestLimit(conn), conn);
     }
 
 
@@ -114,28 +171,51 @@ public class FileLoaderWrapper {
             return;
         }
 
-        ProtocolField.FilePosition pos = new ProtocolField.FilePosition();
-        pos.len = fileBytesResponse.fileContent.len;
-        pos.pos = fileBytesResponse.fileContent.pos;
+        ProtocolField.FileContent fc = fileBytesResponse.fileContent;
+        long key = waitingKey(fileBytesResponse.requestId, fc.pos);
 
         ConnectionInfo connectionInfo;
+        ProtocolField.FilePosition pos;
 
         // check if the request is the one we are waiting for and if yes, update last active time
         synchronized (this) {
             connectionInfo = connectionInfoMap.get(conn);
+            if (connectionInfo == null) {
+                return;
+            }
 
-            if (connectionInfo == null || !connectionInfo.waiting.contains(pos)) {
+            pos = connectionInfo.waiting.get(key);
+            if (pos == null || pos.pos != fc.pos || pos.len != fc.len) {
                 return;
             }
             connectionInfo.lastActiveTime = System.currentTimeMillis();
 
-            log.info(String.format("load process [%s] waiting[%s]: %d, total pending: %d", fileDes.path,
-                    conn.getHostPort(), connectionInfo.waiting.size(), pending.size()));
+            if (TRANSFER_LOG.isLoggable(log, Level.INFO)) {
+                TRANSFER_LOG.log(log, Level.INFO, "load process [{0}] waiting[{1}]: {2}, total pending: {3}",
+                        fileDes.path, conn.getHostPort(), String.valueOf(connectionInfo.waiting.size()),
+                        String.valueOf(pending.size()));
+            }
         }
 
         // write to the file according to the response received
-        ProtocolField.FileContent fc = fileBytesResponse.fileContent;
-        ByteBuffer src = ByteBuffer.wrap(Base64.getDecoder().decode(fc.content));
+        ByteBuffer src;
+        try {
+            byte[] content = Base64.getDecoder().decode(fc.content);
+            if (fc.compression != null) {
+                content = BlockCompressor.getInstance().decompress(fc.compression, content, (int) fc.len);
+            }
+            src = ByteBuffer.wrap(content);
+        } catch (IllegalArgumentException | DataFormatException e) {
+            // request the block again
+            log.warning("invalid file bytes " + filePath + ": " + e.getMessage());
+            RETRIES.inc();
+            synchronized (this) {
+                connectionInfo.waiting.remove(key);
+                pending.addFirst(pos);
+            }
+            send(1, conn);
+            return;
+        }
         try {
             if (!fileSystemManager.writeFile(filePath, src, fc.pos)) {
                 cancel();
@@ -145,13 +225,14 @@ public class FileLoaderWrapper {
             log.warning(e.toString());
             return;
         }
+        BYTES_LOADED.add(fc.len);
 
 
         // send the next request
         send(1, conn);
 
         synchronized (this) {
-            connectionInfo.waiting.remove(pos);
+            connectionInfo.waiting.remove(key);
 
             // only check complete when there is nothing in the pending list or waiting sets
             if (!pending.isEmpty()) return;
@@ -160,14 +241,70 @@ public class FileLoaderWrapper {
             }
         }
 
-        // check if the whole file is completed for transmitting
-        try {
-            fileSystemManager.checkWriteComplete(fileBytesResponse.fileDes.path);
-        } catch (NoSuchAlgorithmException | IOException ignored) {
-            cancel();
+        complete();
+    }
+
+
+    /**
+     * Deal with a block refused by the peer as larger than it serves, it is requested again in two halves
+     *
+     * @param fileBytesResponse the failed file byte response
+     * @param conn              the connection that refused the block
+     */
+    public void rejected(Protocol.FileBytesResponse fileBytesResponse, Connection conn) {
+        if (!fileDes.md5.equals(fileBytesResponse.fileDes.md5)) return;
+
+        ProtocolField.FileContent fc = fileBytesResponse.fileContent;
+        long key = waitingKey(fileBytesResponse.requestId, fc.pos);
+        synchronized (this) {
+            ConnectionInfo connectionInfo = connectionInfoMap.get(conn);
+            if (connectionInfo == null) return;
+            ProtocolField.FilePosition pos = connectionInfo.waiting.get(key);
+            if (pos == null || pos.pos != fc.pos || pos.len != fc.len || pos.len < 2) return;
+
+            connectionInfo.waiting.remove(key);
+            long half = pos.len / 2;
+            pending.addFirst(position(pos.pos + half, pos.len - half));
+            pending.addFirst(position(pos.pos, half));
+            RETRIES.inc();
         }
+        send(2, conn);
+    }
 
-        MessageHandler.removeFileLoaderWrapper(this, fileDes.path);
+
+    /**
+     * Stop using a closed connection, the blocks it was loading are given to the other connections
+     *
+     * @param conn the closed connection
+     */
+    public void removeConnection(Connection conn) {
+        HashMap<Connection, Integer> refill = new HashMap<>();
+        synchronized (this) {
+            ConnectionInfo connectionInfo = connectionInfoMap.remove(conn);
+            if (connectionInfo == null) return;
+            connectionInfo.waiting.forEachValue(pending::addFirst);
+            RETRIES.add(connectionInfo.waiting.size());
+
+            log.info("Connection removed, path:" + fileDes.path + ", Connection: " + conn.getHostPort());
+
+            if (connectionInfoMap.isEmpty()) {
+                log.info("Task cleaned, path:" + fileDes.path);
+                cancel();
+                return;
+            }
+            if (!started) return;
+
+            // the others only send a request when they get a response, fill up their windows now
+            for (Map.Entry<Connection, ConnectionInfo> entry : connectionInfoMap.entrySet()) {
+                refill.put(entry.getKey(), requestLimit(entry.getKey()) - entry.getValue().waiting.size());
+            }
+        }
+
+        for (Map.Entry<Connection, Integer> entry : refill.entrySet()) {
+            if (entry.getValue() > 0) {
+                send(entry.getValue(), entry.getKey());
+            }
+        }
     }
 
 
@@ -175,6 +312,8 @@ public class FileLoaderWrapper {
     public void clean() {
         // not accurate since this will be triggered roughly every syncInterval and with low priority
         synchronized (this) {
+            // still waiting in the queue
+            if (!started) return;
 
             Iterator<Map.Entry<Connection, ConnectionInfo>> it = connectionInfoMap.entrySet().iterator();
 
@@ -182,7 +321,8 @@ public class FileLoaderWrapper {
                 Map.Entry<Connection, ConnectionInfo> entry = it.next();
                 // time out, remove this connection and add everything back to pending list
                 if (System.currentTimeMillis() - entry.getValue().lastActiveTime > TIMEOUT_IN_MILLIS) {
-                    pending.addAll(entry.getValue().waiting);
+                    entry.getValue().waiting.forEachValue(pending::add);
+                    RETRIES.add(entry.getValue().waiting.size());
                     it.remove();
 
                     log.info("Connection cleaned, path:" + fileDes.path
@@ -201,20 +341,42 @@ public class FileLoaderWrapper {
 
     // stores the last active time and waiting set (requests have been set and still waiting for response
     private static class ConnectionInfo {
-        HashSet<ProtocolField.FilePosition> waiting;
+        InFlightTable<ProtocolField.FilePosition> waiting;
         long lastActiveTime;
 
 
         public ConnectionInfo() {
-            waiting = new HashSet<>();
+            waiting = new InFlightTable<>(REQUEST_LIMIT);
             lastActiveTime = System.currentTimeMillis();
         }
     }
 
 
-    // send pending messages up to the limit
+    // a full window on every stream of the peer
+    private static int requestLimit(Connection conn) {
+        return REQUEST_LIMIT * conn.getStreamCount();
+    }
+
+
+    // key of a request in the waiting table, the request id if the peer echoes it,
+    // otherwise the position of the block (shifted by one as 0 is not a valid key), which is unique in the file
+    private static long waitingKey(long requestId, long pos) {
+        return (requestId != 0) ? requestId : pos + 1;
+    }
+
+
+    // a range of the file
+    private static ProtocolField.FilePosition position(long pos, long len) {
+        ProtocolField.FilePosition position = new ProtocolField.FilePosition();
+        position.pos = pos;
+        position.len = len;
+        return position;
+    }
+
+
+    // send pending messages up to the limit, a range larger than a block of the connection is cut
     private void send(int limit, Connection conn) {
-        ArrayList<ProtocolField.FilePosition> posList = new ArrayList<>();
+        ArrayList<Protocol.FileBytesRequest> requests = new ArrayList<>();
 
         synchronized (this) {
             ConnectionInfo connectionInfo = connectionInfoMap.get(conn);
@@ -223,29 +385,50 @@ public class FileLoaderWrapper {
             for (int i = 0; i < limit; i++) {
                 ProtocolField.FilePosition sendPos;
                 sendPos = pending.pollFirst();
+                if (sendPos != null && sendPos.len > conn.getBlockSize()) {
+                    long blockSize = Math.max(1, conn.getBlockSize());
+                    pending.addFirst(position(sendPos.pos + blockSize, sendPos.len - blockSize));
+                    sendPos = position(sendPos.pos, blockSize);
+                }
                 if (sendPos != null) {
-                    connectionInfo.waiting.add(sendPos);
-                    posList.add(sendPos);
+                    Protocol.FileBytesRequest fileBytesRequest = new Protocol.FileBytesRequest();
+                    fileBytesRequest.fileDes = this.fileDes;
+                    fileBytesRequest.filePos = sendPos;
+                    fileBytesRequest.requestId = conn.nextRequestId();
+                    connectionInfo.waiting.put(waitingKey(fileBytesRequest.requestId, sendPos.pos), sendPos);
+                    requests.add(fileBytesRequest);
                 } else {
                     break;
                 }
             }
         }
 
-        for (ProtocolField.FilePosition pos : posList) {
-            SendFileByteRequest(pos, conn);
+        for (Protocol.FileBytesRequest fileBytesRequest : requests) {
+            SendFileByteRequest(fileBytesRequest, conn);
         }
     }
 
 
     // send the file byte request to the connection
-    private void SendFileByteRequest(ProtocolField.FilePosition filePosition, Connection conn) {
-        Protocol.FileBytesRequest fileBytesRequest = new Protocol.FileBytesRequest();
+    private void SendFileByteRequest(Protocol.FileBytesRequest fileBytesRequest, Connection conn) {
+        TransferScheduler.getInstance().acquireBandwidth(conn, fileBytesRequest.filePos.len,
+                () -> conn.sendAsync(fileBytesRequest));
+    }
 
-        fileBytesRequest.fileDes = this.fileDes;
-        fileBytesRequest.filePos = filePosition;
 
-        conn.sendAsync(fileBytesRequest);
+    // check if the whole file is completed for transmitting
+    private void complete() {
+        synchronized (this) {
+            LOAD_TIMES.record(System.currentTimeMillis() - startTime);
+        }
+        try {
+            fileSystemManager.checkWriteComplete(fileDes.path);
+        } catch (NoSuchAlgorithmException | IOException ignored) {
+            cancel();
+        }
+
+        MessageHandler.removeFileLoaderWrapper(this, fileDes.path);
+        TransferScheduler.getInstance().finish(this);
     }
 
 
@@ -257,5 +440,6 @@ public class FileLoaderWrapper {
         }
 
         MessageHandler.removeFileLoaderWrapper(this, fileDes.path);
+        TransferScheduler.getInstance().finish(this);
     }
 }
@@ -2,16 +2,23 @@ package unimelb.bitbox.util.FileSystem;
 
 
 import unimelb.bitbox.util.Document;
+import unimelb.bitbox.util.Histogram;
+import unimelb.bitbox.util.LogSampler;
+import unimelb.bitbox.util.Metrics.Counter;
+import unimelb.bitbox.util.Metrics.MetricsRegistry;
+import unimelb.bitbox.util.ThreadPool.Priority;
+import unimelb.bitbox.util.ThreadPool.PriorityTask;
+import unimelb.bitbox.util.ThreadPool.PriorityThreadPool;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.file.*;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -40,6 +47,7 @@ import java.util.logging.Logger;
  * <li>{@link #makeDirectory(String)}</li>
  * <li>{@link #modifyFileLoader(String, String, long, long)}</li>
  * <li>{@link #writeFile(String, ByteBuffer, long)}</li>
+ * <li>{@link #writeInlineFiles(List)}</li>
  *
  * @author Aaron Harwood
  * @author Andrew Linxi Wang (contributions to Windows compatibility)
@@ -54,6 +62,16 @@ import java.util.logging.Logger;
 public class FileSystemManager extends Thread {
     private static Logger log = Logger.getLogger(FileSystemManager.class.getName());
 
+    private static final Counter HASHED_BYTES = MetricsRegistry.getInstance().counter(
+            "bitbox_hash_bytes_total", "Bytes read to compute MD5 checksums");
+    private static final Histogram HASH_TIMES = MetricsRegistry.getInstance().histogram(
+            "bitbox_hash_duration_microseconds", "Time to compute the MD5 checksum of a file");
+    private static final Histogram SCAN_TIMES = MetricsRegistry.getInstance().histogram(
+            "bitbox_scan_duration_milliseconds", "Time to scan the share directory for new and modified files");
+    // a line per file hashed and per block read
+    private static final LogSampler HASH_LOG = LogSampler.get("hash");
+    private static final LogSampler TRANSFER_LOG = LogSampler.get("transfer");
+
     /**
      * The special suffix on file names for loading files. Any files in the
      * share directory with this suffix will never generate file system events,
@@ -98,6 +116,24 @@ public class FileSystemManager extends Thread {
     }
 
 
+    /**
+     * How {@link #checkShortcut(String)} creates a file from a local file with the same content.
+     * <li>{@link #COPY}</li>
+     * <li>{@link #HARDLINK}</li>
+     */
+    public enum ShortcutStrategy {
+        /**
+         * Copy the content in the background, outside of the file system manager lock.
+         */
+        COPY,
+        /**
+         * Create a hard link to the local file when it already has the expected timestamp,
+         * otherwise copy. Both names share the content afterwards, so in place writes affect both.
+         */
+        HARDLINK
+    }
+
+
     /**
      * Describes the case when a file is
      * created/deleted/modified or when a directory is created/deleted.
@@ -216,6 +252,53 @@ public class FileSystemManager extends Thread {
     }
 
 
+    /**
+     * A small file whose whole content is already available, see {@link #writeInlineFiles(List)}.
+     */
+    public static class InlineFile {
+        /**
+         * The pathname of the file, relative to the share directory.
+         */
+        public String pathName;
+        /**
+         * The MD5 hash the content must match.
+         */
+        public String md5;
+        /**
+         * The last modified timestamp to use for the file.
+         */
+        public long lastModified;
+        /**
+         * The whole content of the file.
+         */
+        public byte[] content;
+        /**
+         * True to follow the rules of {@link #modifyFileLoader(String, String, long, long)},
+         * otherwise the rules of {@link #createFileLoader(String, String, long, long)}.
+         */
+        public boolean modify;
+
+
+        public InlineFile(String pathName, String md5, long lastModified, byte[] content, boolean modify) {
+            this.pathName = pathName;
+            this.md5 = md5;
+            this.lastModified = lastModified;
+            this.content = content;
+            this.modify = modify;
+        }
+    }
+
+
+    /**
+     * Set the strategy used by {@link #checkShortcut(String)}, {@link ShortcutStrategy#COPY} by default.
+     *
+     * @param shortcutStrategy The strategy to use.
+     */
+    public void setShortcutStrategy(ShortcutStrategy shortcutStrategy) {
+        this.shortcutStrategy = shortcutStrategy;
+    }
+
+
     /**
      * Construct a new file system manager. If the supplied share directory is not a directory
      * that exists then the constructor will return without starting the monitor thread.
@@ -472,7 +555,9 @@ public class FileSystemManager extends Thread {
                 for (String attempt : hashMap.get(md5)) {
                     try {
                         File file = new File(attempt);
-                        log.info("reading file " + file);
+                        if (TRANSFER_LOG.isLoggable(log, Level.INFO)) {
+                            TRANSFER_LOG.log(log, Level.INFO, "reading file {0}", attempt);
+                        }
                         RandomAccessFile raf = new RandomAccessFile(file, "rw");
                         FileChannel channel = raf.getChannel();
                         FileLock lock = channel.lock();
@@ -539,13 +624,14 @@ public class FileSystemManager extends Thread {
     /**
      * Should be called directly after creating a file loader, but can be called at any time.
      * Requests the file loader to check if another file already exists with the same content,
-     * and if so, uses that file's content (i.e. does a copy) to create the intended file. The
-     * file loader is then complete and is no longer accessible.
+     * and if so, uses that file's content to create the intended file, see {@link ShortcutStrategy}.
+     * The file loader is then no longer accessible, a copy is completed in the background and the
+     * loader is simply dropped if the copy turns out not to match the MD5 hash.
      * This is much faster than transferring the bytes of the file
      * from a remote source.
      *
      * @param pathName The name of the file for the associated file loader.
-     * @return True if a shortcut was used, false otherwise.
+     * @return True if a shortcut was used or started, false otherwise.
      * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available, the loader is no longer available in this case.
      * @throws IOException              If there were any errors accessing the file system, the loader is no longer available in this case.
      */
@@ -555,15 +641,16 @@ public class FileSystemManager extends Thread {
             String fullPathName = root + FileSystems.getDefault().getSeparator() + pathName;
             if (!loadingFiles.containsKey(fullPathName)) return false;
             boolean check = false;
+            FileLoader fl = loadingFiles.get(fullPathName);
             try {
-                check = loadingFiles.get(fullPathName).checkShortcut();
+                check = fl.checkShortcut();
             } catch (IOException | NoSuchAlgorithmException e) {
-                FileLoader fl = loadingFiles.get(fullPathName);
                 loadingFiles.remove(fullPathName);
                 fl.cancel();
                 throw e;
             }
-            if (check) {
+            // a background copy keeps the loader until it is done
+            if (check && !fl.copying) {
                 loadingFiles.remove(fullPathName);
             }
             return check;
@@ -628,6 +715,31 @@ public class FileSystemManager extends Thread {
         return false;
     }
 
+    /**
+     * Write a batch of small files whose content is already known, without creating file loaders.
+     * Each file follows the same rules as {@link #createFileLoader(String, String, long, long)} or
+     * {@link #modifyFileLoader(String, String, long, long)}, and its content must match the given MD5 hash.
+     * The content is written to a loader file first and then renamed, so partial files are never seen.
+     *
+     * @param files The files to write.
+     * @return For each file, true if it was written.
+     * @throws NoSuchAlgorithmException If the MD5 hash algorithm is not available.
+     */
+    public boolean[] writeInlineFiles(List<InlineFile> files) throws NoSuchAlgorithmException {
+        boolean[] results = new boolean[files.size()];
+        MessageDigest md5Digest = MessageDigest.getInstance("MD5");
+        synchronized (this) {
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    results[i] = writeInlineFile(files.get(i), md5Digest);
+                } catch (IOException e) {
+                    log.warning("inline write failed " + files.get(i).pathName + ": " + e.getMessage());
+                }
+            }
+        }
+        return results;
+    }
+
     // synchronization
 
 
@@ -671,6 +783,7 @@ public class FileSystemManager extends Thread {
         private FileLock lock;
         private File file;
         private RandomAccessFile raf;
+        private boolean copying = false;
 
 
         public FileLoader(String pathName, String md5, long length, long lastModified) throws IOException {
@@ -682,76 +795,139 @@ public class FileSystemManager extends Thread {
             if (file.exists()) throw new IOException("file loader already in progress");
             log.info("creating file " + file.getPath());
             file.createNewFile();
+        }
+
+
+        // the channel and lock are only taken once the loader is written to,
+        // so queued transfers do not hold them
+        private void open() throws IOException {
+            if (raf != null) return;
             raf = new RandomAccessFile(file, "rw");
             channel = raf.getChannel();
             lock = channel.lock();
         }
 
 
-        public boolean cancel() throws IOException {
+        private void close() throws IOException {
+            if (raf == null) return;
             lock.release();
             channel.close();
             raf.close();
+            raf = null;
+        }
+
+
+        public boolean cancel() throws IOException {
+            close();
             return file.delete();
         }
 
 
         public boolean checkShortcut() throws NoSuchAlgorithmException, IOException {
             // check for a shortcut
-            boolean success = false;
+            String source = null;
             if (hashMap.containsKey(md5)) {
                 for (String attempt : hashMap.get(md5)) {
-                    RandomAccessFile raf2 = null;
-                    FileChannel channel2 = null;
-                    FileLock lock2 = null;
-                    try {
-                        File file = new File(attempt);
-                        raf2 = new RandomAccessFile(file, "rw");
-                        channel2 = raf2.getChannel();
-                        lock2 = channel2.lock();
-                        String currentMd5 = hashFile(file, attempt, watchedFiles.get(attempt).lastModified);
-                        if (currentMd5.equals(md5)) {
-                            Path dest = Paths.get(pathName);
-                            CopyOption[] options = new CopyOption[]{
-                                    StandardCopyOption.REPLACE_EXISTING
-                            };
-                            InputStream is = Channels.newInputStream(channel2);
-                            Files.copy(is, dest, options);
-                            dest.toFile().setLastModified(lastModified);
-                            success = true;
-                            break;
+                    File file = new File(attempt);
+                    if (file.isFile() && hashFile(file, attempt, watchedFiles.get(attempt).lastModified).equals(md5)) {
+                        source = attempt;
+                        // a hard link shares the timestamp, so it is only used when the timestamp already matches
+                        if (shortcutStrategy == ShortcutStrategy.HARDLINK && !attempt.equals(pathName) &&
+                                watchedFiles.get(attempt).lastModified == lastModified && link(attempt)) {
+                            return true;
                         }
-                    } catch (IOException e) {
-                        e.printStackTrace(); // try another one
-                    } finally {
-                        if (lock2 != null) lock2.release();
-                        if (channel2 != null) channel2.close();
-                        if (raf2 != null) raf2.close();
                     }
                 }
             }
-            if (success) {
-                lock.release();
-                channel.close();
-                raf.close();
-                file.delete();
+            if (source == null) return false;
+
+            // copying a large file takes a while, do not block everything else
+            close();
+            copying = true;
+            String copySource = source;
+            PriorityThreadPool.getInstance().submitTask(new PriorityTask(
+                    "shortcut copy " + pathName,
+                    Priority.NORMAL,
+                    () -> copy(copySource)
+            ));
+            return true;
+        }
+
+
+        // replace the loader file by a hard link to the source and move it into place
+        private boolean link(String source) {
+            try {
+                close();
+                Files.deleteIfExists(file.toPath());
+                Files.createLink(file.toPath(), Paths.get(source));
+                Files.move(file.toPath(), Paths.get(pathName), StandardCopyOption.REPLACE_EXISTING);
+                return true;
+            } catch (IOException | UnsupportedOperationException e) {
+                log.warning("hard link failed " + pathName + ": " + e.getMessage());
+                try {
+                    // back to an empty loader file for the copy
+                    Files.deleteIfExists(file.toPath());
+                    file.createNewFile();
+                } catch (IOException ignored) {
+                }
+                return false;
+            }
+        }
+
+
+        // copy the source into the loader file, called without holding the lock
+        private void copy(String source) {
+            boolean success = false;
+            try {
+                try (FileChannel in = FileChannel.open(Paths.get(source), StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                             StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long size = in.size();
+                    long position = 0;
+                    while (position < size) {
+                        long transferred = in.transferTo(position, size - position, out);
+                        if (transferred <= 0) break;
+                        position += transferred;
+                    }
+                }
+                // the source is not locked, it may have changed during the copy
+                success = getFileChecksum(MessageDigest.getInstance("MD5"), file).equals(md5);
+            } catch (IOException | NoSuchAlgorithmException e) {
+                log.warning("shortcut copy failed " + pathName + ": " + e.getMessage());
+            }
+
+            synchronized (FileSystemManager.this) {
+                // cancelled in the meantime
+                if (loadingFiles.get(pathName) != this) return;
+                loadingFiles.remove(pathName);
+
+                if (success) {
+                    File dest = new File(pathName);
+                    if (dest.exists()) dest.delete();
+                    success = file.renameTo(dest);
+                    dest.setLastModified(lastModified);
+                }
+                if (!success) {
+                    // the file will be requested again at the next synchronization
+                    log.warning("shortcut copy dropped " + pathName);
+                    file.delete();
+                }
             }
-            return success;
         }
 
 
         public void writeFile(ByteBuffer src, long position) throws IOException {
             if (position > length) throw new IOException("trying to write bytes beyond what is expected");
+            open();
             channel.write(src, position);
         }
 
 
         public boolean checkWriteComplete() throws NoSuchAlgorithmException, IOException {
+            open();
             String currentMd5 = hashFile(file, pathName, 0, raf);
             if (currentMd5.equals(md5)) {
-                lock.release();
-                channel.close();
-                raf.close();
+                close();
                 File dest = new File(pathName);
                 if (dest.exists()) dest.delete();
                 file.renameTo(dest);
@@ -770,6 +946,7 @@ public class FileSystemManager extends Thread {
     private String root;
     private String cannonicalRoot;
     private HashMap<String, FileLoader> loadingFiles;
+    private volatile ShortcutStrategy shortcutStrategy = ShortcutStrategy.COPY;
 
 
     public void run() {
@@ -780,7 +957,9 @@ public class FileSystemManager extends Thread {
             // check for new/modified files
             try {
                 synchronized (this) {
+                    long start = System.currentTimeMillis();
                     pathevents.addAll(scanDirectoryTree(root));
+                    SCAN_TIMES.record(System.currentTimeMillis() - start);
                 }
             } catch (NoSuchAlgorithmException e1) {
                 log.severe(e1.getMessage());
@@ -840,8 +1019,37 @@ public class FileSystemManager extends Thread {
     }
 
 
+    private boolean writeInlineFile(InlineFile inlineFile, MessageDigest md5Digest) throws IOException {
+        String fullPathName = root + FileSystems.getDefault().getSeparator() + separatorsToSystem(inlineFile.pathName);
+        if (loadingFiles.containsKey(fullPathName)) return false;
+        FileDescriptor existing = watchedFiles.get(fullPathName);
+        if (inlineFile.modify) {
+            if (existing == null || existing.lastModified > inlineFile.lastModified) return false;
+        } else {
+            if (existing != null && existing.lastModified >= inlineFile.lastModified) return false;
+        }
+
+        md5Digest.reset();
+        if (!toHex(md5Digest.digest(inlineFile.content)).equals(inlineFile.md5)) return false;
+
+        File file = new File(fullPathName + loadingSuffix);
+        if (file.exists()) return false;
+        try {
+            Files.write(file.toPath(), inlineFile.content, StandardOpenOption.CREATE_NEW);
+            File dest = new File(fullPathName);
+            Files.move(file.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            dest.setLastModified(inlineFile.lastModified);
+        } finally {
+            file.delete();
+        }
+        return true;
+    }
+
+
     private String hashFile(File file, String name, long lastModified) throws NoSuchAlgorithmException, IOException {
-        log.info("hashing file " + name);
+        if (HASH_LOG.isLoggable(log, Level.INFO)) {
+            HASH_LOG.log(log, Level.INFO, "hashing file {0}", name);
+        }
         if (lastModified != 0 && lastModified == file.lastModified()) {
             return watchedFiles.get(name).md5;
         }
@@ -852,7 +1060,9 @@ public class FileSystemManager extends Thread {
 
 
     private String hashFile(File file, String name, long lastModified, RandomAccessFile raf) throws NoSuchAlgorithmException, IOException {
-        log.info("hashing file " + name);
+        if (HASH_LOG.isLoggable(log, Level.INFO)) {
+            HASH_LOG.log(log, Level.INFO, "hashing file {0}", name);
+        }
         if (lastModified != 0 && lastModified == file.lastModified()) {
             return watchedFiles.get(name).md5;
         }
@@ -954,30 +1164,43 @@ public class FileSystemManager extends Thread {
 
 
     private static String getFileChecksum(MessageDigest digest, RandomAccessFile fis) throws IOException {
+        long start = System.nanoTime();
         byte[] byteArray = new byte[1024];
         int bytesCount = 0;
+        long total = 0;
         fis.seek(0);
         while ((bytesCount = fis.read(byteArray)) != -1) {
             digest.update(byteArray, 0, bytesCount);
+            total += bytesCount;
         }
-        byte[] bytes = digest.digest();
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < bytes.length; i++) {
-            sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
-        }
-        return sb.toString();
+        recordHash(total, start);
+        return toHex(digest.digest());
     }
 
 
     private static String getFileChecksum(MessageDigest digest, File file) throws IOException {
+        long start = System.nanoTime();
         FileInputStream fis = new FileInputStream(file);
         byte[] byteArray = new byte[1024];
         int bytesCount = 0;
+        long total = 0;
         while ((bytesCount = fis.read(byteArray)) != -1) {
             digest.update(byteArray, 0, bytesCount);
+            total += bytesCount;
         }
         fis.close();
-        byte[] bytes = digest.digest();
+        recordHash(total, start);
+        return toHex(digest.digest());
+    }
+
+
+    private static void recordHash(long bytes, long start) {
+        HASHED_BYTES.add(bytes);
+        HASH_TIMES.record((System.nanoTime() - start) / 1000);
+    }
+
+
+    private static String toHex(byte[] bytes) {
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < bytes.length; i++) {
             sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
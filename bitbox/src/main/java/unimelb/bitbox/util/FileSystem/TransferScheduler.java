@@ -0,0 +1,291 @@
+package unimelb.bitbox.util.FileSystem;
+
+
+import unimelb.bitbox.Constants;
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.ConnectionUtils.Peer.Connection;
+import unimelb.bitbox.util.HashedWheelTimer;
+import unimelb.bitbox.util.HostPort;
+import unimelb.bitbox.util.Scheduler;
+import unimelb.bitbox.util.ThreadPool.Priority;
+import unimelb.bitbox.util.ThreadPool.PriorityTask;
+import unimelb.bitbox.util.TokenBucket;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * TransferScheduler is a singleton class which limits the file transfers running at the same time.
+ * <p>
+ * Inbound transfers ({@link FileLoaderWrapper}) are queued and only start requesting bytes when admitted,
+ * smaller files are admitted first. A transfer is admitted when both the number of active transfers and
+ * the bytes they may have outstanding are under the configured limits.
+ * Outbound transfers (serving file bytes) are limited by the same number of slots.
+ * All file bytes also go through a global and a per-peer {@link TokenBucket}.
+ * Nothing here blocks the caller, a transfer waiting for a slot or for bandwidth is continued later
+ * in the lane of its connection.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class TransferScheduler {
+    private static Logger log = Logger.getLogger(TransferScheduler.class.getName());
+
+    private static final int STATUS_LOG_INTERVAL_IN_SEC = 30;
+
+    // transfers waiting for bandwidth are continued when the tokens are available
+    private static final HashedWheelTimer BANDWIDTH_TIMER =
+            new HashedWheelTimer("bandwidth shaping", 5, TimeUnit.MILLISECONDS, 256);
+
+    private static final int MAX_ACTIVE_TRANSFERS = Integer.parseInt(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_MAX_CONCURRENT_TRANSFERS, "16"));
+    private static final long MAX_OUTSTANDING_BYTES = Long.parseLong(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_MAX_OUTSTANDING_BYTES, "67108864"));
+    private static final long BANDWIDTH_LIMIT = Long.parseLong(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_BANDWIDTH_LIMIT, "0"));
+    private static final long PEER_BANDWIDTH_LIMIT = Long.parseLong(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_PEER_BANDWIDTH_LIMIT, "0"));
+
+    private static TransferScheduler instance = new TransferScheduler(MAX_ACTIVE_TRANSFERS, MAX_OUTSTANDING_BYTES,
+            BANDWIDTH_LIMIT, PEER_BANDWIDTH_LIMIT);
+
+
+    public static TransferScheduler getInstance() {
+        return instance;
+    }
+
+
+    // waiting transfers, smallest file first, then first come first serve
+    private final PriorityQueue<QueuedTransfer> queue = new PriorityQueue<>(
+            Comparator.comparingLong((QueuedTransfer t) -> t.fileSize).thenComparingLong(t -> t.seq));
+    private final HashSet<FileLoaderWrapper> active = new HashSet<>();
+    private long outstandingBytes = 0;
+    private long seq = 0;
+
+    // outbound transfers serving and waiting for a slot
+    private final ArrayDeque<Runnable> outboundQueue = new ArrayDeque<>();
+    private int outboundActive = 0;
+
+    private final int maxActiveTransfers;
+    private final long maxOutstandingBytes;
+    private final long peerBandwidthLimit;
+    private final TokenBucket globalBucket;
+    private final ConcurrentHashMap<HostPort, TokenBucket> peerBuckets = new ConcurrentHashMap<>();
+
+
+    /**
+     * Constructor, the shared scheduler is {@link #getInstance()}
+     *
+     * @param maxActiveTransfers  inbound transfers, and blocks being served, at the same time
+     * @param maxOutstandingBytes bytes the active inbound transfers may have outstanding
+     * @param bandwidthLimit      bytes per second of all the peers, 0 for no limit
+     * @param peerBandwidthLimit  bytes per second of each peer, 0 for no limit
+     */
+    TransferScheduler(int maxActiveTransfers, long maxOutstandingBytes, long bandwidthLimit, long peerBandwidthLimit) {
+        this.maxActiveTransfers = maxActiveTransfers;
+        this.maxOutstandingBytes = maxOutstandingBytes;
+        this.peerBandwidthLimit = peerBandwidthLimit;
+        this.globalBucket = new TokenBucket(bandwidthLimit);
+    }
+
+
+    /**
+     * Register the periodic status log, should be called during the initialization stage
+     */
+    public void init() {
+        Scheduler.getInstance().addTask(STATUS_LOG_INTERVAL_IN_SEC, TimeUnit.SECONDS,
+                new PriorityTask(
+                        "log transfer scheduler status",
+                        Priority.LOW,
+                        this::logStatus
+                ));
+    }
+
+
+    /**
+     * Queue an inbound transfer, it will be started once admitted
+     *
+     * @param fileLoaderWrapper the transfer
+     */
+    public void submit(FileLoaderWrapper fileLoaderWrapper) {
+        synchronized (this) {
+            queue.add(new QueuedTransfer(fileLoaderWrapper, seq++));
+        }
+        admit();
+    }
+
+
+    /**
+     * Release the slot of a finished (completed or cancelled) inbound transfer.
+     * It is fine to call this more than once or for a transfer that is still queued.
+     *
+     * @param fileLoaderWrapper the transfer
+     */
+    public void finish(FileLoaderWrapper fileLoaderWrapper) {
+        synchronized (this) {
+            if (active.remove(fileLoaderWrapper)) {
+                outstandingBytes -= fileLoaderWrapper.getWindowBytes();
+            } else {
+                queue.removeIf(t -> t.fileLoaderWrapper == fileLoaderWrapper);
+            }
+        }
+        admit();
+    }
+
+
+    /**
+     * Serve file bytes to a peer once a slot and the bandwidth are available.
+     * The task runs right away if they are, otherwise later in the lane of the connection.
+     * The task must call {@link #releaseOutbound()} when done.
+     *
+     * @param conn  the peer requesting the bytes
+     * @param bytes the size of the block
+     * @param task  serves the bytes
+     */
+    public void acquireOutbound(Connection conn, long bytes, Runnable task) {
+        synchronized (this) {
+            if (outboundActive >= maxActiveTransfers) {
+                outboundQueue.add(() -> acquireBandwidth(conn, bytes, () -> conn.submitToLane(task)));
+                return;
+            }
+            outboundActive++;
+        }
+        acquireBandwidth(conn, bytes, task);
+    }
+
+
+    /**
+     * Release a slot taken by {@link #acquireOutbound(Connection, long, Runnable)},
+     * it goes to the next transfer waiting if any
+     */
+    public void releaseOutbound() {
+        Runnable next;
+        synchronized (this) {
+            next = outboundQueue.poll();
+            if (next == null) {
+                outboundActive--;
+                return;
+            }
+        }
+        next.run();
+    }
+
+
+    /**
+     * Run a task once the given amount of bytes are allowed by both global and per-peer bandwidth limits.
+     * The task runs right away if they are, otherwise later in the lane of the connection.
+     *
+     * @param conn  the peer
+     * @param bytes the amount of bytes to be transferred
+     * @param task  transfers the bytes
+     */
+    public void acquireBandwidth(Connection conn, long bytes, Runnable task) {
+        long waitNanos = globalBucket.reserve(bytes);
+        if (peerBandwidthLimit > 0 && conn.getHostPort() != null) {
+            waitNanos = Math.max(waitNanos, peerBuckets.computeIfAbsent(conn.getHostPort(),
+                    k -> new TokenBucket(peerBandwidthLimit)).reserve(bytes));
+        }
+
+        if (waitNanos == 0) {
+            task.run();
+        } else {
+            BANDWIDTH_TIMER.schedule(() -> conn.submitToLane(task), waitNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+
+    /**
+     * Forget the bandwidth state of a disconnected peer
+     *
+     * @param hostPort the peer
+     */
+    public void removePeer(HostPort hostPort) {
+        if (hostPort != null) {
+            peerBuckets.remove(hostPort);
+        }
+    }
+
+
+    public synchronized int getActiveCount() {
+        return active.size();
+    }
+
+
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+
+    public synchronized long getOutstandingBytes() {
+        return outstandingBytes;
+    }
+
+
+    public synchronized int getActiveOutboundCount() {
+        return outboundActive;
+    }
+
+
+    public synchronized int getQueuedOutboundCount() {
+        return outboundQueue.size();
+    }
+
+
+    // start as many queued transfers as the limits allow
+    private void admit() {
+        ArrayList<FileLoaderWrapper> admitted = new ArrayList<>();
+
+        synchronized (this) {
+            while (!queue.isEmpty() && active.size() < maxActiveTransfers) {
+                FileLoaderWrapper next = queue.peek().fileLoaderWrapper;
+                // always let one through, otherwise a file larger than the byte limit would never start
+                if (!active.isEmpty() && outstandingBytes + next.getWindowBytes() > maxOutstandingBytes) {
+                    break;
+                }
+                queue.poll();
+                active.add(next);
+                outstandingBytes += next.getWindowBytes();
+                admitted.add(next);
+            }
+        }
+
+        // start outside the lock since it sends requests
+        for (FileLoaderWrapper fileLoaderWrapper : admitted) {
+            fileLoaderWrapper.start();
+        }
+    }
+
+
+    private void logStatus() {
+        synchronized (this) {
+            if (active.isEmpty() && queue.isEmpty()) return;
+            log.info(String.format("Transfers active: %d/%d, queued: %d, outstanding bytes: %d/%d, outbound: %d, waiting: %d",
+                    active.size(), maxActiveTransfers, queue.size(), outstandingBytes, maxOutstandingBytes,
+                    outboundActive, outboundQueue.size()));
+        }
+    }
+
+
+    // a transfer waiting in the queue
+    private static class QueuedTransfer {
+        final FileLoaderWrapper fileLoaderWrapper;
+        final long fileSize;
+        final long seq;
+
+
+        QueuedTransfer(FileLoaderWrapper fileLoaderWrapper, long seq) {
+            this.fileLoaderWrapper = fileLoaderWrapper;
+            this.fileSize = fileLoaderWrapper.getFileSize();
+            this.seq = seq;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package unimelb.bitbox.util;
+
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * HashedWheelTimer runs one-off tasks after a delay, for large numbers of timeouts that are mostly cancelled.
+ * <p>
+ * Time is cut into ticks, and a timeout is put in the bucket of the tick it expires at, modulo the wheel size,
+ * with the number of full turns left. Scheduling and cancelling are O(1), a tick only looks at one bucket.
+ * Timeouts fire at most one tick late.
+ * <p>
+ * Tasks run on the thread of the timer, so they must be short and must not block.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class HashedWheelTimer {
+    private static Logger log = Logger.getLogger(HashedWheelTimer.class.getName());
+
+    private final String name;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+
+    private final Object lock = new Object();
+    private final long startTime = System.nanoTime();
+    // next tick to be processed
+    private long tick = 0;
+    private Thread thread = null;
+
+
+    /**
+     * Constructor, the thread is started when the first timeout is scheduled
+     *
+     * @param name         name of the thread
+     * @param tickDuration duration of one tick
+     * @param unit         unit of the tick duration
+     * @param wheelSize    number of buckets, rounded up to a power of 2
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        this.name = name;
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+    }
+
+
+    /**
+     * Run a task once after the given delay
+     *
+     * @param task  the task, run on the timer thread
+     * @param delay the delay
+     * @param unit  unit of the delay
+     * @return handle to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay));
+        synchronized (lock) {
+            if (thread == null) {
+                thread = new Thread(this::run, name);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            // tick k is processed at (k + 1) * tickNanos
+            long expireTick = Math.max(tick, (deadline + tickNanos - 1) / tickNanos - 1);
+            Timeout timeout = new Timeout(task, (expireTick - tick) / wheel.length);
+            wheel[(int) (expireTick & mask)].add(timeout);
+            return timeout;
+        }
+    }
+
+
+    /**
+     * Stop the timer thread, timeouts not expired yet never run
+     */
+    public void stop() {
+        synchronized (lock) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * @return number of timeouts waiting, it walks the whole wheel
+     */
+    public int pendingCount() {
+        synchronized (lock) {
+            int count = 0;
+            for (Bucket bucket : wheel) {
+                for (Timeout t = bucket.head; t != null; t = t.next) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+
+    private void run() {
+        ArrayList<Runnable> expired = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            long sleepNanos;
+            synchronized (lock) {
+                sleepNanos = startTime + (tick + 1) * tickNanos - System.nanoTime();
+            }
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            synchronized (lock) {
+                Bucket bucket = wheel[(int) (tick & mask)];
+                Timeout t = bucket.head;
+                while (t != null) {
+                    Timeout next = t.next;
+                    if (t.rounds <= 0) {
+                        bucket.remove(t);
+                        t.expired = true;
+                        expired.add(t.task);
+                    } else {
+                        t.rounds--;
+                    }
+                    t = next;
+                }
+                tick++;
+            }
+
+            for (Runnable task : expired) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.warning(name + ": timeout task failed: " + e.toString());
+                }
+            }
+            expired.clear();
+        }
+    }
+
+
+    /**
+     * Handle of a scheduled task
+     */
+    public class Timeout {
+        private final Runnable task;
+        private long rounds;
+        private boolean expired = false;
+        private boolean cancelled = false;
+        private Bucket bucket = null;
+        private Timeout prev = null;
+        private Timeout next = null;
+
+
+        private Timeout(Runnable task, long rounds) {
+            this.task = task;
+            this.rounds = rounds;
+        }
+
+
+        /**
+         * Cancel the task if it has not run yet
+         *
+         * @return true if the task will not run
+         */
+        public boolean cancel() {
+            synchronized (lock) {
+                if (expired) return false;
+                if (!cancelled) {
+                    cancelled = true;
+                    bucket.remove(this);
+                }
+                return true;
+            }
+        }
+
+
+        public boolean isCancelled() {
+            synchronized (lock) {
+                return cancelled;
+            }
+        }
+
+
+        public boolean isExpired() {
+            synchronized (lock) {
+                return expired;
+            }
+        }
+    }
+
+
+    // doubly linked list of timeouts, guarded by the lock
+    private class Bucket {
+        private Timeout head = null;
+
+
+        void add(Timeout t) {
+            t.bucket = this;
+            t.next = head;
+            if (head != null) {
+                head.prev = t;
+            }
+            head = t;
+        }
+
+
+        void remove(Timeout t) {
+            if (t.prev != null) {
+                t.prev.next = t.next;
+            } else {
+                head = t.next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            }
+            t.prev = t.next = null;
+            t.bucket = null;
+        }
+    }
+}
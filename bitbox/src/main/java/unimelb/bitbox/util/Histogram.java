@@ -0,0 +1,128 @@
+package unimelb.bitbox.util;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Histogram records non-negative values, such as latencies, in log-linear buckets.
+ * <p>
+ * Each power of two is split into {@value #SUB_BUCKETS} buckets, so a percentile is within 1/{@value #SUB_BUCKETS}
+ * of the real value while the whole range of long fits in a few hundred counters.
+ * Recording is lock free and does not allocate. A snapshot taken while recording may be slightly off.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong sum = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+
+    /**
+     * @param value the value, negative ones are taken as 0
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+
+    public long getCount() {
+        return count.get();
+    }
+
+
+    public long getMax() {
+        return max.get();
+    }
+
+
+    public long getSum() {
+        return sum.get();
+    }
+
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the largest value of the bucket the percentile falls in, 0 if nothing is recorded
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+
+    /**
+     * Forget everything recorded
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+
+    /**
+     * @return count, mean, p50, p99 and max on one line
+     */
+    @Override
+    public String toString() {
+        return String.format("count: %d, mean: %.1f, p50: %d, p99: %d, max: %d",
+                getCount(), getMean(), getPercentile(50), getPercentile(99), getMax());
+    }
+
+
+    // values under SUB_BUCKETS have a bucket each, then SUB_BUCKETS buckets per power of two
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+
+    static long highestOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lowest = (1L << exponent) | (sub << (exponent - SUB_BITS));
+        return lowest + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
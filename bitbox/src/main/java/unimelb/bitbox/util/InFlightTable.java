@@ -0,0 +1,194 @@
+package unimelb.bitbox.util;
+
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+
+/**
+ * InFlightTable maps request ids to the requests waiting for a response.
+ * <p>
+ * Keys are primitive longs stored with open addressing and linear probing,
+ * so looking up or removing a request does not allocate anything.
+ * Removal shifts the following entries back, there are no tombstones.
+ * Key 0 is reserved for "no id". Not thread-safe, the owner synchronizes.
+ *
+ * @param <V> type of the requests
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class InFlightTable<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size = 0;
+
+
+    public InFlightTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+
+    /**
+     * @param expected number of entries expected, the table grows when needed
+     */
+    public InFlightTable(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(DEFAULT_CAPACITY, expected * 2) - 1) << 1;
+        allocate(capacity);
+    }
+
+
+    /**
+     * Add or replace an entry
+     *
+     * @param key   the request id, not 0
+     * @param value the request, not null
+     * @return the previous value of the key, null if there was none
+     */
+    public V put(long key, V value) {
+        if (key == 0) throw new IllegalArgumentException("key 0 is reserved");
+        if (value == null) throw new NullPointerException();
+
+        int i = indexOf(key);
+        if (keys[i] == key) {
+            V old = valueAt(i);
+            values[i] = value;
+            return old;
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        // keep the load factor at most 1/2 so the probes stay short
+        if (++size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        return null;
+    }
+
+
+    /**
+     * @param key the request id
+     * @return the value of the key, null if there is none
+     */
+    public V get(long key) {
+        if (key == 0) return null;
+        int i = indexOf(key);
+        return keys[i] == key ? valueAt(i) : null;
+    }
+
+
+    /**
+     * @param key the request id
+     * @return the removed value, null if there was none
+     */
+    public V remove(long key) {
+        if (key == 0) return null;
+        int i = indexOf(key);
+        if (keys[i] != key) return null;
+
+        V old = valueAt(i);
+        size--;
+
+        // move back the entries of the same probe sequence into the hole
+        int hole = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == 0) break;
+            int home = hash(keys[j]);
+            // the entry stays if its home slot is in (hole, j]
+            boolean stays = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+            if (!stays) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = 0;
+        values[hole] = null;
+        return old;
+    }
+
+
+    public int size() {
+        return size;
+    }
+
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+
+    /**
+     * Remove all entries, the capacity is kept
+     */
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+
+    /**
+     * Call the consumer with every value, the table must not be modified meanwhile
+     *
+     * @param consumer called with each value
+     */
+    public void forEachValue(Consumer<? super V> consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                consumer.accept(valueAt(i));
+            }
+        }
+    }
+
+
+    // slot holding the key, or the empty slot where it would be put
+    private int indexOf(long key) {
+        int i = hash(key);
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+
+    // ids are mostly sequential, mix the bits so they spread over the table
+    private int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private V valueAt(int i) {
+        return (V) values[i];
+    }
+
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int j = indexOf(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
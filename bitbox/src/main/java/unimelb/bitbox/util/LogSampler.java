@@ -0,0 +1,139 @@
+package unimelb.bitbox.util;
+
+
+import unimelb.bitbox.Constants;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * LogSampler limits the log records of one category, such as a line per message, which would otherwise
+ * flood the log during a sync.
+ * <p>
+ * Only one record in every N is kept, and at most a number of them per second. The ones left out are counted
+ * and the count is added to the next record kept. The message is formatted later by the handler,
+ * from a pattern and its parameters, see {@link java.text.MessageFormat}.
+ * <pre>
+ * if (SAMPLER.isLoggable(log, Level.INFO)) {
+ *     SAMPLER.log(log, Level.INFO, "{0} Message Sent: {1}", host, msg);
+ * }
+ * </pre>
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class LogSampler {
+
+    private static final HashMap<String, Integer> SAMPLING = parse(
+            Configuration.getConfigurationValue(Constants.CONFIG_FIELD_LOG_SAMPLING, ""));
+    private static final HashMap<String, Integer> RATE_LIMITS = parse(
+            Configuration.getConfigurationValue(Constants.CONFIG_FIELD_LOG_RATE_LIMIT, ""));
+
+    private static final ConcurrentHashMap<String, LogSampler> samplers = new ConcurrentHashMap<>();
+
+
+    /**
+     * @param category name of the category, as in the logSampling and logRateLimit configurations
+     * @return the sampler of the category, all records are kept if it is not configured
+     */
+    public static LogSampler get(String category) {
+        return samplers.computeIfAbsent(category, k -> new LogSampler(
+                SAMPLING.getOrDefault(k, 1), RATE_LIMITS.getOrDefault(k, 0)));
+    }
+
+
+    private final int sampling;
+    private final int rateLimit;
+
+    private final AtomicLong seen = new AtomicLong(0);
+    private final AtomicLong suppressed = new AtomicLong(0);
+    // the second the count is for
+    private volatile long window = 0;
+    private final AtomicInteger count = new AtomicInteger(0);
+
+
+    /**
+     * Constructor
+     *
+     * @param sampling  keep one record in this many, 1 to keep them all
+     * @param rateLimit records kept per second, 0 for no limit
+     */
+    public LogSampler(int sampling, int rateLimit) {
+        this.sampling = Math.max(1, sampling);
+        this.rateLimit = Math.max(0, rateLimit);
+    }
+
+
+    /**
+     * Check if a record should be logged now, a record left out is counted as suppressed
+     *
+     * @param logger the logger
+     * @param level  level of the record
+     * @return true if the record should be logged
+     */
+    public boolean isLoggable(Logger logger, Level level) {
+        if (!logger.isLoggable(level)) {
+            return false;
+        }
+        if (sampling > 1 && seen.getAndIncrement() % sampling != 0) {
+            suppressed.incrementAndGet();
+            return false;
+        }
+        if (rateLimit > 0) {
+            long now = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+            if (now != window) {
+                // a record may slip through while another thread moves the window, it does not matter for a log
+                window = now;
+                count.set(0);
+            }
+            if (count.incrementAndGet() > rateLimit) {
+                suppressed.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Log a record kept by {@link #isLoggable(Logger, Level)}
+     *
+     * @param logger  the logger
+     * @param level   level of the record
+     * @param pattern message pattern, formatted by the handler
+     * @param params  parameters of the pattern
+     */
+    public void log(Logger logger, Level level, String pattern, Object... params) {
+        long n = suppressed.getAndSet(0);
+        logger.log(level, n == 0 ? pattern : pattern + " (" + n + " similar suppressed)", params);
+    }
+
+
+    /**
+     * @return number of records left out and not reported yet
+     */
+    public long getSuppressedCount() {
+        return suppressed.get();
+    }
+
+
+    // category:value pairs separated by commas
+    private static HashMap<String, Integer> parse(String value) {
+        HashMap<String, Integer> map = new HashMap<>();
+        for (String pair : value.split(",")) {
+            String[] parts = pair.split(":");
+            if (parts.length == 2) {
+                map.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+            }
+        }
+        return map;
+    }
+}
@@ -4,15 +4,23 @@ package unimelb.bitbox.util;
 import unimelb.bitbox.Constants;
 import unimelb.bitbox.protocol.*;
 import unimelb.bitbox.util.ConnectionUtils.Peer.Connection;
+import unimelb.bitbox.util.ConnectionUtils.Peer.LivenessMonitor;
+import unimelb.bitbox.util.FileSystem.BlockCompressor;
 import unimelb.bitbox.util.FileSystem.FileLoaderWrapper;
 import unimelb.bitbox.util.FileSystem.FileSystemManager;
+import unimelb.bitbox.util.FileSystem.TransferScheduler;
+import unimelb.bitbox.util.Metrics.Counter;
+import unimelb.bitbox.util.Metrics.MetricsRegistry;
+import unimelb.bitbox.util.ThreadPool.LaneExecutor;
 import unimelb.bitbox.util.ThreadPool.Priority;
 import unimelb.bitbox.util.ThreadPool.PriorityTask;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
@@ -33,6 +41,14 @@ public class MessageHandler {
     private static FileSystemManager fileSystemManager = null;
     private static Logger log = Logger.getLogger(MessageHandler.class.getName());
     private static ConcurrentHashMap<String, FileLoaderWrapper> fileLoaderWrapperMap = new ConcurrentHashMap<>();
+    private static final Counter[] MESSAGES_RECEIVED = new Counter[ProtocolType.values().length];
+
+    static {
+        for (ProtocolType protocolType : ProtocolType.values()) {
+            MESSAGES_RECEIVED[protocolType.ordinal()] = MetricsRegistry.getInstance().counter(
+                    "bitbox_messages_received_total", "Messages received from the peers", "type", protocolType.getKey());
+        }
+    }
 
 
     /**
@@ -43,6 +59,8 @@ public class MessageHandler {
      */
     public static void init(FileSystemManager fsm) {
         fileSystemManager = fsm;
+        TransferScheduler.getInstance().init();
+        BlockCompressor.getInstance().init();
 
         // register FileLoaderWrapper clean-up task
         Scheduler.getInstance().addTask(CLEANUP_INTERVAL_IN_SEC, TimeUnit.SECONDS,
@@ -60,6 +78,7 @@ public class MessageHandler {
      * @param conn    corresponding connection
      */
     public static void handleMessage(String message, Connection conn) {
+        conn.markReceived();
 
         try {
             Protocol protocol = ProtocolFactory.parseProtocol(message);
@@ -69,26 +88,28 @@ public class MessageHandler {
             }
 
             ProtocolType protocolType = ProtocolType.typeOfProtocol(protocol);
+            MESSAGES_RECEIVED[protocolType.ordinal()].inc();
             switch (protocolType) {
                 case INVALID_PROTOCOL:
                     log.warning("received INVALID_PROTOCOL " + conn.getHostPort().toString());
                     conn.close();
                     break;
 
+                // the handlers which read, hash or write file contents may block
                 case FILE_CREATE_REQUEST:
-                    handleSpecificProtocol((Protocol.FileCreateRequest) protocol, conn);
+                    LaneExecutor.blocking(() -> handleSpecificProtocol((Protocol.FileCreateRequest) protocol, conn));
                     break;
                 case FILE_DELETE_REQUEST:
                     handleSpecificProtocol((Protocol.FileDeleteRequest) protocol, conn);
                     break;
                 case FILE_MODIFY_REQUEST:
-                    handleSpecificProtocol((Protocol.FileModifyRequest) protocol, conn);
+                    LaneExecutor.blocking(() -> handleSpecificProtocol((Protocol.FileModifyRequest) protocol, conn));
                     break;
                 case FILE_BYTES_REQUEST:
                     handleSpecificProtocol((Protocol.FileBytesRequest) protocol, conn);
                     break;
                 case FILE_BYTES_RESPONSE:
-                    handleSpecificProtocol((Protocol.FileBytesResponse) protocol, conn);
+                    LaneExecutor.blocking(() -> handleSpecificProtocol((Protocol.FileBytesResponse) protocol, conn));
                     break;
                 case DIRECTORY_CREATE_REQUEST:
                     handleSpecificProtocol((Protocol.DirectoryCreateRequest) protocol, conn);
@@ -96,6 +117,15 @@ public class MessageHandler {
                 case DIRECTORY_DELETE_REQUEST:
                     handleSpecificProtocol((Protocol.DirectoryDeleteRequest) protocol, conn);
                     break;
+                case FILE_BUNDLE_REQUEST:
+                    LaneExecutor.blocking(() -> handleSpecificProtocol((Protocol.FileBundleRequest) protocol, conn));
+                    break;
+                case HEARTBEAT_REQUEST:
+                    LivenessMonitor.getInstance().handleHeartbeat((Protocol.HeartbeatRequest) protocol, conn);
+                    break;
+                case HEARTBEAT_RESPONSE:
+                    LivenessMonitor.getInstance().handleHeartbeatResponse((Protocol.HeartbeatResponse) protocol, conn);
+                    break;
 
                 // ignored
                 case DIRECTORY_DELETE_RESPONSE:
@@ -103,6 +133,7 @@ public class MessageHandler {
                 case FILE_CREATE_RESPONSE:
                 case FILE_DELETE_RESPONSE:
                 case FILE_MODIFY_RESPONSE:
+                case FILE_BUNDLE_RESPONSE:
                     break;
 
                 // invalid
@@ -134,6 +165,18 @@ public class MessageHandler {
     }
 
 
+    /**
+     * Stop loading files from a closed connection, the blocks it was loading are requested from the others
+     *
+     * @param conn the closed connection
+     */
+    public static void removeConnection(Connection conn) {
+        for (Map.Entry<String, FileLoaderWrapper> entry : fileLoaderWrapperMap.entrySet()) {
+            entry.getValue().removeConnection(conn);
+        }
+    }
+
+
     /**
      * Trigger the clean method for all active fileLoaderWrappers
      */
@@ -149,12 +192,21 @@ public class MessageHandler {
 
         ProtocolField.FileDes fd = fileCreateRequest.fileDes;
         Protocol.FileCreateResponse response = new Protocol.FileCreateResponse();
+        response.requestId = fileCreateRequest.requestId;
         response.fileDes = fd;
 
         if (!fileSystemManager.isSafePathName(fd.path)) {
             response.response.status = false;
             response.response.msg = Constants.PROTOCOL_RESPONSE_MESSAGE_INVALID_PATH;
             conn.sendAsync(response);
+            return;
+        }
+
+        if (writeInlineContent(fileCreateRequest, false)) {
+            response.response.status = true;
+            response.response.msg = Constants.PROTOCOL_RESPONSE_MESSAGE_FILE_CREATE_INLINE;
+            conn.sendAsync(response);
+            return;
         }
 
         try {
@@ -170,6 +222,7 @@ public class MessageHandler {
                         conn.sendAsync(response);
                         fileLoaderWrapper = new FileLoaderWrapper(fd, fileSystemManager, conn);
                         fileLoaderWrapperMap.put(fd.path, fileLoaderWrapper);
+                        TransferScheduler.getInstance().submit(fileLoaderWrapper);
                         return;
                     }
                 } else {
@@ -200,6 +253,7 @@ public class MessageHandler {
     private static void handleSpecificProtocol(Protocol.FileDeleteRequest fileDeleteRequest, Connection conn) {
 
         Protocol.FileDeleteResponse response = new Protocol.FileDeleteResponse();
+        response.requestId = fileDeleteRequest.requestId;
         response.fileDes = fileDeleteRequest.fileDes;
         ProtocolField.FileDes fd = fileDeleteRequest.fileDes;
 
@@ -230,6 +284,7 @@ public class MessageHandler {
     private static void handleSpecificProtocol(Protocol.FileModifyRequest fileModifyRequest, Connection conn) {
         ProtocolField.FileDes fd = fileModifyRequest.fileDes;
         Protocol.FileModifyResponse response = new Protocol.FileModifyResponse();
+        response.requestId = fileModifyRequest.requestId;
         response.fileDes = fd;
 
         if (!fileSystemManager.isSafePathName(fd.path)) {
@@ -239,6 +294,13 @@ public class MessageHandler {
             return;
         }
 
+        if (writeInlineContent(fileModifyRequest, true)) {
+            response.response.status = true;
+            response.response.msg = Constants.PROTOCOL_RESPONSE_MESSAGE_FILE_MODIFY_INLINE;
+            conn.sendAsync(response);
+            return;
+        }
+
         try {
             FileLoaderWrapper fileLoaderWrapper = fileLoaderWrapperMap.get(fd.path);
 
@@ -252,6 +314,7 @@ public class MessageHandler {
                         conn.sendAsync(response);
                         fileLoaderWrapper = new FileLoaderWrapper(fd, fileSystemManager, conn);
                         fileLoaderWrapperMap.put(fd.path, fileLoaderWrapper);
+                        TransferScheduler.getInstance().submit(fileLoaderWrapper);
                         return;
                     }
                 } else {
@@ -278,9 +341,30 @@ public class MessageHandler {
         conn.sendAsync(response);
     }
 
+    // write a small file directly using the content sent with the request,
+    // false if there is no content or it cannot be used, then the file loader should be used as usual
+    private static boolean writeInlineContent(Protocol.FileCreateRequest request, boolean modify) {
+        ProtocolField.FileDes fd = request.fileDes;
+        if (request.inline.content == null || fileLoaderWrapperMap.containsKey(fd.path)) {
+            return false;
+        }
+
+        try {
+            byte[] content = Base64.getDecoder().decode(request.inline.content);
+            return fileSystemManager.writeInlineFiles(Collections.singletonList(
+                    new FileSystemManager.InlineFile(fd.path, fd.md5, fd.lastModified, content, modify)))[0];
+        } catch (IllegalArgumentException e) {
+            log.warning("invalid inline content " + fd.path);
+        } catch (NoSuchAlgorithmException e) {
+            log.severe(e.toString());
+        }
+        return false;
+    }
+
     // handle FileBytesRequest
     private static void handleSpecificProtocol(Protocol.FileBytesRequest fileBytesRequest, Connection conn) {
         Protocol.FileBytesResponse response = new Protocol.FileBytesResponse();
+        response.requestId = fileBytesRequest.requestId;
         response.fileDes = fileBytesRequest.fileDes;
         response.fileContent.len = fileBytesRequest.filePos.len;
         response.fileContent.pos = fileBytesRequest.filePos.pos;
@@ -293,21 +377,50 @@ public class MessageHandler {
             return;
         }
 
+        // the response has to fit the connection, the requester asks again for smaller blocks
+        if (fileBytesRequest.filePos.len > conn.getBlockSize()) {
+            response.response.status = false;
+            response.response.msg = Constants.PROTOCOL_RESPONSE_MESSAGE_FILE_BLOCK_TOO_LARGE;
+            conn.sendAsync(response);
+            return;
+        }
+
+        // limit the number of blocks being served at the same time and the bandwidth
+        TransferScheduler.getInstance().acquireOutbound(conn, fileBytesRequest.filePos.len,
+                () -> LaneExecutor.blocking(() -> serveFileBytes(fileBytesRequest, response, conn)));
+    }
+
+
+    // read the bytes of a FileBytesRequest and send them, once allowed by the TransferScheduler
+    private static void serveFileBytes(Protocol.FileBytesRequest fileBytesRequest,
+                                       Protocol.FileBytesResponse response, Connection conn) {
         ProtocolField.FileDes fd = fileBytesRequest.fileDes;
         ProtocolField.FilePosition fp = fileBytesRequest.filePos;
         ByteBuffer byteBuffer = null;
 
         try {
             byteBuffer = fileSystemManager.readFile(fd.md5, fp.pos, fp.len);
+            if (byteBuffer != null) {
+                byte[] content = byteBuffer.array();
+                if (conn.supportsFeature(ProtocolFeature.DEFLATE)) {
+                    byte[] compressed = BlockCompressor.getInstance().compress(conn, fd.md5, content);
+                    if (compressed != null) {
+                        content = compressed;
+                        response.fileContent.compression = BlockCompressor.COMPRESSION;
+                    }
+                }
+                response.fileContent.content = Base64.getEncoder().encodeToString(content);
+            }
         } catch (NoSuchAlgorithmException e) {
             log.severe(e.toString());
         } catch (IOException e) {
             log.warning(e.toString());
+        } finally {
+            TransferScheduler.getInstance().releaseOutbound();
         }
 
         if (byteBuffer != null) {
             // send the bytes successfully
-            response.fileContent.content = Base64.getEncoder().encodeToString(byteBuffer.array());
             response.response.status = true;
             response.response.msg = Constants.PROTOCOL_RESPONSE_MESSAGE_FILE_READ_SUCCESS;
             conn.sendAsync(response);
@@ -325,13 +438,66 @@ public class MessageHandler {
 
         String filePath = fileBytesResponse.fileDes.path;
 
+        FileLoaderWrapper fileLoaderWrapper = fileLoaderWrapperMap.get(filePath);
+        if (fileLoaderWrapper == null) return;
+
         if (fileBytesResponse.response.status) {
-            FileLoaderWrapper fileLoaderWrapper = fileLoaderWrapperMap.get(filePath);
+            fileLoaderWrapper.received(fileBytesResponse, conn);
+        } else if (Constants.PROTOCOL_RESPONSE_MESSAGE_FILE_BLOCK_TOO_LARGE.equals(fileBytesResponse.response.msg)) {
+            fileLoaderWrapper.rejected(fileBytesResponse, conn);
+        }
+    }
+
+
+    // handle FileBundleRequest, all the files are written in one batch
+    private static void handleSpecificProtocol(Protocol.FileBundleRequest fileBundleRequest, Connection conn) {
+
+        Protocol.FileBundleResponse response = new Protocol.FileBundleResponse();
+        response.requestId = fileBundleRequest.requestId;
+        ArrayList<FileSystemManager.InlineFile> inlineFiles = new ArrayList<>();
+        ArrayList<ProtocolField.BundleFile> accepted = new ArrayList<>();
 
-            if (fileLoaderWrapper != null) {
-                fileLoaderWrapper.received(fileBytesResponse, conn);
+        for (ProtocolField.BundleFile file : fileBundleRequest.files) {
+            ProtocolField.BundleFile result = new ProtocolField.BundleFile();
+            result.path = file.path;
+            result.md5 = file.md5;
+            result.lastModified = file.lastModified;
+            result.fileSize = file.fileSize;
+            result.response = new ProtocolField.Response();
+            response.files.add(result);
+
+            if (!fileSystemManager.isSafePathName(file.path)) {
+                result.response.status = false;
+                result.response.msg = Constants.PROTOCOL_RESPONSE_MESSAGE_INVALID_PATH;
+                continue;
+            }
+            try {
+                inlineFiles.add(new FileSystemManager.InlineFile(file.path, file.md5, file.lastModified,
+                        Base64.getDecoder().decode(file.content), false));
+                accepted.add(result);
+            } catch (IllegalArgumentException | NullPointerException e) {
+                result.response.status = false;
+                result.response.msg = Constants.PROTOCOL_RESPONSE_MESSAGE_FILE_INLINE_FAIL;
             }
         }
+
+        try {
+            boolean[] results = fileSystemManager.writeInlineFiles(inlineFiles);
+            for (int i = 0; i < results.length; i++) {
+                accepted.get(i).response.status = results[i];
+                accepted.get(i).response.msg = results[i] ?
+                        Constants.PROTOCOL_RESPONSE_MESSAGE_FILE_CREATE_INLINE :
+                        Constants.PROTOCOL_RESPONSE_MESSAGE_FILE_INLINE_FAIL;
+            }
+        } catch (NoSuchAlgorithmException e) {
+            log.severe(e.toString());
+            for (ProtocolField.BundleFile result : accepted) {
+                result.response.status = false;
+                result.response.msg = Constants.PROTOCOL_RESPONSE_MESSAGE_FILE_CREATE_FAIL_PREFIX + e.getMessage();
+            }
+        }
+
+        conn.sendAsync(response);
     }
 
 
@@ -339,6 +505,7 @@ public class MessageHandler {
     private static void handleSpecificProtocol(Protocol.DirectoryCreateRequest directoryCreateRequest, Connection conn) {
 
         Protocol.DirectoryCreateResponse response = new Protocol.DirectoryCreateResponse();
+        response.requestId = directoryCreateRequest.requestId;
         response.dirPath = directoryCreateRequest.dirPath;
 
         String path = directoryCreateRequest.dirPath.path;
@@ -366,6 +533,7 @@ public class MessageHandler {
     private static void handleSpecificProtocol(Protocol.DirectoryDeleteRequest directoryDeleteRequest, Connection conn) {
 
         Protocol.DirectoryDeleteResponse response = new Protocol.DirectoryDeleteResponse();
+        response.requestId = directoryDeleteRequest.requestId;
         response.dirPath = directoryDeleteRequest.dirPath;
 
         String path = directoryDeleteRequest.dirPath.path;
@@ -0,0 +1,36 @@
+package unimelb.bitbox.util.Metrics;
+
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counter only goes up, it is cheap to update from many threads at the same time
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+
+    public void inc() {
+        value.increment();
+    }
+
+
+    /**
+     * @param n amount to add, not negative
+     */
+    public void add(long n) {
+        value.add(n);
+    }
+
+
+    public long get() {
+        return value.sum();
+    }
+}
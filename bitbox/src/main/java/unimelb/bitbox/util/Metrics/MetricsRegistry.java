@@ -0,0 +1,211 @@
+package unimelb.bitbox.util.Metrics;
+
+
+import unimelb.bitbox.util.Histogram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleSupplier;
+
+
+/**
+ * MetricsRegistry is a singleton class which holds the counters, gauges and histograms of the peer,
+ * they are written in the Prometheus text format by {@link #scrape()}.
+ * <p>
+ * A metric is identified by its name and labels, given as name and value pairs. Getting the same one again
+ * returns the same object, so the callers on hot paths should keep it instead of looking it up every time.
+ * A gauge is read from its supplier when scraped. A histogram is written as a summary with the 50th, 90th
+ * and 99th percentiles.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class MetricsRegistry {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private static MetricsRegistry instance = new MetricsRegistry();
+
+
+    /**
+     * Get the instance of MetricsRegistry
+     *
+     * @return the instance of MetricsRegistry
+     */
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+
+    private enum Type {
+        COUNTER("counter"),
+        GAUGE("gauge"),
+        SUMMARY("summary");
+
+        private final String text;
+
+        Type(String text) {
+            this.text = text;
+        }
+    }
+
+
+    private final ConcurrentHashMap<String, Family> families = new ConcurrentHashMap<>();
+
+
+    MetricsRegistry() {
+    }
+
+
+    /**
+     * @param name   metric name, with the _total suffix
+     * @param help   description of the metric
+     * @param labels label names and values, one after another
+     * @return the counter
+     */
+    public Counter counter(String name, String help, String... labels) {
+        Object counter = family(name, help, Type.COUNTER).metrics.computeIfAbsent(labelText(labels),
+                k -> new Counter());
+        if (!(counter instanceof Counter)) {
+            throw new IllegalArgumentException(name + " is kept elsewhere");
+        }
+        return (Counter) counter;
+    }
+
+
+    /**
+     * Register a counter kept elsewhere, it replaces the one with the same name and labels
+     *
+     * @param name   metric name, with the _total suffix
+     * @param help   description of the metric
+     * @param value  supplies the value when scraped, called from the scraping thread
+     * @param labels label names and values, one after another
+     */
+    public void counter(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, Type.COUNTER).metrics.put(labelText(labels), value);
+    }
+
+
+    /**
+     * @param name   metric name, with the unit as suffix
+     * @param help   description of the metric
+     * @param labels label names and values, one after another
+     * @return the histogram
+     */
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) family(name, help, Type.SUMMARY).metrics.computeIfAbsent(labelText(labels),
+                k -> new Histogram());
+    }
+
+
+    /**
+     * Register a gauge, it replaces the one with the same name and labels
+     *
+     * @param name   metric name
+     * @param help   description of the metric
+     * @param value  supplies the value when scraped, called from the scraping thread
+     * @param labels label names and values, one after another
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, Type.GAUGE).metrics.put(labelText(labels), value);
+    }
+
+
+    /**
+     * @return all the metrics in the Prometheus text format, sorted by name and labels
+     */
+    public String scrape() {
+        ArrayList<String> names = new ArrayList<>(families.keySet());
+        Collections.sort(names);
+
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            Family family = families.get(name);
+            sb.append("# HELP ").append(name).append(' ').append(family.help.replace("\\", "\\\\")
+                    .replace("\n", "\\n")).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(family.type.text).append('\n');
+
+            for (Map.Entry<String, Object> entry : new TreeMap<>(family.metrics).entrySet()) {
+                String labels = entry.getKey();
+                Object metric = entry.getValue();
+                switch (family.type) {
+                    case COUNTER:
+                        sample(sb, name, labels, (metric instanceof Counter) ?
+                                ((Counter) metric).get() : ((DoubleSupplier) metric).getAsDouble());
+                        break;
+                    case GAUGE:
+                        sample(sb, name, labels, ((DoubleSupplier) metric).getAsDouble());
+                        break;
+                    case SUMMARY:
+                        Histogram histogram = (Histogram) metric;
+                        for (double quantile : QUANTILES) {
+                            String quantileLabel = "quantile=\"" + quantile + "\"";
+                            sample(sb, name, labels.isEmpty() ? quantileLabel : labels + "," + quantileLabel,
+                                    histogram.getPercentile(quantile * 100));
+                        }
+                        sample(sb, name + "_sum", labels, histogram.getSum());
+                        sample(sb, name + "_count", labels, histogram.getCount());
+                        break;
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+
+    private Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, k -> new Family(help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException(name + " is already a " + family.type.text);
+        }
+        return family;
+    }
+
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ');
+        if (value == (long) value) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+
+    // name="value" pairs, also the key of the metric in its family
+    private static String labelText(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels should be name and value pairs");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) sb.append(',');
+            sb.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\")
+                    .replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return sb.toString();
+    }
+
+
+    // metrics of the same name, keyed by their labels
+    private static class Family {
+        final String help;
+        final Type type;
+        final ConcurrentHashMap<String, Object> metrics = new ConcurrentHashMap<>();
+
+        Family(String help, Type type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
@@ -1,15 +1,25 @@
 package unimelb.bitbox.util;
 
+import unimelb.bitbox.Constants;
+import unimelb.bitbox.util.ThreadPool.Priority;
 import unimelb.bitbox.util.ThreadPool.PriorityTask;
 import unimelb.bitbox.util.ThreadPool.PriorityThreadPool;
 
+import java.util.ArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
  * Scheduler for managing periodical tasks
+ * <p>
+ * The runs of a task follow a fixed grid from the time it is added, so they do not drift with the run time.
+ * A run is skipped while the previous one is still queued or running, so slow tasks never pile up.
+ * Each run is moved by a random jitter, so peers started together do not sync at the same time.
  *
  * @author Weizhi Xu (752454)
  * @author Wenqing Xue (813044)
@@ -19,6 +29,11 @@ import java.util.logging.Logger;
 public class Scheduler {
     private static Logger log = Logger.getLogger(Scheduler.class.getName());
 
+    private static final int STATUS_LOG_INTERVAL_IN_SEC = 300;
+    // largest move of a run, as a fraction of the interval
+    private static final double JITTER = Math.max(0, Math.min(0.5, Double.parseDouble(
+            Configuration.getConfigurationValue(Constants.CONFIG_FIELD_SCHEDULER_JITTER, "0.1"))));
+
     private static Scheduler instance = new Scheduler();
 
     public static Scheduler getInstance() {
@@ -26,18 +41,106 @@ public class Scheduler {
     }
 
     private final ScheduledExecutorService service;
+    private final ArrayList<PeriodicTask> tasks = new ArrayList<>();
 
     private Scheduler() {
         service = Executors.newSingleThreadScheduledExecutor();
     }
 
-    // schedule a task and execute using the main priorityThreadPool
+    // schedule a task and execute using the main priorityThreadPool,
+    // a run shed by the overloaded pool is skipped, the next one comes after the interval
     public synchronized void addTask(int timeInterval, TimeUnit timeUnit, PriorityTask priorityTask) {
         log.info("New task added: " + priorityTask.getName() +
                 " Interval: " + timeInterval + timeUnit.toString());
 
-        service.scheduleAtFixedRate(() -> PriorityThreadPool.getInstance().submitTask(priorityTask),
-                timeInterval, timeInterval, timeUnit);
+        if (tasks.isEmpty()) {
+            // the first task also brings the status log of all the tasks
+            PeriodicTask status = new PeriodicTask(TimeUnit.SECONDS.toNanos(STATUS_LOG_INTERVAL_IN_SEC),
+                    new PriorityTask("log scheduler status", Priority.LOW, this::logStatus));
+            tasks.add(status);
+            status.start();
+        }
+
+        PeriodicTask task = new PeriodicTask(timeUnit.toNanos(timeInterval), priorityTask);
+        tasks.add(task);
+        task.start();
+    }
+
+    private synchronized void logStatus() {
+        for (PeriodicTask task : tasks) {
+            log.info(task.toString());
+        }
+    }
+
+
+    // a task and the statistics of its runs
+    private class PeriodicTask {
+        private final long period;
+        private final PriorityTask priorityTask;
+        // queued or running
+        private final AtomicBoolean busy = new AtomicBoolean(false);
+        private long nextRun;
+
+        private final AtomicLong runs = new AtomicLong(0);
+        private final AtomicLong overruns = new AtomicLong(0);
+        private final AtomicLong shed = new AtomicLong(0);
+        // run time in millis
+        private final Histogram durations = new Histogram();
+
+        PeriodicTask(long period, PriorityTask priorityTask) {
+            this.period = Math.max(1, period);
+            this.priorityTask = priorityTask;
+        }
+
+        void start() {
+            nextRun = System.nanoTime() + period;
+            scheduleNext();
+        }
+
+        // only called on the scheduler thread
+        private void scheduleNext() {
+            long jitter = (long) (period * JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1));
+            service.schedule(this::fire, Math.max(0, nextRun + jitter - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+
+        private void fire() {
+            // the next run stays on the grid, ticks missed while the process was stalled are dropped
+            long now = System.nanoTime();
+            nextRun += period;
+            if (nextRun <= now) {
+                nextRun += ((now - nextRun) / period + 1) * period;
+            }
+            scheduleNext();
+
+            if (!busy.compareAndSet(false, true)) {
+                overruns.incrementAndGet();
+                log.warning(priorityTask.getName() + " is still running, the run is skipped");
+                return;
+            }
+            boolean submitted = PriorityThreadPool.getInstance().trySubmitTask(new PriorityTask(
+                    priorityTask.getName(), priorityTask.getPriority(), this::run));
+            if (!submitted) {
+                shed.incrementAndGet();
+                busy.set(false);
+            }
+        }
+
+        private void run() {
+            long start = System.nanoTime();
+            try {
+                priorityTask.run();
+            } finally {
+                durations.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                runs.incrementAndGet();
+                busy.set(false);
+            }
+        }
 
+        @Override
+        public String toString() {
+            return String.format("Periodic task: %s, interval: %ds, runs: %d, overruns: %d, shed: %d, duration (ms) %s",
+                    priorityTask.getName(), TimeUnit.NANOSECONDS.toSeconds(period), runs.get(), overruns.get(),
+                    shed.get(), durations);
+        }
     }
 }
@@ -1,7 +1,9 @@
 package unimelb.bitbox.util;
 
 
+import unimelb.bitbox.Constants;
 import unimelb.bitbox.protocol.Protocol;
+import unimelb.bitbox.protocol.ProtocolFeature;
 import unimelb.bitbox.protocol.ProtocolField;
 import unimelb.bitbox.util.ConnectionUtils.Peer.Connection;
 import unimelb.bitbox.util.FileSystem.FileSystemManager;
@@ -9,6 +11,8 @@ import unimelb.bitbox.util.FileSystem.FileSystemManager.FileSystemEvent;
 import unimelb.bitbox.util.ThreadPool.Priority;
 import unimelb.bitbox.util.ThreadPool.PriorityTask;
 
+import java.nio.ByteBuffer;
+import java.util.Base64;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
@@ -22,6 +26,12 @@ import java.util.logging.Logger;
  * @author Zijun Chen (813190)
  */
 public class SyncManager {
+    // files up to this size (in bytes) have their content sent together with the request, 0 to disable
+    public static final long INLINE_CONTENT_THRESHOLD = Long.parseLong(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_INLINE_CONTENT_THRESHOLD, "16384"));
+    // rough size of the JSON of one file in a bundle or an inline request, excluding the content
+    private static final int BUNDLE_ENTRY_OVERHEAD = 256;
+
     private static SyncManager instance = new SyncManager();
 
 
@@ -62,8 +72,9 @@ public class SyncManager {
      */
     public void syncWithAllAsync() {
         log.info("Sync with all");
+        // never inline content here, otherwise every file would be resent each interval
         for (FileSystemEvent event : fileSystemManager.generateSyncEvents()) {
-            sendEventToAllAsync(event);
+            ConnectionManager.getInstance().broadcastMsgAsync(eventToProtocol(event));
         }
     }
 
@@ -76,21 +87,62 @@ public class SyncManager {
     public void syncWithOneAsync(Connection conn) {
         log.info("Sync with: " + conn.getHostPort().toString());
 
+        boolean useBundle = conn.supportsFeature(ProtocolFeature.FILE_BUNDLE);
+        Protocol.FileBundleRequest bundle = new Protocol.FileBundleRequest();
+        long bundleSize = 0;
+
         for (FileSystemEvent event : fileSystemManager.generateSyncEvents()) {
-            sendEventToOneAsync(event, conn);
+            ProtocolField.BundleFile file = useBundle ? eventToBundleFile(event, conn) : null;
+            if (file == null) {
+                sendEventToOneAsync(event, conn);
+                continue;
+            }
+
+            // the whole bundle should not be larger than a message
+            long fileSize = BUNDLE_ENTRY_OVERHEAD + file.content.length();
+            if (!bundle.files.isEmpty() && bundleSize + fileSize > conn.getMessageSize()) {
+                conn.sendAsync(bundle);
+                bundle = new Protocol.FileBundleRequest();
+                bundleSize = 0;
+            }
+            bundle.files.add(file);
+            bundleSize += fileSize;
+        }
+
+        if (!bundle.files.isEmpty()) {
+            conn.sendAsync(bundle);
         }
     }
 
 
     /**
      * Send a given fileSystemEvent to all the peers
+     * The content of a small created or modified file is sent inline to the peers supporting it
      * Async method
      *
      * @param fileSystemEvent the given fileSystemEvent
      */
     public void sendEventToAllAsync(FileSystemEvent fileSystemEvent) {
         Protocol protocol = eventToProtocol(fileSystemEvent);
-        ConnectionManager.getInstance().broadcastMsgAsync(protocol);
+        if (!(protocol instanceof Protocol.FileCreateRequest) || protocol instanceof Protocol.FileDeleteRequest ||
+                fileSystemEvent.fileDescriptor.fileSize > INLINE_CONTENT_THRESHOLD) {
+            ConnectionManager.getInstance().broadcastMsgAsync(protocol);
+            return;
+        }
+
+        // only read the file when at least one peer takes it
+        Protocol inlineProtocol = null;
+        for (Connection conn : ConnectionManager.getInstance().getConnections()) {
+            if (conn.supportsFeature(ProtocolFeature.INLINE_CONTENT) &&
+                    fitsInline(fileSystemEvent.fileDescriptor.fileSize, conn)) {
+                if (inlineProtocol == null) {
+                    inlineProtocol = eventToInlineProtocol(fileSystemEvent);
+                }
+                conn.sendAsync(inlineProtocol != null ? inlineProtocol : protocol);
+            } else {
+                conn.sendAsync(protocol);
+            }
+        }
     }
 
     // Send a given fileSystemEvent to a given peer
@@ -99,6 +151,53 @@ public class SyncManager {
         conn.sendAsync(protocol);
     }
 
+    // read a small file created event into a bundle entry, null if it should be sent on its own
+    private ProtocolField.BundleFile eventToBundleFile(FileSystemEvent fileSystemEvent, Connection conn) {
+        if (fileSystemEvent.event != FileSystemManager.EVENT.FILE_CREATE) return null;
+
+        long fileSize = fileSystemEvent.fileDescriptor.fileSize;
+        if (fileSize > INLINE_CONTENT_THRESHOLD || !fitsInline(fileSize, conn)) {
+            return null;
+        }
+
+        String content = readInlineContent(fileSystemEvent);
+        if (content == null) return null;
+
+        ProtocolField.BundleFile file = new ProtocolField.BundleFile();
+        eventToFileDes(file, fileSystemEvent);
+        file.content = content;
+        return file;
+    }
+
+    // generate a create or modify request carrying the content, null if the file cannot be read
+    private Protocol eventToInlineProtocol(FileSystemEvent fileSystemEvent) {
+        String content = readInlineContent(fileSystemEvent);
+        if (content == null) return null;
+
+        Protocol.FileCreateRequest request = (Protocol.FileCreateRequest) eventToProtocol(fileSystemEvent);
+        request.inline.content = content;
+        return request;
+    }
+
+    // read the whole file as Base64, null if failed
+    private String readInlineContent(FileSystemEvent fileSystemEvent) {
+        ByteBuffer content;
+        try {
+            content = fileSystemManager.readFile(fileSystemEvent.fileDescriptor.md5, 0,
+                    fileSystemEvent.fileDescriptor.fileSize);
+        } catch (Exception e) {
+            log.warning(e.toString());
+            return null;
+        }
+        if (content == null) return null;
+        return Base64.getEncoder().encodeToString(content.array());
+    }
+
+    // check if a file of the given size fits in one message of the connection, Base64 takes 4 bytes for every 3
+    private boolean fitsInline(long fileSize, Connection conn) {
+        return BUNDLE_ENTRY_OVERHEAD + (fileSize + 2) / 3 * 4 <= conn.getMessageSize();
+    }
+
     // generate a message using the given fileSystemEvent
     private Protocol eventToProtocol(FileSystemEvent fileSystemEvent) {
         Protocol protocol = null;
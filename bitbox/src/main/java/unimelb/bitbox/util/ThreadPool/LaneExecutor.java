@@ -0,0 +1,282 @@
+package unimelb.bitbox.util.ThreadPool;
+
+
+import unimelb.bitbox.Constants;
+import unimelb.bitbox.util.Configuration;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+
+/**
+ * LaneExecutor runs tasks in serial lanes on top of work-stealing workers.
+ * <p>
+ * The tasks of one lane run one at a time in the order they are submitted, usually one lane per connection,
+ * so the messages of a peer are handled in the order they arrive. Different lanes run in parallel.
+ * A lane with tasks is scheduled on the {@link ForkJoinPool}, runs a number of its tasks depending on its
+ * {@link Priority} and then goes to the back of the queue, so a busy lane can not hold a worker forever.
+ * Submitting is lock free, only the first task of an idle lane schedules it.
+ * A lane may have a capacity, so a reader can wait or drop when its connection is behind.
+ * A task that blocks, on the disk or waiting for room, should do it in {@link #blocking(Runnable)}.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class LaneExecutor {
+    private static Logger log = Logger.getLogger(LaneExecutor.class.getName());
+
+    // tasks a lane runs each time it is scheduled, by priority
+    private static final int[] BUDGET = {64, 16, 4};
+    // how often a full lane is checked by a waiting submitter
+    private static final long FULL_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static LaneExecutor instance = new LaneExecutor("lane worker", workers());
+
+    // true while a worker runs a blocking task, nested ones just run
+    private static final ThreadLocal<Boolean> BLOCKING = ThreadLocal.withInitial(() -> false);
+
+
+    /**
+     * Get the instance of LaneExecutor
+     *
+     * @return the instance of LaneExecutor
+     */
+    public static LaneExecutor getInstance() {
+        return instance;
+    }
+
+
+    /**
+     * Run a task which may block, like disk I/O or waiting for room in a queue.
+     * On a worker, the pool may start a spare worker meanwhile, so the other lanes are not held up.
+     * On any other thread the task just runs.
+     *
+     * @param task the task
+     */
+    public static void blocking(Runnable task) {
+        if (!(Thread.currentThread() instanceof ForkJoinWorkerThread) || BLOCKING.get()) {
+            task.run();
+            return;
+        }
+
+        BLOCKING.set(true);
+        try {
+            ForkJoinPool.managedBlock(new TaskBlocker(task));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            BLOCKING.set(false);
+        }
+    }
+
+
+    private static int workers() {
+        int workers = Integer.parseInt(Configuration.getConfigurationValue(Constants.CONFIG_FIELD_LANE_WORKERS, "0"));
+        // handlers may block on the disk, use more workers than processors
+        return workers > 0 ? workers : Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+
+    private final ForkJoinPool pool;
+
+
+    /**
+     * Constructor, the shared executor is {@link #getInstance()}
+     *
+     * @param name    name of the worker threads
+     * @param workers number of worker threads
+     */
+    public LaneExecutor(String name, int workers) {
+        AtomicInteger count = new AtomicInteger(0);
+        pool = new ForkJoinPool(workers, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName(name + " " + count.incrementAndGet());
+            return thread;
+        }, null, true);
+        log.info(name + ": " + workers + " workers");
+    }
+
+
+    /**
+     * Create a new lane without capacity, it holds no thread and needs no clean up
+     *
+     * @param name     name of the lane, used when logging failures
+     * @param priority how many tasks the lane runs before letting the other lanes run
+     * @return the lane
+     */
+    public Lane newLane(String name, Priority priority) {
+        return new Lane(name, priority, 0);
+    }
+
+
+    /**
+     * Create a new lane, it holds no thread and needs no clean up
+     *
+     * @param name     name of the lane, used when logging failures
+     * @param priority how many tasks the lane runs before letting the other lanes run
+     * @param capacity tasks the lane holds before {@link Lane#put(Runnable)} waits
+     *                 and {@link Lane#offer(Runnable)} fails, 0 for no limit
+     * @return the lane
+     */
+    public Lane newLane(String name, Priority priority, int capacity) {
+        return new Lane(name, priority, capacity);
+    }
+
+
+    /**
+     * Stop the workers, the tasks not started yet are dropped
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+
+    /**
+     * Wait for the workers to stop after {@link #shutdown()}
+     *
+     * @param timeout  the maximum time to wait
+     * @param timeUnit the unit of the timeout
+     * @return true if stopped
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        return pool.awaitTermination(timeout, timeUnit);
+    }
+
+
+    // runs the task once in ForkJoinPool.managedBlock
+    private static class TaskBlocker implements ForkJoinPool.ManagedBlocker {
+        private Runnable task;
+
+
+        TaskBlocker(Runnable task) {
+            this.task = task;
+        }
+
+
+        @Override
+        public boolean block() {
+            Runnable task = this.task;
+            this.task = null;
+            task.run();
+            return true;
+        }
+
+
+        @Override
+        public boolean isReleasable() {
+            return task == null;
+        }
+    }
+
+
+    /**
+     * A serial queue of tasks
+     */
+    public class Lane implements Runnable {
+        private final String name;
+        private final int budget;
+        private final int capacity;
+        private final TaskMetrics.Stats stats;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // tasks submitted and not finished, the lane is scheduled while it is not 0
+        private final AtomicInteger pending = new AtomicInteger(0);
+
+
+        private Lane(String name, Priority priority, int capacity) {
+            this.name = name;
+            this.budget = BUDGET[priority.ordinal()];
+            this.capacity = capacity;
+            this.stats = TaskMetrics.getInstance().get(name, priority);
+        }
+
+
+        /**
+         * Run a task after all the tasks submitted to this lane before it, ignoring the capacity
+         *
+         * @param task the task
+         */
+        public void submit(Runnable task) {
+            tasks.offer(stats.queue(task));
+            if (pending.getAndIncrement() == 0) {
+                pool.execute(this);
+            }
+        }
+
+
+        /**
+         * Submit a task, waiting while the lane is full
+         *
+         * @param task the task
+         * @throws InterruptedException if interrupted while waiting, the task is not submitted
+         */
+        public void put(Runnable task) throws InterruptedException {
+            while (isFull()) {
+                LockSupport.parkNanos(this, FULL_WAIT_NANOS);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            submit(task);
+        }
+
+
+        /**
+         * Submit a task unless the lane is full
+         *
+         * @param task the task
+         * @return false if the lane is full, the task is not submitted
+         */
+        public boolean offer(Runnable task) {
+            if (isFull()) {
+                return false;
+            }
+            submit(task);
+            return true;
+        }
+
+
+        // roughly, a few more tasks may get in when submitted at the same time
+        private boolean isFull() {
+            return capacity > 0 && pending.get() >= capacity;
+        }
+
+
+        /**
+         * @return number of tasks submitted and not finished
+         */
+        public int getPendingCount() {
+            return pending.get();
+        }
+
+
+        @Override
+        public void run() {
+            for (int i = 0; i < budget; i++) {
+                Runnable task = tasks.poll();
+                boolean more;
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    // errors too, the lane goes on with the next task
+                    log.severe(name + ": task run failed " + e.toString());
+                } finally {
+                    // a lane whose count is not decremented is never scheduled again
+                    more = pending.decrementAndGet() != 0;
+                }
+                if (!more) {
+                    return;
+                }
+            }
+            // more to run, let the other lanes go first
+            pool.execute(this);
+        }
+    }
+}
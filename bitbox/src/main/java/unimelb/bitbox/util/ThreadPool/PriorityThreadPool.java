@@ -2,17 +2,27 @@ package unimelb.bitbox.util.ThreadPool;
 
 
 import unimelb.bitbox.Constants;
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.Histogram;
+import unimelb.bitbox.util.Scheduler;
 
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 
 /**
  * PriorityThreadPool is a singleton class. It mainly handles all requests
  * and responses, sync events and clean up {@link unimelb.bitbox.util.FileSystem.FileLoaderWrapper}.
+ * <p>
+ * The number of queued tasks of each {@link Priority} is limited, 0 means no limit. Over the limit,
+ * LOW tasks are shed (periodic work runs again next time), and so are they while NORMAL is over its limit.
+ * NORMAL and HIGH tasks make the submitting thread wait for room, which slows down the readers.
+ * Threads of the pool itself never wait, since they are the ones making room.
+ * The priorities take turns by their weights, see {@link WeightedPriorityQueue}.
  *
  * @author Weizhi Xu (752454)
  * @author Wenqing Xue (813044)
@@ -22,6 +32,13 @@ import java.util.logging.Logger;
 public class PriorityThreadPool {
     private static Logger log = Logger.getLogger(PriorityThreadPool.class.getName());
 
+    private static final int POOL_SIZE = Integer.parseInt(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_THREAD_POOL_SIZE, String.valueOf(Constants.THREAD_POOL_CORE_POOL_SIZE)));
+
+    private static final int STATUS_LOG_INTERVAL_IN_SEC = 60;
+
+    private static final ThreadLocal<Boolean> IN_POOL = ThreadLocal.withInitial(() -> false);
+
     private static ThreadPoolExecutor pool;
 
     private static PriorityThreadPool instance = new PriorityThreadPool();
@@ -37,36 +54,188 @@ public class PriorityThreadPool {
     }
 
 
+    // by Priority ordinal
+    private final int[] limits = new int[Priority.values().length];
+    private final AtomicInteger[] queued = new AtomicInteger[Priority.values().length];
+    private final AtomicLong shed = new AtomicLong(0);
+    private final Object room = new Object();
+    private final WeightedPriorityQueue queue;
+
+
     /**
      * Constructor of PriorityThreadPool.
      * <p>
-     * if the number of tasks is less than core pool size, a new thread will be allocated for each of them.
-     * if the number of tasks exceeds the core pool size but less than maximum pool size,
-     * they will be added to a PriorityBlockingQueue.
-     * if the number of tasks exceeds the maximum pool size, {@link RejectedExecutionException} will be thrown.
+     * The queue never fills up, so a ThreadPoolExecutor would not start more than its core pool size.
+     * All the threads are core threads, and they stop after being idle for the keep alive time.
      */
     private PriorityThreadPool() {
 
+        String[] weights = Configuration.getConfigurationValue(Constants.CONFIG_FIELD_PRIORITY_WEIGHTS, "8,4,1")
+                .split(",");
+        int[] weightValues = new int[Priority.values().length];
+        for (int i = 0; i < weightValues.length; i++) {
+            weightValues[i] = Integer.parseInt(weights[i].trim());
+        }
+        queue = new WeightedPriorityQueue(weightValues);
+
         pool = new ThreadPoolExecutor(
-                Constants.THREAD_POOL_CORE_POOL_SIZE,
-                Constants.THREAD_POOL_MAX_POOL_SZIE,
+                POOL_SIZE,
+                POOL_SIZE,
                 Constants.THREAD_POOL_KEEP_ALIVE_TIME,
                 TimeUnit.MILLISECONDS,
-                new PriorityBlockingQueue<>(Constants.THREAD_POOL_QUEUE_SIZE),
+                queue,
+                r -> new Thread(() -> {
+                    IN_POOL.set(true);
+                    r.run();
+                }),
                 new ThreadPoolExecutor.AbortPolicy()
         );
+        pool.allowCoreThreadTimeOut(true);
+
+        limits[Priority.HIGH.ordinal()] = Integer.parseInt(Configuration.getConfigurationValue(
+                Constants.CONFIG_FIELD_QUEUE_LIMIT_HIGH, "0"));
+        limits[Priority.NORMAL.ordinal()] = Integer.parseInt(Configuration.getConfigurationValue(
+                Constants.CONFIG_FIELD_QUEUE_LIMIT_NORMAL, "2000"));
+        limits[Priority.LOW.ordinal()] = Integer.parseInt(Configuration.getConfigurationValue(
+                Constants.CONFIG_FIELD_QUEUE_LIMIT_LOW, "200"));
+        for (int i = 0; i < queued.length; i++) {
+            queued[i] = new AtomicInteger(0);
+        }
         log.info("Thread pool is ready to go");
     }
 
 
     /**
-     * Submit task with priority
+     * Register the periodic status log, not thread-safe, should be called during the initialization stage
+     */
+    public void init() {
+        Scheduler.getInstance().addTask(STATUS_LOG_INTERVAL_IN_SEC, TimeUnit.SECONDS,
+                new PriorityTask(
+                        "log thread pool status",
+                        Priority.LOW,
+                        this::logStatus
+                ));
+    }
+
+
+    /**
+     * Submit task with priority, it may wait for room in the queue, see {@link PriorityThreadPool}
      *
      * @param priorityTask {@link PriorityTask} the priority task to be submitted
+     * @return false if the task is shed
+     */
+    public boolean submitTask(PriorityTask priorityTask) {
+        return submit(priorityTask, !IN_POOL.get());
+    }
+
+
+    /**
+     * Submit task with priority, never waits, for the threads which can not be held up
+     *
+     * @param priorityTask {@link PriorityTask} the priority task to be submitted
+     * @return false if the task is shed
+     */
+    public boolean trySubmitTask(PriorityTask priorityTask) {
+        return submit(priorityTask, false);
+    }
+
+
+    /**
+     * @param priority a priority
+     * @return number of tasks of the priority waiting to run
+     */
+    public int getQueuedCount(Priority priority) {
+        return queued[priority.ordinal()].get();
+    }
+
+
+    /**
+     * @param priority a priority
+     * @return the time the tasks of the priority waited in the queue, in microseconds
+     */
+    public Histogram getWaitTimes(Priority priority) {
+        return queue.getWaitTimes(priority);
+    }
+
+
+    /**
+     * @return number of tasks shed so far
      */
-    public void submitTask(PriorityTask priorityTask) {
-        synchronized (this) {
-            pool.execute(priorityTask);
+    public long getShedCount() {
+        return shed.get();
+    }
+
+
+    private boolean submit(PriorityTask priorityTask, boolean canWait) {
+        Priority priority = priorityTask.getPriority();
+        int p = priority.ordinal();
+
+        if (isFull(p) || (priority == Priority.LOW && isFull(Priority.NORMAL.ordinal()))) {
+            if (priority == Priority.LOW || !canWait) {
+                shed.incrementAndGet();
+                log.fine("Overloaded, task shed: " + priorityTask.getName());
+                return false;
+            }
+            waitForRoom(p);
+        }
+
+        TaskMetrics.Timed timed = TaskMetrics.getInstance().get(priorityTask.getName(), priority).queue(priorityTask);
+        queued[p].incrementAndGet();
+        try {
+            // a new task each time, a periodic task is submitted again while it may still be queued
+            pool.execute(new PriorityTask(priorityTask.getName(), priority, () -> {
+                dequeued(p);
+                timed.run();
+            }));
+            return true;
+        } catch (RejectedExecutionException e) {
+            dequeued(p);
+            timed.cancel();
+            log.warning("Task rejected: " + priorityTask.getName());
+            return false;
+        }
+    }
+
+
+    private boolean isFull(int p) {
+        return limits[p] > 0 && queued[p].get() >= limits[p];
+    }
+
+
+    // a lane worker waiting here gets a spare one in its pool
+    private void waitForRoom(int p) {
+        LaneExecutor.blocking(() -> {
+            synchronized (room) {
+                try {
+                    while (isFull(p)) {
+                        room.wait();
+                    }
+                } catch (InterruptedException e) {
+                    // go ahead over the limit, the caller is probably closing
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+
+    private void dequeued(int p) {
+        // only wake up the waiting threads when leaving the limit
+        if (queued[p].getAndDecrement() == limits[p]) {
+            synchronized (room) {
+                room.notifyAll();
+            }
+        }
+    }
+
+
+    private void logStatus() {
+        StringBuilder sb = new StringBuilder(String.format("Thread pool active: %d/%d, shed: %d",
+                pool.getActiveCount(), POOL_SIZE, shed.get()));
+        for (Priority priority : Priority.values()) {
+            sb.append(String.format("; %s queued: %d, wait (us) %s", priority, getQueuedCount(priority),
+                    queue.getWaitTimes(priority)));
         }
+        log.info(sb.toString());
     }
 }
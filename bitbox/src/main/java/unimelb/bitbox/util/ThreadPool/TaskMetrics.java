@@ -0,0 +1,316 @@
+package unimelb.bitbox.util.ThreadPool;
+
+
+import unimelb.bitbox.Constants;
+import unimelb.bitbox.util.Configuration;
+import unimelb.bitbox.util.Histogram;
+import unimelb.bitbox.util.Scheduler;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+
+/**
+ * TaskMetrics is a singleton class which records the tasks of the {@link PriorityThreadPool}
+ * and the {@link LaneExecutor} by task name and priority.
+ * <p>
+ * For each of them: time waited in the queue, run time and CPU time histograms in microseconds,
+ * tasks completed and failed, and how many are queued and running now.
+ * Exported as the MBean {@value #OBJECT_NAME} and logged periodically.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class TaskMetrics implements TaskMetricsMXBean {
+    private static Logger log = Logger.getLogger(TaskMetrics.class.getName());
+
+    public static final String OBJECT_NAME = "unimelb.bitbox:type=TaskMetrics";
+
+    private static final boolean ENABLED = Boolean.parseBoolean(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_TASK_METRICS, "true"));
+    private static final int LOG_INTERVAL_IN_SEC = Integer.parseInt(Configuration.getConfigurationValue(
+            Constants.CONFIG_FIELD_TASK_METRICS_LOG_INTERVAL, "300"));
+    // some task names contain a path, the others are counted together once there are too many
+    private static final int MAX_TASKS = 256;
+    private static final String OTHER_TASKS = "other";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+    private static TaskMetrics instance = new TaskMetrics();
+
+
+    /**
+     * Get the instance of TaskMetrics
+     *
+     * @return the instance of TaskMetrics
+     */
+    public static TaskMetrics getInstance() {
+        return instance;
+    }
+
+
+    private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+
+    private TaskMetrics() {
+    }
+
+
+    /**
+     * Register the MBean and the periodic log, not thread-safe, should be called during the initialization stage
+     */
+    public void init() {
+        if (!ENABLED) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.warning("Unable to register " + OBJECT_NAME + ": " + e.toString());
+        }
+
+        if (LOG_INTERVAL_IN_SEC > 0) {
+            Scheduler.getInstance().addTask(LOG_INTERVAL_IN_SEC, TimeUnit.SECONDS,
+                    new PriorityTask(
+                            "log task metrics",
+                            Priority.LOW,
+                            this::logStatus
+                    ));
+        }
+    }
+
+
+    /**
+     * Get the statistics of the tasks with the given name and priority
+     *
+     * @param name     the task name
+     * @param priority the priority
+     * @return the statistics, which record nothing if disabled
+     */
+    public Stats get(String name, Priority priority) {
+        if (!ENABLED) return Stats.DISABLED;
+        String key = name + "/" + priority;
+        Stats s = stats.get(key);
+        if (s != null) return s;
+        if (stats.size() >= MAX_TASKS) {
+            return stats.computeIfAbsent(OTHER_TASKS + "/" + priority, k -> new Stats(OTHER_TASKS, priority));
+        }
+        return stats.computeIfAbsent(key, k -> new Stats(name, priority));
+    }
+
+
+    @Override
+    public List<TaskStat> getTasks() {
+        ArrayList<TaskStat> list = new ArrayList<>();
+        for (Stats s : stats.values()) {
+            list.add(new TaskStat(s));
+        }
+        return list;
+    }
+
+
+    @Override
+    public int getActiveCount() {
+        int n = 0;
+        for (Stats s : stats.values()) {
+            n += s.active.get();
+        }
+        return n;
+    }
+
+
+    @Override
+    public int getQueuedCount() {
+        int n = 0;
+        for (Stats s : stats.values()) {
+            n += s.queued.get();
+        }
+        return n;
+    }
+
+
+    private void logStatus() {
+        for (Stats s : stats.values()) {
+            if (s.completed.get() == 0 && s.queued.get() == 0 && s.active.get() == 0) continue;
+            log.info(String.format("Task %s (%s) completed: %d, failed: %d, queued: %d, active: %d; " +
+                            "wait (us) %s; run (us) %s; cpu (us) %s",
+                    s.name, s.priority, s.completed.get(), s.failed.get(), s.queued.get(), s.active.get(),
+                    s.waitTimes, s.runTimes, s.cpuTimes));
+        }
+    }
+
+
+    /**
+     * Statistics of the tasks of one name and priority
+     */
+    public static class Stats {
+        static final Stats DISABLED = new Stats(OTHER_TASKS, Priority.NORMAL);
+
+        private final String name;
+        private final Priority priority;
+        private final Histogram waitTimes = new Histogram();
+        private final Histogram runTimes = new Histogram();
+        private final Histogram cpuTimes = new Histogram();
+        private final AtomicLong completed = new AtomicLong(0);
+        private final AtomicLong failed = new AtomicLong(0);
+        private final AtomicInteger queued = new AtomicInteger(0);
+        private final AtomicInteger active = new AtomicInteger(0);
+
+
+        private Stats(String name, Priority priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+
+        /**
+         * Count a task as queued from now, and record it when it runs
+         *
+         * @param task the task
+         * @return the task to queue instead
+         */
+        public Timed queue(Runnable task) {
+            if (this == DISABLED) return new Timed(this, task, 0);
+            queued.incrementAndGet();
+            return new Timed(this, task, System.nanoTime());
+        }
+    }
+
+
+    /**
+     * A queued task, recorded when it runs
+     */
+    public static class Timed implements Runnable {
+        private final Stats stats;
+        private final Runnable task;
+        private final long queuedAt;
+
+
+        private Timed(Stats stats, Runnable task, long queuedAt) {
+            this.stats = stats;
+            this.task = task;
+            this.queuedAt = queuedAt;
+        }
+
+
+        /**
+         * The task is not going to run after all
+         */
+        public void cancel() {
+            if (stats != Stats.DISABLED) {
+                stats.queued.decrementAndGet();
+            }
+        }
+
+
+        @Override
+        public void run() {
+            if (stats == Stats.DISABLED) {
+                task.run();
+                return;
+            }
+
+            long start = System.nanoTime();
+            long cpuStart = CPU_TIME ? THREADS.getCurrentThreadCpuTime() : 0;
+            stats.queued.decrementAndGet();
+            stats.active.incrementAndGet();
+            stats.waitTimes.record(TimeUnit.NANOSECONDS.toMicros(start - queuedAt));
+            boolean ok = false;
+            try {
+                task.run();
+                ok = true;
+            } finally {
+                stats.runTimes.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                if (CPU_TIME) {
+                    stats.cpuTimes.record(TimeUnit.NANOSECONDS.toMicros(THREADS.getCurrentThreadCpuTime() - cpuStart));
+                }
+                (ok ? stats.completed : stats.failed).incrementAndGet();
+                stats.active.decrementAndGet();
+            }
+        }
+    }
+
+
+    /**
+     * Snapshot of {@link Stats} for JMX
+     */
+    public static class TaskStat {
+        private final Stats stats;
+
+
+        TaskStat(Stats stats) {
+            this.stats = stats;
+        }
+
+
+        public String getName() {
+            return stats.name;
+        }
+
+
+        public String getPriority() {
+            return stats.priority.toString();
+        }
+
+
+        public long getCompleted() {
+            return stats.completed.get();
+        }
+
+
+        // tasks which threw an exception
+        public long getFailed() {
+            return stats.failed.get();
+        }
+
+
+        public int getQueued() {
+            return stats.queued.get();
+        }
+
+
+        public int getActive() {
+            return stats.active.get();
+        }
+
+
+        public double getMeanWaitMicros() {
+            return stats.waitTimes.getMean();
+        }
+
+
+        public long getP99WaitMicros() {
+            return stats.waitTimes.getPercentile(99);
+        }
+
+
+        public double getMeanRunMicros() {
+            return stats.runTimes.getMean();
+        }
+
+
+        public long getP99RunMicros() {
+            return stats.runTimes.getPercentile(99);
+        }
+
+
+        public long getMaxRunMicros() {
+            return stats.runTimes.getMax();
+        }
+
+
+        public double getMeanCpuMicros() {
+            return stats.cpuTimes.getMean();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package unimelb.bitbox.util.ThreadPool;
+
+
+import java.util.List;
+
+
+/**
+ * JMX interface of {@link TaskMetrics}
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public interface TaskMetricsMXBean {
+
+    /**
+     * @return statistics of each task name and priority
+     */
+    List<TaskMetrics.TaskStat> getTasks();
+
+    /**
+     * @return tasks running now
+     */
+    int getActiveCount();
+
+    /**
+     * @return tasks waiting to run
+     */
+    int getQueuedCount();
+}
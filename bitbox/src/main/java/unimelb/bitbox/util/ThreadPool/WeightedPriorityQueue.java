@@ -0,0 +1,293 @@
+package unimelb.bitbox.util.ThreadPool;
+
+
+import unimelb.bitbox.util.Histogram;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * WeightedPriorityQueue is the queue of {@link PriorityThreadPool}, it serves the priorities by deficit round robin.
+ * <p>
+ * Tasks of the same {@link Priority} are taken in FIFO order. Each turn, a priority with tasks may take
+ * as many tasks as its weight, then the next priority gets its turn. Under sustained HIGH load,
+ * NORMAL and LOW tasks still get their share, nothing starves.
+ * The time each task waited in the queue is recorded per priority.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class WeightedPriorityQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private static final int PRIORITIES = Priority.values().length;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    // by Priority ordinal
+    private final ArrayList<ArrayDeque<Entry>> queues = new ArrayList<>();
+    private final int[] weights;
+    private final int[] deficits = new int[PRIORITIES];
+    private final Histogram[] waitTimes = new Histogram[PRIORITIES];
+    private int current = 0;
+    private int size = 0;
+
+
+    /**
+     * Constructor
+     *
+     * @param weights tasks taken per turn by each priority, in the order of {@link Priority}, at least 1
+     */
+    public WeightedPriorityQueue(int[] weights) {
+        if (weights.length != PRIORITIES) {
+            throw new IllegalArgumentException("one weight per priority expected");
+        }
+        this.weights = new int[PRIORITIES];
+        for (int i = 0; i < PRIORITIES; i++) {
+            this.weights[i] = Math.max(1, weights[i]);
+            queues.add(new ArrayDeque<>());
+            waitTimes[i] = new Histogram();
+        }
+    }
+
+
+    /**
+     * @param priority a priority
+     * @return the time the tasks of the priority waited in the queue, in microseconds
+     */
+    public Histogram getWaitTimes(Priority priority) {
+        return waitTimes[priority.ordinal()];
+    }
+
+
+    /**
+     * @param priority a priority
+     * @return number of tasks of the priority in the queue
+     */
+    public int size(Priority priority) {
+        lock.lock();
+        try {
+            return queues.get(priority.ordinal()).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public boolean offer(Runnable runnable) {
+        if (runnable == null) throw new NullPointerException();
+        // the pool only gets PriorityTasks
+        Priority priority = (runnable instanceof PriorityTask) ?
+                ((PriorityTask) runnable).getPriority() : Priority.NORMAL;
+
+        lock.lock();
+        try {
+            queues.get(priority.ordinal()).addLast(new Entry(runnable, priority.ordinal(), System.nanoTime()));
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+
+    @Override
+    public void put(Runnable runnable) {
+        offer(runnable);
+    }
+
+
+    @Override
+    public boolean offer(Runnable runnable, long timeout, TimeUnit unit) {
+        return offer(runnable);
+    }
+
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            for (int i = 0; i < PRIORITIES; i++) {
+                Entry entry = queues.get((current + i) % PRIORITIES).peekFirst();
+                if (entry != null) return entry.task;
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            for (ArrayDeque<Entry> queue : queues) {
+                Iterator<Entry> it = queue.iterator();
+                while (it.hasNext()) {
+                    if (it.next().task.equals(o)) {
+                        it.remove();
+                        size--;
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int n = 0;
+            Runnable task;
+            while (n < maxElements && (task = dequeue()) != null) {
+                c.add(task);
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return iterator over a copy of the queue, in no particular order
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        ArrayList<Runnable> copy = new ArrayList<>();
+        lock.lock();
+        try {
+            for (ArrayDeque<Entry> queue : queues) {
+                for (Entry entry : queue) {
+                    copy.add(entry.task);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return copy.iterator();
+    }
+
+
+    // deficit round robin, every task costs 1, must hold the lock
+    private Runnable dequeue() {
+        if (size == 0) return null;
+        while (true) {
+            ArrayDeque<Entry> queue = queues.get(current);
+            if (queue.isEmpty()) {
+                // an idle priority saves nothing for later
+                deficits[current] = 0;
+            } else {
+                if (deficits[current] == 0) {
+                    deficits[current] = weights[current];
+                }
+                deficits[current]--;
+                Entry entry = queue.pollFirst();
+                size--;
+                if (deficits[current] == 0) {
+                    current = (current + 1) % PRIORITIES;
+                }
+                waitTimes[entry.priority].record(
+                        TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - entry.enqueued));
+                return entry.task;
+            }
+            current = (current + 1) % PRIORITIES;
+        }
+    }
+
+
+    private static class Entry {
+        final Runnable task;
+        final int priority;
+        final long enqueued;
+
+        Entry(Runnable task, int priority, long enqueued) {
+            this.task = task;
+            this.priority = priority;
+            this.enqueued = enqueued;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package unimelb.bitbox.util;
+
+
+/**
+ * A simple token bucket for shaping bandwidth.
+ * Tokens are refilled at a fixed rate (bytes per second) up to one second worth of burst.
+ * A caller may take more tokens than available, it then has to wait until the debt is paid back,
+ * so concurrent callers are spread out evenly. The bucket never blocks, the caller decides how to wait.
+ *
+ * @author Weizhi Xu (752454)
+ * @author Wenqing Xue (813044)
+ * @author Zijie Shen (741404)
+ * @author Zijun Chen (813190)
+ */
+public class TokenBucket {
+
+    private final long rate;
+    private double tokens;
+    private long lastRefillTime;
+
+
+    /**
+     * Constructor
+     *
+     * @param rate bytes per second, zero or negative means unlimited
+     */
+    public TokenBucket(long rate) {
+        this.rate = rate;
+        this.tokens = rate;
+        this.lastRefillTime = System.nanoTime();
+    }
+
+
+    /**
+     * @return true if this bucket never makes the caller wait
+     */
+    public boolean isUnlimited() {
+        return rate <= 0;
+    }
+
+
+    /**
+     * Take the given amount of tokens, available or not
+     *
+     * @param amount number of tokens (bytes)
+     * @return nanoseconds to wait before using them, 0 if they are available now
+     */
+    public long reserve(long amount) {
+        if (isUnlimited()) return 0;
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - lastRefillTime) * rate / 1e9);
+            lastRefillTime = now;
+
+            tokens -= amount;
+            return (tokens >= 0) ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+    }
+}
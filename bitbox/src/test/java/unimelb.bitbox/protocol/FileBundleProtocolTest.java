@@ -0,0 +1,116 @@
+package unimelb.bitbox.protocol;
+
+
+import org.json.JSONException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.skyscreamer.jsonassert.JSONAssert;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class FileBundleProtocolTest {
+
+    private static final String BUNDLE_REQUEST = "{" +
+            "\"command\":\"FILE_BUNDLE_REQUEST\"," +
+            "\"files\":[{" +
+            "\"fileDescriptor\":{" +
+            "\"md5\":\"d41d8cd98f00b204e9800998ecf8427e\"," +
+            "\"lastModified\":1553417607000," +
+            "\"fileSize\":0" +
+            "}," +
+            "\"pathName\":\"empty.txt\"," +
+            "\"content\":\"\"" +
+            "}]" +
+            "}";
+
+
+    @Test
+    public void testParseBundleRequest() throws InvalidProtocolException {
+        Protocol.FileBundleRequest request = (Protocol.FileBundleRequest) ProtocolFactory.parseProtocol(BUNDLE_REQUEST);
+
+        assertEquals(1, request.files.size());
+        assertEquals("empty.txt", request.files.get(0).path);
+        assertEquals("", request.files.get(0).content);
+        assertNull(request.files.get(0).response);
+    }
+
+
+    @Test
+    public void testMarshalBundleRequest() throws InvalidProtocolException {
+        Protocol protocol = ProtocolFactory.parseProtocol(BUNDLE_REQUEST);
+
+        try {
+            JSONAssert.assertEquals(BUNDLE_REQUEST, ProtocolFactory.marshalProtocol(protocol), true);
+        } catch (JSONException e) {
+            Assert.fail("Failed to parse JSON");
+        }
+    }
+
+
+    @Test
+    public void testIdentifyBundleResponse() throws InvalidProtocolException {
+        Protocol.FileBundleRequest request = (Protocol.FileBundleRequest) ProtocolFactory.parseProtocol(BUNDLE_REQUEST);
+
+        Protocol.FileBundleResponse response = new Protocol.FileBundleResponse();
+        response.files.add(request.files.get(0));
+        response.files.get(0).content = null;
+        response.files.get(0).response = new ProtocolField.Response();
+        response.files.get(0).response.status = true;
+        response.files.get(0).response.msg = "ok";
+
+        Protocol.FileBundleResponse parsed = (Protocol.FileBundleResponse)
+                ProtocolFactory.parseProtocol(ProtocolFactory.marshalProtocol(response));
+        assertTrue(parsed.files.get(0).response.status);
+        assertEquals(request, ProtocolFactory.identifyRes(parsed));
+        // a response is never waited for as a request
+        assertTrue(parsed instanceof IResponse);
+        assertFalse(parsed instanceof IRequest);
+    }
+
+
+    @Test
+    public void testHandshakeFeatures() throws InvalidProtocolException {
+        Protocol.HandshakeRequest request = (Protocol.HandshakeRequest) ProtocolFactory.parseProtocol(
+                "{\"command\":\"HANDSHAKE_REQUEST\",\"hostPort\":{\"host\":\"localhost\",\"port\":8111}," +
+                        "\"features\":[\"fileBundle\"]}");
+        assertTrue(request.features.features.contains(ProtocolFeature.FILE_BUNDLE.getKey()));
+
+        // peers without features do not send the field
+        request.features.features.clear();
+        assertTrue(!ProtocolFactory.marshalProtocol(request).contains("features"));
+    }
+
+
+    @Test
+    public void testInlineContent() throws InvalidProtocolException {
+        String json = "{" +
+                "\"command\":\"FILE_MODIFY_REQUEST\"," +
+                "\"fileDescriptor\":{" +
+                "\"md5\":\"5d41402abc4b2a76b9719d911017c592\"," +
+                "\"lastModified\":1553417607000," +
+                "\"fileSize\":5" +
+                "}," +
+                "\"pathName\":\"hello.txt\"," +
+                "\"content\":\"aGVsbG8=\"" +
+                "}";
+        Protocol.FileModifyRequest request = (Protocol.FileModifyRequest) ProtocolFactory.parseProtocol(json);
+        assertEquals("aGVsbG8=", request.inline.content);
+
+        try {
+            JSONAssert.assertEquals(json, ProtocolFactory.marshalProtocol(request), true);
+        } catch (JSONException e) {
+            Assert.fail("Failed to parse JSON");
+        }
+
+        // the response still matches the request sent with content
+        Protocol.FileModifyResponse response = new Protocol.FileModifyResponse();
+        response.fileDes = request.fileDes;
+        response.response.status = true;
+        response.response.msg = "ok";
+        assertEquals(request, ProtocolFactory.identifyRes(response));
+    }
+}
@@ -12,6 +12,8 @@ import org.skyscreamer.jsonassert.JSONAssert;
 import unimelb.bitbox.util.Document;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 
 @RunWith(PowerMockRunner.class)
@@ -62,5 +64,54 @@ public class ProtocolFactoryTest {
         }
     }
 
-}
 
+    @Test
+    public void testRequestId() throws InvalidProtocolException {
+        String request = "{" +
+                "\"command\":\"DIRECTORY_CREATE_REQUEST\"," +
+                "\"pathName\":\"dir\"," +
+                "\"requestId\":42" +
+                "}";
+        Protocol.DirectoryCreateRequest parsed = (Protocol.DirectoryCreateRequest) ProtocolFactory.parseProtocol(request);
+        assertEquals(42, parsed.requestId);
+
+        // the id given when marshalling does not change the protocol
+        String marshalled = ProtocolFactory.marshalProtocol(parsed, 7);
+        assertEquals(7, ProtocolFactory.parseProtocol(marshalled).requestId);
+        assertEquals(42, parsed.requestId);
+
+        // omitted when not used
+        parsed.requestId = 0;
+        assertFalse(ProtocolFactory.marshalProtocol(parsed).contains("requestId"));
+        assertEquals(0, ProtocolFactory.parseProtocol(this.expected).requestId);
+        assertTrue(ProtocolFactory.marshalProtocol(parsed).contains("dir"));
+    }
+
+
+    @Test
+    public void testHeartbeat() throws InvalidProtocolException {
+        Protocol.HeartbeatResponse response = new Protocol.HeartbeatResponse();
+        response.timestamp = -123456789012L;
+
+        Protocol parsed = ProtocolFactory.parseProtocol(ProtocolFactory.marshalProtocol(response));
+        assertEquals(ProtocolType.HEARTBEAT_RESPONSE, ProtocolType.typeOfProtocol(parsed));
+        assertEquals(response.timestamp, ((Protocol.HeartbeatResponse) parsed).timestamp);
+    }
+
+
+    @Test
+    public void testHandshakeStream() throws InvalidProtocolException {
+        Protocol.HandshakeRequest request = new Protocol.HandshakeRequest();
+        request.peer = this.handshakeResponse.peer;
+        request.stream = 3;
+
+        Protocol.HandshakeRequest parsed =
+                (Protocol.HandshakeRequest) ProtocolFactory.parseProtocol(ProtocolFactory.marshalProtocol(request));
+        assertEquals(3, parsed.stream);
+        assertEquals(request.peer, parsed.peer);
+
+        // the primary connection does not send it
+        assertFalse(ProtocolFactory.marshalProtocol(this.handshakeResponse).contains("stream"));
+        assertEquals(0, ((Protocol.HandshakeResponse) ProtocolFactory.parseProtocol(this.expected)).stream);
+    }
+}
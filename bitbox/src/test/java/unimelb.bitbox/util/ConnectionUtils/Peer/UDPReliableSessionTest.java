@@ -0,0 +1,406 @@
+package unimelb.bitbox.util.ConnectionUtils.Peer;
+
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class UDPReliableSessionTest {
+
+    // one side of an in-memory link, frames are only moved when the test says so
+    private static class Endpoint implements UDPReliableSession.Transport {
+        final LinkedList<byte[]> outbox = new LinkedList<>();
+        final ArrayList<String> delivered = new ArrayList<>();
+        boolean lost = false;
+        UDPReliableSession session;
+
+
+        @Override
+        public void sendFrame(byte[] frame) {
+            outbox.add(frame);
+        }
+
+
+        @Override
+        public void deliver(byte[] payload) {
+            delivered.add(new String(payload, StandardCharsets.UTF_8));
+        }
+
+
+        @Override
+        public void peerLost() {
+            lost = true;
+        }
+    }
+
+
+    private static Endpoint endpoint(int maxRetries) {
+        Endpoint endpoint = new Endpoint();
+        endpoint.session = new UDPReliableSession(endpoint, 1000, maxRetries);
+        return endpoint;
+    }
+
+
+    private static Endpoint fragmentingEndpoint(int maxDatagramSize) {
+        Endpoint endpoint = new Endpoint();
+        endpoint.session = new UDPReliableSession(endpoint, 1000, 20, null, maxDatagramSize, null);
+        return endpoint;
+    }
+
+
+    private static Endpoint endpoint(int sessionId, int peerSessionId) {
+        Endpoint endpoint = new Endpoint();
+        endpoint.session = new UDPReliableSession(endpoint, 1000, 20, null, 0, null, sessionId, peerSessionId);
+        return endpoint;
+    }
+
+
+    // a data frame acknowledging nothing
+    private static byte[] dataFrame(int sessionId, long seq, String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(UDPReliableSession.HEADER_SIZE + bytes.length);
+        buffer.put(UDPReliableSession.MAGIC);
+        buffer.put(UDPReliableSession.FLAG_DATA);
+        buffer.putInt(sessionId);
+        buffer.putLong(seq);
+        buffer.putLong(0);
+        buffer.put((byte) 0);
+        buffer.put(bytes);
+        return buffer.array();
+    }
+
+
+    private static void receive(Endpoint to, byte[] frame) {
+        to.session.receive(frame, frame.length, 0);
+    }
+
+
+    private static String largeMessage(int index, int length) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(index).append(':');
+        Random random = new Random(index);
+        while (sb.length() < length) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+
+    // move frames between the endpoints, dropping and reordering some of them
+    private static void transfer(Endpoint from, Endpoint to, Random random, double lossRate, long now) {
+        ArrayList<byte[]> frames = new ArrayList<>(from.outbox);
+        from.outbox.clear();
+        for (int i = frames.size() - 1; i > 0; i--) {
+            if (random.nextInt(4) == 0) {
+                byte[] tmp = frames.get(i);
+                frames.set(i, frames.get(i - 1));
+                frames.set(i - 1, tmp);
+            }
+        }
+        for (byte[] frame : frames) {
+            if (random.nextDouble() >= lossRate) {
+                to.session.receive(frame, frame.length, now);
+            }
+        }
+    }
+
+
+    // move frames between the endpoints in order
+    private static void transfer(Endpoint from, Endpoint to, long now) {
+        ArrayList<byte[]> frames = new ArrayList<>(from.outbox);
+        from.outbox.clear();
+        for (byte[] frame : frames) {
+            to.session.receive(frame, frame.length, now);
+        }
+    }
+
+
+    @Test
+    public void testDeliverAllOverLossyLink() {
+        Endpoint a = endpoint(20);
+        Endpoint b = endpoint(20);
+        Random random = new Random(42);
+
+        int count = 500;
+        long now = 0;
+        for (int i = 0; i < count; i++) {
+            a.session.send(("message " + i).getBytes(StandardCharsets.UTF_8), now);
+        }
+
+        for (int round = 0; round < 2000 && b.delivered.size() < count; round++) {
+            now += 50;
+            transfer(a, b, random, 0.2, now);
+            transfer(b, a, random, 0.2, now);
+            a.session.tick(now);
+            b.session.tick(now);
+        }
+
+        assertEquals(count, b.delivered.size());
+        assertEquals(count, new HashSet<>(b.delivered).size());
+        assertFalse(a.lost);
+    }
+
+
+    @Test
+    public void testRttEstimate() {
+        Endpoint a = endpoint(3);
+        Endpoint b = endpoint(3);
+
+        for (int i = 0; i < 20; i++) {
+            long now = i * 1000L;
+            a.session.send("ping".getBytes(StandardCharsets.UTF_8), now);
+            transfer(a, b, new Random(), 0, now + 30);
+            transfer(b, a, new Random(), 0, now + 60);
+        }
+
+        assertEquals(60, a.session.getSrtt());
+        assertEquals(UDPReliableSession.MIN_RTO_MS, a.session.getRto());
+        assertEquals(0, a.session.getInFlightCount());
+    }
+
+
+    @Test
+    public void testFastRetransmit() {
+        Endpoint a = endpoint(3);
+        Endpoint b = endpoint(3);
+
+        for (int i = 0; i < 5; i++) {
+            a.session.send(("m" + i).getBytes(StandardCharsets.UTF_8), 0);
+        }
+        // the first frame is lost, the others arrive in order so exactly one frame is retransmitted
+        a.outbox.removeFirst();
+        transfer(a, b, 10);
+        transfer(b, a, 20);
+
+        // retransmitted before its timeout expired
+        assertEquals(1, a.outbox.size());
+        transfer(a, b, 30);
+        assertEquals(5, b.delivered.size());
+        assertTrue(b.delivered.contains("m0"));
+
+        // the loss shrinks the window
+        assertEquals(0.2, a.session.getLossRate(), 1e-9);
+        assertTrue(a.session.getCwnd() < UDPReliableSession.INITIAL_CWND);
+    }
+
+
+    @Test
+    public void testCongestionWindowFollowsDelay() {
+        Endpoint a = endpoint(20);
+        Endpoint b = endpoint(20);
+
+        long now = 0;
+        for (int i = 0; i < 5000; i++) {
+            a.session.send(("m" + i).getBytes(StandardCharsets.UTF_8), now);
+        }
+        assertEquals((int) UDPReliableSession.INITIAL_CWND, a.outbox.size());
+
+        // no queuing delay, the window grows
+        for (int round = 0; round < 20; round++) {
+            now += 10;
+            transfer(a, b, now);
+            now += 10;
+            transfer(b, a, now);
+        }
+        double grown = a.session.getCwnd();
+        assertTrue(grown > UDPReliableSession.INITIAL_CWND);
+        assertEquals(20, a.session.getBaseDelay());
+
+        // the round trip goes well over the base, the window shrinks
+        for (int round = 0; round < 20; round++) {
+            now += 10 + UDPReliableSession.TARGET_DELAY_MS * 2;
+            transfer(a, b, now);
+            now += 10;
+            transfer(b, a, now);
+        }
+        assertTrue(a.session.getQueuingDelay() > UDPReliableSession.TARGET_DELAY_MS);
+        assertTrue(a.session.getCwnd() < grown);
+    }
+
+
+    @Test
+    public void testPeerLost() {
+        Endpoint a = endpoint(2);
+        a.session.send("hello".getBytes(StandardCharsets.UTF_8), 0);
+
+        for (long now = 0; now < 60000 && !a.lost; now += 100) {
+            a.session.tick(now);
+        }
+        assertTrue(a.lost);
+        // first send and 2 retries
+        assertEquals(3, a.outbox.size());
+    }
+
+
+    @Test
+    public void testFragmentsOverLossyLink() {
+        Endpoint a = fragmentingEndpoint(1472);
+        Endpoint b = fragmentingEndpoint(1472);
+        Random random = new Random(7);
+
+        HashSet<String> sent = new HashSet<>();
+        long now = 0;
+        for (int i = 0; i < 5; i++) {
+            String msg = largeMessage(i, 100000 + i * 1000);
+            sent.add(msg);
+            a.session.send(msg.getBytes(StandardCharsets.UTF_8), now);
+        }
+        a.session.send("small".getBytes(StandardCharsets.UTF_8), now);
+        sent.add("small");
+
+        for (int round = 0; round < 5000 && b.delivered.size() < sent.size(); round++) {
+            now += 50;
+            for (byte[] frame : a.outbox) {
+                assertTrue(frame.length <= 1472);
+            }
+            transfer(a, b, random, 0.1, now);
+            transfer(b, a, random, 0.1, now);
+            a.session.tick(now);
+            b.session.tick(now);
+        }
+
+        assertEquals(sent, new HashSet<>(b.delivered));
+        assertEquals(sent.size(), b.delivered.size());
+        assertEquals(0, b.session.getReassemblyBytes());
+    }
+
+
+    @Test
+    public void testIncompleteMessageDropped() {
+        Endpoint a = fragmentingEndpoint(1472);
+        Endpoint b = fragmentingEndpoint(1472);
+
+        a.session.send(largeMessage(0, 5000).getBytes(StandardCharsets.UTF_8), 0);
+        // the last fragment never arrives
+        a.outbox.removeLast();
+        transfer(a, b, new Random(), 0, 10);
+        assertTrue(b.session.getReassemblyBytes() > 0);
+        assertTrue(b.delivered.isEmpty());
+
+        b.session.tick(10 + UDPReliableSession.REASSEMBLY_TIMEOUT_MS);
+        assertEquals(0, b.session.getReassemblyBytes());
+        assertTrue(b.delivered.isEmpty());
+    }
+
+
+    @Test
+    public void testPacedFrameTimedWhenSent() throws InterruptedException {
+        Endpoint b = endpoint(20);
+        ArrayList<byte[]> sent = new ArrayList<>();
+        UDPReliableSession.Transport transport = new UDPReliableSession.Transport() {
+            @Override
+            public void sendFrame(byte[] frame) {
+                synchronized (sent) {
+                    sent.add(frame);
+                }
+            }
+
+            @Override
+            public void deliver(byte[] payload) {
+            }
+
+            @Override
+            public void peerLost() {
+            }
+        };
+        UDPReliableSession a = new UDPReliableSession(transport, 1000, 20, UDPPacer.getInstance(), 0, null);
+
+        // a first round trip of 200 ms, the next window is paced over about that long
+        a.send("first".getBytes(StandardCharsets.UTF_8));
+        Thread.sleep(200);
+        exchange(sent, b, a);
+        assertTrue(a.getSrtt() >= 200);
+
+        int count = (int) UDPReliableSession.INITIAL_CWND;
+        for (int i = 0; i < count; i++) {
+            a.send(("m" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sentCount(sent) < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, sentCount(sent));
+
+        // acked right after the last one left, the time it waited in the pacer is not round trip
+        exchange(sent, b, a);
+        assertEquals(0, a.getInFlightCount());
+        assertTrue(a.getBaseDelay() < 100);
+    }
+
+
+    private static int sentCount(ArrayList<byte[]> sent) {
+        synchronized (sent) {
+            return sent.size();
+        }
+    }
+
+
+    // deliver the frames sent by a session to an endpoint and its acknowledgements back
+    private static void exchange(ArrayList<byte[]> sent, Endpoint to, UDPReliableSession from) {
+        ArrayList<byte[]> frames;
+        synchronized (sent) {
+            frames = new ArrayList<>(sent);
+            sent.clear();
+        }
+        for (byte[] frame : frames) {
+            to.session.receive(frame, frame.length);
+        }
+        for (byte[] frame : to.outbox) {
+            from.receive(frame, frame.length);
+        }
+        to.outbox.clear();
+    }
+
+
+    @Test
+    public void testFrameBeyondWindowDropped() {
+        Endpoint b = endpoint(20);
+        int window = UDPReliableSession.WINDOW_SIZE;
+
+        receive(b, dataFrame(0, Long.MAX_VALUE / 2, "far"));
+        receive(b, dataFrame(0, window, "edge"));
+        receive(b, dataFrame(0, window - 1, "last"));
+        assertEquals(1, b.delivered.size());
+        assertEquals("last", b.delivered.get(0));
+
+        // the window moves with the frames received in order
+        for (int i = 0; i < window - 1; i++) {
+            receive(b, dataFrame(0, i, "message " + i));
+        }
+        receive(b, dataFrame(0, window, "edge"));
+        receive(b, dataFrame(0, 3L * window, "far"));
+        assertEquals(window + 1, b.delivered.size());
+        assertEquals("edge", b.delivered.get(window));
+    }
+
+
+    @Test
+    public void testFrameOfOtherSessionDropped() {
+        Endpoint a = endpoint(1, 2);
+        Endpoint b = endpoint(2, 1);
+        // a connection between the same addresses before, its frames are still on the way
+        Endpoint old = endpoint(5, 7);
+
+        old.session.send("old".getBytes(StandardCharsets.UTF_8), 0);
+        transfer(old, b, 0);
+        a.session.send("new".getBytes(StandardCharsets.UTF_8), 0);
+        transfer(a, b, 0);
+        transfer(b, a, 0);
+
+        assertEquals(1, b.delivered.size());
+        assertEquals("new", b.delivered.get(0));
+        assertTrue(a.outbox.isEmpty());
+        a.session.tick(5000);
+        assertTrue(a.outbox.isEmpty());
+    }
+}
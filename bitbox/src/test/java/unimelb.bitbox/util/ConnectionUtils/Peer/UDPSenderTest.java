@@ -0,0 +1,86 @@
+package unimelb.bitbox.util.ConnectionUtils.Peer;
+
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class UDPSenderTest {
+
+    private static byte[] datagram(int length, int value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+
+    @Test
+    public void testBatchRoundTrip() {
+        ArrayList<byte[]> datagrams = new ArrayList<>();
+        datagrams.add(datagram(30, 1));
+        datagrams.add(datagram(500, 2));
+        datagrams.add(datagram(0, 3));
+        datagrams.add(datagram(UDPSender.BATCH_SIZE, 4));
+        ArrayList<byte[]> sent = new ArrayList<>(datagrams);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+        assertEquals(3, UDPSender.batch(datagrams, buffer));
+        assertTrue(buffer.remaining() <= UDPSender.BATCH_SIZE);
+
+        // the large one is left to be sent alone
+        assertEquals(1, datagrams.size());
+        assertEquals(0, UDPSender.batch(datagrams, buffer));
+
+        byte[] batch = new byte[buffer.remaining()];
+        buffer.get(batch);
+        assertTrue(UDPSender.isBatch(batch));
+
+        ArrayList<byte[]> received = new ArrayList<>();
+        UDPSender.unbatch(batch, received::add);
+        assertEquals(3, received.size());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(sent.get(i), received.get(i));
+        }
+    }
+
+
+    @Test
+    public void testSingle() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        assertSame(buffer, UDPSender.single(datagram(100, 1), buffer));
+        assertEquals(100, buffer.remaining());
+
+        // too large for the buffer, it does not throw and leaves the buffer alone
+        ByteBuffer large = UDPSender.single(datagram(2000, 2), buffer);
+        assertNotSame(buffer, large);
+        assertEquals(2000, large.remaining());
+    }
+
+
+    @Test
+    public void testTruncatedBatch() {
+        ArrayList<byte[]> datagrams = new ArrayList<>();
+        datagrams.add(datagram(10, 1));
+        datagrams.add(datagram(10, 2));
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        UDPSender.batch(datagrams, buffer);
+
+        byte[] batch = new byte[buffer.remaining() - 1];
+        buffer.get(batch);
+
+        ArrayList<byte[]> received = new ArrayList<>();
+        UDPSender.unbatch(batch, received::add);
+        assertEquals(1, received.size());
+        assertFalse(UDPSender.isBatch("{}".getBytes()));
+    }
+}
@@ -0,0 +1,115 @@
+package unimelb.bitbox.util.FileSystem;
+
+
+import org.junit.Test;
+import unimelb.bitbox.Constants;
+import unimelb.bitbox.util.HostPort;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class BlockCompressorTest {
+
+    private static final int LENGTH = 8192;
+    private static final String DEFLATE = Constants.PROTOCOL_COMPRESSION_DEFLATE;
+
+    private final BlockCompressor compressor = BlockCompressor.getInstance();
+
+
+    private static byte[] text(int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < length; i++) {
+            sb.append("line ").append(i % 100).append(" of a file which compresses well\n");
+        }
+        return Arrays.copyOf(sb.toString().getBytes(StandardCharsets.UTF_8), length);
+    }
+
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+
+    @Test
+    public void testRoundTrip() throws DataFormatException {
+        TestConnection conn = new TestConnection();
+        conn.setHostPort(new HostPort("localhost", 10));
+        byte[] data = text(LENGTH);
+
+        byte[] compressed = compressor.compress(conn, "round trip", data);
+        assertNotNull(compressed);
+        assertTrue(compressed.length < data.length);
+        assertArrayEquals(data, compressor.decompress(DEFLATE, compressed, data.length));
+
+        // the bytes saved are counted for the peer until it goes away
+        assertEquals(data.length - compressed.length, compressor.getSavedBytes(conn.getHostPort()));
+        compressor.removePeer(conn.getHostPort());
+        assertEquals(0, compressor.getSavedBytes(conn.getHostPort()));
+    }
+
+
+    @Test
+    public void testIncompressible() {
+        TestConnection conn = new TestConnection();
+        assertNull(compressor.compress(conn, "incompressible", random(LENGTH, 1)));
+
+        // the rest of the file is sent as is, even a block which would compress
+        assertNull(compressor.compress(conn, "incompressible", text(LENGTH)));
+        assertNotNull(compressor.compress(conn, "another file", text(LENGTH)));
+    }
+
+
+    @Test
+    public void testSmallBlock() {
+        assertNull(compressor.compress(new TestConnection(), "small", text(100)));
+    }
+
+
+    @Test
+    public void testTruncated() {
+        byte[] data = text(LENGTH);
+        byte[] compressed = compressor.compress(new TestConnection(), "truncated", data);
+        assertNotNull(compressed);
+
+        assertFails(DEFLATE, Arrays.copyOf(compressed, compressed.length / 2), data.length);
+        assertFails(DEFLATE, new byte[0], data.length);
+        // the block is shorter or longer than expected
+        assertFails(DEFLATE, compressed, data.length + 1);
+        assertFails(DEFLATE, compressed, data.length - 1);
+    }
+
+
+    @Test
+    public void testCorrupt() {
+        byte[] data = text(LENGTH);
+        byte[] compressed = compressor.compress(new TestConnection(), "corrupt", data);
+        assertNotNull(compressed);
+
+        assertFails(DEFLATE, random(LENGTH / 4, 2), data.length);
+        byte[] flipped = compressed.clone();
+        flipped[0] ^= 0xFF;
+        assertFails(DEFLATE, flipped, data.length);
+        assertFails("gzip", compressed, data.length);
+    }
+
+
+    private void assertFails(String compression, byte[] data, int length) {
+        try {
+            compressor.decompress(compression, data, length);
+            fail("DataFormatException expected");
+        } catch (DataFormatException ignored) {
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package unimelb.bitbox.util.FileSystem;
+
+
+import org.junit.Test;
+import unimelb.bitbox.Constants;
+import unimelb.bitbox.protocol.Protocol;
+import unimelb.bitbox.protocol.ProtocolField;
+import unimelb.bitbox.util.HostPort;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class FileLoaderWrapperTest {
+
+    // a peer with fragmentation or a bulk connection, and one limited to a datagram
+    private static final long LARGE_BLOCK = 1048576;
+    private static final long SMALL_BLOCK = 8192;
+
+
+    private static ProtocolField.FileDes file(long fileSize) {
+        ProtocolField.FileDes fileDes = new ProtocolField.FileDes();
+        fileDes.path = "file.bin";
+        fileDes.md5 = "md5";
+        fileDes.fileSize = fileSize;
+        return fileDes;
+    }
+
+
+    private static TestConnection connection(long blockSize, int port) {
+        TestConnection conn = new TestConnection();
+        conn.setHostPort(new HostPort("localhost", port));
+        conn.setBlockSize(blockSize);
+        return conn;
+    }
+
+
+    // the requests cover the start of the file once, without gaps, returns the end
+    private static long assertContiguous(List<Protocol.FileBytesRequest> requests) {
+        requests.sort(Comparator.comparingLong(request -> request.filePos.pos));
+        long end = 0;
+        for (Protocol.FileBytesRequest request : requests) {
+            assertEquals(end, request.filePos.pos);
+            end += request.filePos.len;
+        }
+        return end;
+    }
+
+
+    @Test
+    public void testBlocksFitEachConnection() {
+        TestConnection fragmenting = connection(LARGE_BLOCK, 1);
+        TestConnection datagram = connection(SMALL_BLOCK, 2);
+
+        // the file is first offered by the fragmenting peer, the other one collaborates
+        FileLoaderWrapper wrapper = new FileLoaderWrapper(file(12 * LARGE_BLOCK), null, fragmenting);
+        wrapper.addNewConnection(datagram);
+        wrapper.start();
+
+        List<Protocol.FileBytesRequest> large = fragmenting.takeRequests();
+        List<Protocol.FileBytesRequest> small = datagram.takeRequests();
+        assertEquals(10, large.size());
+        assertEquals(10, small.size());
+        for (Protocol.FileBytesRequest request : large) {
+            assertTrue(request.filePos.len <= LARGE_BLOCK);
+        }
+        for (Protocol.FileBytesRequest request : small) {
+            assertEquals(SMALL_BLOCK, request.filePos.len);
+        }
+
+        List<Protocol.FileBytesRequest> all = new ArrayList<>(large);
+        all.addAll(small);
+        assertEquals(10 * LARGE_BLOCK + 10 * SMALL_BLOCK, assertContiguous(all));
+    }
+
+
+    @Test
+    public void testBlocksSplitForLaterConnection() {
+        TestConnection fragmenting = connection(LARGE_BLOCK, 1);
+        TestConnection datagram = connection(SMALL_BLOCK, 2);
+        FileLoaderWrapper wrapper = new FileLoaderWrapper(file(LARGE_BLOCK + 100), null, fragmenting);
+        wrapper.start();
+        List<Protocol.FileBytesRequest> first = fragmenting.takeRequests();
+        assertEquals(2, first.size());
+
+        // the fragmenting peer goes away, both of its blocks are requested from the other one in small blocks
+        wrapper.addNewConnection(datagram);
+        wrapper.removeConnection(fragmenting);
+        List<Protocol.FileBytesRequest> requests = datagram.takeRequests();
+        assertEquals(10, requests.size());
+        for (Protocol.FileBytesRequest request : requests) {
+            assertTrue(request.filePos.len <= SMALL_BLOCK);
+        }
+        requests.sort(Comparator.comparingLong(request -> request.filePos.pos));
+        Protocol.FileBytesRequest tail = requests.remove(requests.size() - 1);
+        assertEquals(9 * SMALL_BLOCK, assertContiguous(requests));
+        assertEquals(LARGE_BLOCK, tail.filePos.pos);
+        assertEquals(100, tail.filePos.len);
+    }
+
+
+    @Test
+    public void testRejectedBlockRequestedInHalves() {
+        TestConnection conn = connection(LARGE_BLOCK, 1);
+        FileLoaderWrapper wrapper = new FileLoaderWrapper(file(LARGE_BLOCK), null, conn);
+        wrapper.start();
+        List<Protocol.FileBytesRequest> requests = conn.takeRequests();
+        assertEquals(1, requests.size());
+        Protocol.FileBytesRequest request = requests.get(0);
+
+        Protocol.FileBytesResponse response = new Protocol.FileBytesResponse();
+        response.requestId = request.requestId;
+        response.fileDes = request.fileDes;
+        response.fileContent.pos = request.filePos.pos;
+        response.fileContent.len = request.filePos.len;
+        response.response.status = false;
+        response.response.msg = Constants.PROTOCOL_RESPONSE_MESSAGE_FILE_BLOCK_TOO_LARGE;
+        wrapper.rejected(response, conn);
+
+        requests = conn.takeRequests();
+        assertEquals(2, requests.size());
+        assertEquals(LARGE_BLOCK, assertContiguous(requests));
+        assertEquals(LARGE_BLOCK / 2, requests.get(0).filePos.len);
+
+        // a second refusal of the same block changes nothing
+        wrapper.rejected(response, conn);
+        assertEquals(0, conn.takeRequests().size());
+    }
+}
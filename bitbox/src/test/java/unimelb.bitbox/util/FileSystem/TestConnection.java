@@ -0,0 +1,88 @@
+package unimelb.bitbox.util.FileSystem;
+
+
+import unimelb.bitbox.protocol.IResponse;
+import unimelb.bitbox.protocol.Protocol;
+import unimelb.bitbox.util.ConnectionUtils.Peer.Connection;
+import unimelb.bitbox.util.HostPort;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+// a connection to nowhere, records the file bytes requested
+class TestConnection extends Connection {
+    static final long BLOCK_SIZE = 1000;
+
+    private final List<Protocol.FileBytesRequest> requested = Collections.synchronizedList(new ArrayList<>());
+    private volatile long blockSize = BLOCK_SIZE;
+
+
+    TestConnection() {
+        super(ConnectionType.OUTGOING);
+        hostPort = new HostPort("localhost", 1);
+    }
+
+
+    void setHostPort(HostPort hostPort) {
+        this.hostPort = hostPort;
+    }
+
+
+    void setBlockSize(long blockSize) {
+        this.blockSize = blockSize;
+    }
+
+
+    boolean requested(String path) {
+        synchronized (requested) {
+            return requested.stream().anyMatch(request -> request.fileDes.path.equals(path));
+        }
+    }
+
+
+    // the requests so far, cleared
+    List<Protocol.FileBytesRequest> takeRequests() {
+        synchronized (requested) {
+            List<Protocol.FileBytesRequest> requests = new ArrayList<>(requested);
+            requested.clear();
+            return requests;
+        }
+    }
+
+
+    @Override
+    public void sendAsync(Protocol protocol) {
+        if (protocol instanceof Protocol.FileBytesRequest) {
+            requested.add((Protocol.FileBytesRequest) protocol);
+        }
+    }
+
+    @Override
+    public void close(Boolean reconnect) {
+    }
+
+    @Override
+    public void abortWithInvalidProtocol(String additionalMsg) {
+    }
+
+    @Override
+    public void markRequestAsDone(IResponse response) {
+    }
+
+    @Override
+    public boolean allowInvalidMessage() {
+        return false;
+    }
+
+    @Override
+    public long getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public long getMessageSize() {
+        return blockSize;
+    }
+}
@@ -0,0 +1,174 @@
+package unimelb.bitbox.util.FileSystem;
+
+
+import org.junit.Test;
+import unimelb.bitbox.protocol.ProtocolField;
+import unimelb.bitbox.util.ConnectionUtils.Peer.Connection;
+import unimelb.bitbox.util.HostPort;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class TransferSchedulerTest {
+
+    private static final long BLOCK_SIZE = TestConnection.BLOCK_SIZE;
+
+
+    @Test
+    public void testAdmissionBySlots() {
+        TransferScheduler scheduler = new TransferScheduler(2, Long.MAX_VALUE, 0, 0);
+        TestConnection conn = new TestConnection();
+
+        FileLoaderWrapper first = transfer("first", 10 * BLOCK_SIZE, conn);
+        FileLoaderWrapper second = transfer("second", 10 * BLOCK_SIZE, conn);
+        FileLoaderWrapper third = transfer("third", 10 * BLOCK_SIZE, conn);
+        scheduler.submit(first);
+        scheduler.submit(second);
+        scheduler.submit(third);
+
+        assertEquals(2, scheduler.getActiveCount());
+        assertEquals(1, scheduler.getQueuedCount());
+        assertFalse(conn.requested("third"));
+
+        scheduler.finish(first);
+        assertEquals(2, scheduler.getActiveCount());
+        assertEquals(0, scheduler.getQueuedCount());
+        assertTrue(conn.requested("third"));
+
+        // finishing twice or a transfer never admitted changes nothing
+        scheduler.finish(first);
+        assertEquals(2, scheduler.getActiveCount());
+        assertEquals(second.getWindowBytes() + third.getWindowBytes(), scheduler.getOutstandingBytes());
+    }
+
+
+    @Test
+    public void testAdmissionSmallestFirst() {
+        TransferScheduler scheduler = new TransferScheduler(1, Long.MAX_VALUE, 0, 0);
+        TestConnection conn = new TestConnection();
+
+        FileLoaderWrapper running = transfer("running", 10 * BLOCK_SIZE, conn);
+        scheduler.submit(running);
+        scheduler.submit(transfer("large", 20 * BLOCK_SIZE, conn));
+        scheduler.submit(transfer("small", 2 * BLOCK_SIZE, conn));
+
+        scheduler.finish(running);
+        assertTrue(conn.requested("small"));
+        assertFalse(conn.requested("large"));
+    }
+
+
+    @Test
+    public void testAdmissionByOutstandingBytes() {
+        TransferScheduler scheduler = new TransferScheduler(16, 15 * BLOCK_SIZE, 0, 0);
+        TestConnection conn = new TestConnection();
+
+        // the window of a transfer is 10 blocks, a single transfer over the limit still starts
+        FileLoaderWrapper first = transfer("first", 100 * BLOCK_SIZE, conn);
+        scheduler.submit(first);
+        scheduler.submit(transfer("second", 100 * BLOCK_SIZE, conn));
+        assertEquals(1, scheduler.getActiveCount());
+        assertEquals(10 * BLOCK_SIZE, scheduler.getOutstandingBytes());
+
+        scheduler.finish(first);
+        assertTrue(conn.requested("second"));
+        assertEquals(10 * BLOCK_SIZE, scheduler.getOutstandingBytes());
+    }
+
+
+    @Test
+    public void testOutboundSlots() throws InterruptedException {
+        TransferScheduler scheduler = new TransferScheduler(1, Long.MAX_VALUE, 0, 0);
+        TestConnection conn = new TestConnection();
+        AtomicInteger served = new AtomicInteger(0);
+        CountDownLatch latch = new CountDownLatch(1);
+
+        scheduler.acquireOutbound(conn, BLOCK_SIZE, served::incrementAndGet);
+        scheduler.acquireOutbound(conn, BLOCK_SIZE, () -> {
+            served.incrementAndGet();
+            latch.countDown();
+        });
+
+        // the first one runs right away, the second waits without blocking the caller
+        assertEquals(1, served.get());
+        assertEquals(1, scheduler.getActiveOutboundCount());
+        assertEquals(1, scheduler.getQueuedOutboundCount());
+
+        // the slot goes to the waiting one, which is run in the lane of its connection
+        scheduler.releaseOutbound();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, served.get());
+        assertEquals(1, scheduler.getActiveOutboundCount());
+        assertEquals(0, scheduler.getQueuedOutboundCount());
+
+        scheduler.releaseOutbound();
+        assertEquals(0, scheduler.getActiveOutboundCount());
+    }
+
+
+    @Test
+    public void testBandwidthDeferred() throws InterruptedException {
+        long rate = 100 * BLOCK_SIZE;
+        TransferScheduler scheduler = new TransferScheduler(16, Long.MAX_VALUE, rate, 0);
+        TestConnection conn = new TestConnection();
+        CountDownLatch latch = new CountDownLatch(1);
+        long[] ranAt = new long[1];
+
+        // the burst goes through right away
+        AtomicInteger burst = new AtomicInteger(0);
+        scheduler.acquireBandwidth(conn, rate, burst::incrementAndGet);
+        assertEquals(1, burst.get());
+
+        long start = System.nanoTime();
+        scheduler.acquireBandwidth(conn, rate / 5, () -> {
+            ranAt[0] = System.nanoTime();
+            latch.countDown();
+        });
+        // the caller returns without waiting for the tokens
+        assertEquals(1, latch.getCount());
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(ranAt[0] - start >= TimeUnit.MILLISECONDS.toNanos(150));
+    }
+
+
+    @Test
+    public void testPeerBandwidth() throws InterruptedException {
+        long rate = 100 * BLOCK_SIZE;
+        TransferScheduler scheduler = new TransferScheduler(16, Long.MAX_VALUE, 0, rate);
+        TestConnection slow = new TestConnection();
+        TestConnection other = new TestConnection();
+        other.setHostPort(new HostPort("localhost", 2));
+        AtomicInteger ran = new AtomicInteger(0);
+        CountDownLatch latch = new CountDownLatch(1);
+
+        scheduler.acquireBandwidth(slow, rate, ran::incrementAndGet);
+        scheduler.acquireBandwidth(slow, rate / 5, latch::countDown);
+        // another peer has its own bucket
+        scheduler.acquireBandwidth(other, rate, ran::incrementAndGet);
+
+        assertEquals(2, ran.get());
+        assertEquals(1, latch.getCount());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        scheduler.removePeer(slow.getHostPort());
+        scheduler.acquireBandwidth(slow, rate, ran::incrementAndGet);
+        assertEquals(3, ran.get());
+    }
+
+
+    private static FileLoaderWrapper transfer(String path, long fileSize, Connection conn) {
+        ProtocolField.FileDes fileDes = new ProtocolField.FileDes();
+        fileDes.path = path;
+        fileDes.md5 = path;
+        fileDes.fileSize = fileSize;
+        return new FileLoaderWrapper(fileDes, null, conn);
+    }
+}
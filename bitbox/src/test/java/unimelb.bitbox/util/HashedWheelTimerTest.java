@@ -0,0 +1,79 @@
+package unimelb.bitbox.util;
+
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class HashedWheelTimerTest {
+
+    // a small wheel so the longer delays take several turns
+    private final HashedWheelTimer timer = new HashedWheelTimer("test timer", 5, TimeUnit.MILLISECONDS, 8);
+
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+
+    @Test
+    public void testFiresInDeadlineOrder() throws InterruptedException {
+        List<Integer> fired = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(3);
+        long start = System.nanoTime();
+
+        timer.schedule(() -> { fired.add(3); latch.countDown(); }, 150, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> { fired.add(1); latch.countDown(); }, 10, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> { fired.add(2); latch.countDown(); }, 60, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+        assertEquals(3, fired.size());
+        assertEquals(Integer.valueOf(1), fired.get(0));
+        assertEquals(Integer.valueOf(2), fired.get(1));
+        assertEquals(Integer.valueOf(3), fired.get(2));
+        assertEquals(0, timer.pendingCount());
+    }
+
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        CountDownLatch cancelled = new CountDownLatch(1);
+        CountDownLatch kept = new CountDownLatch(1);
+
+        HashedWheelTimer.Timeout timeout = timer.schedule(cancelled::countDown, 50, TimeUnit.MILLISECONDS);
+        timer.schedule(kept::countDown, 100, TimeUnit.MILLISECONDS);
+        assertEquals(2, timer.pendingCount());
+
+        assertTrue(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        assertEquals(1, timer.pendingCount());
+
+        assertTrue(kept.await(5, TimeUnit.SECONDS));
+        assertEquals(1, cancelled.getCount());
+        assertFalse(timeout.isExpired());
+    }
+
+
+    @Test
+    public void testCancelAfterExpired() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        HashedWheelTimer.Timeout timeout = timer.schedule(latch::countDown, 0, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        // the expired flag is set before the task runs
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+    }
+}
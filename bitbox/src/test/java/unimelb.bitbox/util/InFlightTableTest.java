@@ -0,0 +1,71 @@
+package unimelb.bitbox.util;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class InFlightTableTest {
+
+    @Test
+    public void testPutGetRemove() {
+        InFlightTable<String> table = new InFlightTable<>();
+        assertNull(table.put(1, "a"));
+        assertNull(table.put(2, "b"));
+        assertEquals("a", table.put(1, "c"));
+        assertEquals(2, table.size());
+
+        assertEquals("c", table.get(1));
+        assertNull(table.get(3));
+        assertNull(table.get(0));
+
+        assertEquals("b", table.remove(2));
+        assertNull(table.remove(2));
+        assertEquals(1, table.size());
+
+        table.clear();
+        assertTrue(table.isEmpty());
+        assertNull(table.get(1));
+    }
+
+
+    @Test
+    public void testMatchesHashMap() {
+        // small table, so it grows and the probe sequences wrap around
+        InFlightTable<Long> table = new InFlightTable<>(1);
+        HashMap<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 100000; i++) {
+            long key = 1 + random.nextInt(500);
+            if (random.nextBoolean()) {
+                assertEquals(expected.put(key, (long) i), table.put(key, (long) i));
+            } else {
+                assertEquals(expected.remove(key), table.remove(key));
+            }
+            assertEquals(expected.size(), table.size());
+        }
+
+        for (long key = 1; key <= 500; key++) {
+            assertEquals(expected.get(key), table.get(key));
+        }
+
+        ArrayList<Long> values = new ArrayList<>();
+        table.forEachValue(values::add);
+        assertEquals(expected.size(), values.size());
+        assertTrue(expected.values().containsAll(values));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroKeyRejected() {
+        new InFlightTable<String>().put(0, "a");
+    }
+}
@@ -0,0 +1,143 @@
+package unimelb.bitbox.util;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class LogSamplerTest {
+
+    private static class CollectingHandler extends Handler {
+        final ArrayList<LogRecord> records = new ArrayList<>();
+
+        @Override
+        public synchronized void publish(LogRecord record) {
+            records.add(record);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+
+    @Test
+    public void testSampling() {
+        LogSampler sampler = new LogSampler(4, 0);
+        Logger logger = Logger.getLogger("test.sampling");
+        int kept = 0;
+        for (int i = 0; i < 20; i++) {
+            if (sampler.isLoggable(logger, Level.INFO)) kept++;
+        }
+        assertEquals(5, kept);
+        assertEquals(15, sampler.getSuppressedCount());
+    }
+
+
+    @Test
+    public void testRateLimit() {
+        LogSampler sampler = new LogSampler(1, 10);
+        Logger logger = Logger.getLogger("test.rate");
+        int kept = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (sampler.isLoggable(logger, Level.INFO)) kept++;
+        }
+        // the loop may cross into the next second once
+        assertTrue(kept >= 10 && kept <= 20);
+    }
+
+
+    @Test
+    public void testSuppressedReported() {
+        LogSampler sampler = new LogSampler(2, 0);
+        Logger logger = Logger.getLogger("test.suppressed");
+        logger.setUseParentHandlers(false);
+        CollectingHandler handler = new CollectingHandler();
+        logger.addHandler(handler);
+
+        for (int i = 0; i < 3; i++) {
+            if (sampler.isLoggable(logger, Level.INFO)) {
+                sampler.log(logger, Level.INFO, "message {0}", i);
+            }
+        }
+        assertEquals(2, handler.records.size());
+        assertEquals("message {0}", handler.records.get(0).getMessage());
+        assertEquals("message {0} (1 similar suppressed)", handler.records.get(1).getMessage());
+        assertEquals(2, handler.records.get(1).getParameters()[0]);
+    }
+
+
+    @Test
+    public void testLevel() {
+        LogSampler sampler = new LogSampler(1, 0);
+        Logger logger = Logger.getLogger("test.level");
+        logger.setLevel(Level.WARNING);
+        assertFalse(sampler.isLoggable(logger, Level.INFO));
+        assertEquals(0, sampler.getSuppressedCount());
+    }
+
+
+    @Test
+    public void testAsyncHandler() {
+        CollectingHandler target = new CollectingHandler();
+        AsyncLogHandler handler = new AsyncLogHandler(64, target);
+        Logger logger = Logger.getLogger("test.async");
+        logger.setUseParentHandlers(false);
+        logger.addHandler(handler);
+
+        for (int i = 0; i < 50; i++) {
+            logger.info("record " + i);
+        }
+        handler.flush();
+        synchronized (target) {
+            assertEquals(50, target.records.size());
+            for (int i = 0; i < 50; i++) {
+                assertEquals("record " + i, target.records.get(i).getMessage());
+            }
+            assertEquals("test.async", target.records.get(0).getSourceClassName());
+        }
+        logger.removeHandler(handler);
+        handler.close();
+    }
+
+
+    @Test
+    public void testAsyncHandlerFull() throws InterruptedException {
+        // the writer is held up by a slow target, the records over the capacity are dropped
+        Object gate = new Object();
+        CollectingHandler target = new CollectingHandler() {
+            @Override
+            public void publish(LogRecord record) {
+                synchronized (gate) {
+                    super.publish(record);
+                }
+            }
+        };
+        AsyncLogHandler handler = new AsyncLogHandler(8, target);
+        synchronized (gate) {
+            for (int i = 0; i < 100; i++) {
+                handler.publish(new LogRecord(Level.INFO, "record " + i));
+            }
+            // at most the capacity and the one taken by the writer are kept
+            assertTrue(handler.getDroppedCount() >= 100 - 9);
+        }
+        handler.close();
+        synchronized (target) {
+            LogRecord last = target.records.get(target.records.size() - 1);
+            assertTrue(last.getMessage().endsWith("log records dropped, the buffer is full"));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package unimelb.bitbox.util.Metrics;
+
+
+import org.junit.Test;
+import unimelb.bitbox.util.Histogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void testScrape() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter counter = registry.counter("test_sent_total", "Sent", "peer", "a:1");
+        assertSame(counter, registry.counter("test_sent_total", "Sent", "peer", "a:1"));
+        counter.add(5);
+        registry.counter("test_sent_total", "Sent", "peer", "b\"2").inc();
+        registry.gauge("test_queued", "Queued", () -> 1.5);
+        registry.counter("test_cpu_seconds_total", "CPU", () -> 2.25);
+        Histogram histogram = registry.histogram("test_duration_milliseconds", "Duration");
+        histogram.record(4);
+        histogram.record(6);
+
+        String text = registry.scrape();
+        assertTrue(text.contains("# HELP test_sent_total Sent\n# TYPE test_sent_total counter\n"));
+        assertTrue(text.contains("test_sent_total{peer=\"a:1\"} 5\n"));
+        assertTrue(text.contains("test_sent_total{peer=\"b\\\"2\"} 1\n"));
+        assertTrue(text.contains("# TYPE test_queued gauge\ntest_queued 1.5\n"));
+        assertTrue(text.contains("# TYPE test_cpu_seconds_total counter\ntest_cpu_seconds_total 2.25\n"));
+        assertTrue(text.contains("# TYPE test_duration_milliseconds summary\n"));
+        assertTrue(text.contains("test_duration_milliseconds{quantile=\"0.5\"} 4\n"));
+        assertTrue(text.contains("test_duration_milliseconds{quantile=\"0.99\"} 6\n"));
+        assertTrue(text.contains("test_duration_milliseconds_sum 10\n"));
+        assertTrue(text.contains("test_duration_milliseconds_count 2\n"));
+        // sorted by name
+        assertTrue(text.indexOf("test_duration") < text.indexOf("test_queued"));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTypeConflict() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_total", "Test");
+        registry.histogram("test_total", "Test");
+    }
+
+
+    @Test
+    public void testServer() throws Exception {
+        MetricsRegistry.getInstance().counter("test_server_total", "Test").inc();
+        int port = MetricsServer.getInstance().start(0);
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(
+                    "http://127.0.0.1:" + port + MetricsServer.PATH).openConnection();
+            assertEquals(200, conn.getResponseCode());
+            assertTrue(conn.getContentType().startsWith("text/plain"));
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream is = conn.getInputStream()) {
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = is.read(buffer)) != -1) {
+                    body.write(buffer, 0, n);
+                }
+            }
+            assertTrue(new String(body.toByteArray(), StandardCharsets.UTF_8).contains("test_server_total 1\n"));
+        } finally {
+            MetricsServer.getInstance().stop();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package unimelb.bitbox.util;
+
+
+import org.junit.Test;
+import unimelb.bitbox.util.ThreadPool.Priority;
+import unimelb.bitbox.util.ThreadPool.PriorityTask;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class SchedulerTest {
+
+    @Test
+    public void testOverlappingRunsSkipped() throws InterruptedException {
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+        AtomicInteger runs = new AtomicInteger(0);
+
+        // each run takes several intervals
+        Scheduler.getInstance().addTask(20, TimeUnit.MILLISECONDS, new PriorityTask("slow", Priority.NORMAL, () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {
+            }
+            running.decrementAndGet();
+            runs.incrementAndGet();
+        }));
+
+        Thread.sleep(1000);
+        assertEquals(1, maxRunning.get());
+        // about one run per 100ms, not one per 20ms
+        assertTrue(runs.get() >= 3 && runs.get() <= 11);
+    }
+
+
+    @Test
+    public void testRunsWithoutDrift() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger(0);
+        Scheduler.getInstance().addTask(50, TimeUnit.MILLISECONDS, new PriorityTask("fast", Priority.HIGH, () -> {
+            runs.incrementAndGet();
+            try {
+                // a run taking a part of the interval does not push the next ones back
+                Thread.sleep(20);
+            } catch (InterruptedException ignored) {
+            }
+        }));
+
+        Thread.sleep(1025);
+        assertTrue("runs: " + runs.get(), runs.get() >= 15 && runs.get() <= 21);
+    }
+}
@@ -0,0 +1,188 @@
+package unimelb.bitbox.util.ThreadPool;
+
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class LaneExecutorTest {
+
+    private final LaneExecutor executor = new LaneExecutor("test worker", 4);
+
+
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+
+    @Test
+    public void testOrderWithinLane() throws InterruptedException {
+        int lanes = 8;
+        int tasks = 2000;
+        List<List<Integer>> results = new ArrayList<>();
+        CountDownLatch latch = new CountDownLatch(lanes * tasks);
+        AtomicInteger overlaps = new AtomicInteger(0);
+
+        List<LaneExecutor.Lane> laneList = new ArrayList<>();
+        for (int i = 0; i < lanes; i++) {
+            results.add(Collections.synchronizedList(new ArrayList<>()));
+            laneList.add(executor.newLane("lane " + i, Priority.values()[i % Priority.values().length]));
+        }
+
+        // each lane gets its tasks from its own thread, all of them at the same time
+        List<Thread> submitters = new ArrayList<>();
+        for (int i = 0; i < lanes; i++) {
+            int lane = i;
+            AtomicInteger running = new AtomicInteger(0);
+            submitters.add(new Thread(() -> {
+                for (int j = 0; j < tasks; j++) {
+                    int value = j;
+                    laneList.get(lane).submit(() -> {
+                        if (running.incrementAndGet() > 1) overlaps.incrementAndGet();
+                        results.get(lane).add(value);
+                        running.decrementAndGet();
+                        latch.countDown();
+                    });
+                }
+            }));
+        }
+        submitters.forEach(Thread::start);
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        for (List<Integer> result : results) {
+            assertEquals(tasks, result.size());
+            for (int j = 0; j < tasks; j++) {
+                assertEquals(Integer.valueOf(j), result.get(j));
+            }
+        }
+        for (LaneExecutor.Lane lane : laneList) {
+            assertEquals(0, lane.getPendingCount());
+        }
+    }
+
+
+    @Test
+    public void testLanesRunInParallel() throws InterruptedException {
+        // the first task of each lane waits for the other lane, only possible if both run at once
+        CountDownLatch both = new CountDownLatch(2);
+        CountDownLatch done = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            executor.newLane("lane " + i, Priority.NORMAL).submit(() -> {
+                both.countDown();
+                try {
+                    if (both.await(5, TimeUnit.SECONDS)) done.countDown();
+                } catch (InterruptedException ignored) {
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+
+    @Test
+    public void testFailedTaskDoesNotStopLane() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        LaneExecutor.Lane lane = executor.newLane("lane", Priority.HIGH);
+        lane.submit(() -> {
+            throw new IllegalStateException("test");
+        });
+        lane.submit(latch::countDown);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+
+    @Test
+    public void testErrorDoesNotStopLane() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        LaneExecutor.Lane lane = executor.newLane("lane", Priority.HIGH);
+        lane.submit(() -> {
+            throw new AssertionError("test");
+        });
+        lane.submit(latch::countDown);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        // the lane is scheduled again for the tasks submitted later
+        CountDownLatch later = new CountDownLatch(1);
+        lane.submit(later::countDown);
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+    }
+
+
+    @Test
+    public void testCapacity() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        LaneExecutor.Lane lane = executor.newLane("lane", Priority.NORMAL, 2);
+
+        Runnable blocked = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+            done.countDown();
+        };
+        assertTrue(lane.offer(blocked));
+        assertTrue(lane.offer(done::countDown));
+        assertFalse(lane.offer(done::countDown));
+        assertEquals(2, lane.getPendingCount());
+
+        // put waits until there is room again
+        Thread submitter = new Thread(() -> {
+            try {
+                lane.put(done::countDown);
+            } catch (InterruptedException ignored) {
+            }
+        });
+        submitter.start();
+        submitter.join(100);
+        assertTrue(submitter.isAlive());
+
+        release.countDown();
+        submitter.join(5000);
+        assertFalse(submitter.isAlive());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+
+    @Test
+    public void testBlockingTaskDoesNotHoldOtherLanes() throws InterruptedException {
+        LaneExecutor single = new LaneExecutor("single worker", 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        // with one worker, the other lane only runs if the pool starts a spare one
+        single.newLane("blocked", Priority.NORMAL).submit(() -> LaneExecutor.blocking(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+            done.countDown();
+        }));
+        single.newLane("other", Priority.NORMAL).submit(release::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        single.shutdown();
+    }
+
+
+    @Test
+    public void testBlockingOutsideWorker() {
+        AtomicInteger ran = new AtomicInteger(0);
+        LaneExecutor.blocking(() -> LaneExecutor.blocking(ran::incrementAndGet));
+        assertEquals(1, ran.get());
+    }
+}
@@ -0,0 +1,56 @@
+package unimelb.bitbox.util.ThreadPool;
+
+
+import org.junit.Test;
+import unimelb.bitbox.Constants;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class PriorityThreadPoolTest {
+
+    @Test
+    public void testLowShedWhenFull() throws InterruptedException {
+        PriorityThreadPool pool = PriorityThreadPool.getInstance();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(Constants.THREAD_POOL_CORE_POOL_SIZE);
+        CountDownLatch lowDone = new CountDownLatch(200);
+
+        try {
+            // keep all the threads busy, so the next tasks stay in the queue
+            for (int i = 0; i < Constants.THREAD_POOL_CORE_POOL_SIZE; i++) {
+                assertTrue(pool.submitTask(new PriorityTask("busy", Priority.HIGH, () -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                })));
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            // the default limit of LOW is 200
+            for (int i = 0; i < 200; i++) {
+                assertTrue(pool.submitTask(new PriorityTask("low", Priority.LOW, lowDone::countDown)));
+            }
+            assertEquals(200, pool.getQueuedCount(Priority.LOW));
+
+            long shed = pool.getShedCount();
+            assertFalse(pool.submitTask(new PriorityTask("low", Priority.LOW, () -> {
+            })));
+            assertFalse(pool.trySubmitTask(new PriorityTask("low", Priority.LOW, () -> {
+            })));
+            assertEquals(shed + 2, pool.getShedCount());
+        } finally {
+            release.countDown();
+        }
+
+        assertTrue(lowDone.await(10, TimeUnit.SECONDS));
+        assertEquals(0, pool.getQueuedCount(Priority.LOW));
+    }
+}
@@ -0,0 +1,96 @@
+package unimelb.bitbox.util.ThreadPool;
+
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class TaskMetricsTest {
+
+    private static TaskMetrics.TaskStat find(String name) {
+        for (TaskMetrics.TaskStat stat : TaskMetrics.getInstance().getTasks()) {
+            if (stat.getName().equals(name)) return stat;
+        }
+        return null;
+    }
+
+
+    @Test
+    public void testPoolTasksRecorded() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            PriorityThreadPool.getInstance().submitTask(new PriorityTask("metrics test", Priority.LOW, () -> {
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException ignored) {
+                }
+                latch.countDown();
+            }));
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        // the counters are updated right after the task returns
+        TaskMetrics.TaskStat stat = find("metrics test");
+        for (int i = 0; i < 100 && stat.getCompleted() < 10; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals("LOW", stat.getPriority());
+        assertEquals(10, stat.getCompleted());
+        assertEquals(0, stat.getQueued());
+        assertEquals(0, stat.getActive());
+        assertTrue(stat.getMeanRunMicros() >= 2000);
+    }
+
+
+    @Test
+    public void testFailedLaneTask() throws InterruptedException {
+        LaneExecutor executor = new LaneExecutor("metrics test worker", 1);
+        try {
+            CountDownLatch latch = new CountDownLatch(1);
+            LaneExecutor.Lane lane = executor.newLane("metrics test lane", Priority.NORMAL);
+            lane.submit(() -> {
+                throw new IllegalStateException("test");
+            });
+            lane.submit(latch::countDown);
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+            TaskMetrics.TaskStat stat = find("metrics test lane");
+            for (int i = 0; i < 100 && stat.getCompleted() < 1; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, stat.getFailed());
+            assertEquals(1, stat.getCompleted());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+
+    @Test
+    public void testMBean() throws Exception {
+        TaskMetrics.getInstance().init();
+        TaskMetrics.getInstance().get("mbean test", Priority.HIGH).queue(() -> {
+        }).run();
+
+        CompositeData[] tasks = (CompositeData[]) ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(new ObjectName(TaskMetrics.OBJECT_NAME), "Tasks");
+        boolean found = false;
+        for (CompositeData task : tasks) {
+            if (task.get("name").equals("mbean test")) {
+                found = true;
+                assertEquals("HIGH", task.get("priority"));
+                assertEquals(1L, task.get("completed"));
+            }
+        }
+        assertTrue(found);
+    }
+}
@@ -0,0 +1,71 @@
+package unimelb.bitbox.util.ThreadPool;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+
+public class WeightedPriorityQueueTest {
+
+    private static PriorityTask task(Priority priority) {
+        return new PriorityTask(priority.toString(), priority, () -> {
+        });
+    }
+
+
+    @Test
+    public void testWeightedTurns() {
+        WeightedPriorityQueue queue = new WeightedPriorityQueue(new int[]{3, 2, 1});
+        for (Priority priority : Priority.values()) {
+            for (int i = 0; i < 12; i++) {
+                queue.offer(task(priority));
+            }
+        }
+        assertEquals(36, queue.size());
+
+        // HIGH does not hold up the others, they get their share every turn
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            order.append(((PriorityTask) queue.poll()).getPriority().toString().charAt(0));
+        }
+        assertEquals("HHHNNLHHHNNL", order.toString());
+        assertEquals(12 - 6, queue.size(Priority.HIGH));
+        assertEquals(12 - 2, queue.size(Priority.LOW));
+    }
+
+
+    @Test
+    public void testFifoWithinPriority() throws InterruptedException {
+        WeightedPriorityQueue queue = new WeightedPriorityQueue(new int[]{8, 4, 1});
+        List<PriorityTask> tasks = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            PriorityTask task = task(Priority.LOW);
+            tasks.add(task);
+            queue.offer(task);
+        }
+        for (PriorityTask task : tasks) {
+            assertSame(task, queue.take());
+        }
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        assertEquals(20, queue.getWaitTimes(Priority.LOW).getCount());
+        assertEquals(0, queue.getWaitTimes(Priority.HIGH).getCount());
+    }
+
+
+    @Test
+    public void testIdlePrioritySkipped() {
+        WeightedPriorityQueue queue = new WeightedPriorityQueue(new int[]{2, 2, 2});
+        queue.offer(task(Priority.LOW));
+        queue.offer(task(Priority.NORMAL));
+        assertEquals(Priority.NORMAL, ((PriorityTask) queue.poll()).getPriority());
+        assertEquals(Priority.LOW, ((PriorityTask) queue.poll()).getPriority());
+        assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,55 @@
+package unimelb.bitbox.util;
+
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class TokenBucketTest {
+
+    private static final long RATE = 1000000;
+
+
+    @Test
+    public void testUnlimited() {
+        TokenBucket bucket = new TokenBucket(0);
+        assertTrue(bucket.isUnlimited());
+        assertEquals(0, bucket.reserve(Long.MAX_VALUE / 2));
+        assertEquals(0, bucket.reserve(Long.MAX_VALUE / 2));
+    }
+
+
+    @Test
+    public void testBurstThenRate() {
+        TokenBucket bucket = new TokenBucket(RATE);
+
+        // one second worth of burst is available right away
+        assertEquals(0, bucket.reserve(RATE));
+
+        // then half a second for half the rate, a little less as tokens came back in between
+        long wait = bucket.reserve(RATE / 2);
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(400));
+        assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(500));
+
+        // the debt adds up, the next caller waits behind the first one
+        long next = bucket.reserve(RATE / 2);
+        assertTrue(next > wait + TimeUnit.MILLISECONDS.toNanos(400));
+        assertTrue(next <= TimeUnit.MILLISECONDS.toNanos(1000));
+    }
+
+
+    @Test
+    public void testRefill() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(RATE);
+        assertEquals(0, bucket.reserve(RATE));
+
+        Thread.sleep(300);
+        // about 300 ms worth of tokens came back
+        assertEquals(0, bucket.reserve(RATE / 5));
+        assertTrue(bucket.reserve(RATE / 2) > 0);
+    }
+}